@@ -68,19 +68,25 @@ public class AudioRecorder {
 
     /**
      * Phương thức tiện ích để phát lại file âm thanh (WAV) đã ghi.
-     * Sử dụng Java Sound Clip và chạy trên luồng riêng để phát tiếng.
+     * Sử dụng Java Sound Clip; onFinished (nếu có) được gọi khi phát xong hoặc không phát được.
      */
-    public static void playAudio(File file) {
+    public static void playAudio(File file, Runnable onFinished) {
+        // Luồng riêng chỉ để mở file; Clip tự phát và báo sự kiện STOP khi hết
         new Thread(() -> {
             try (AudioInputStream audioStream = AudioSystem.getAudioInputStream(file)) {
                 Clip clip = AudioSystem.getClip();
+                clip.addLineListener(event -> {
+                    if (event.getType() == LineEvent.Type.STOP) {
+                        clip.close();
+                        if (onFinished != null) onFinished.run();
+                    }
+                });
                 clip.open(audioStream);
                 clip.start();
-                // Chờ phát xong thì đóng (tùy chọn)
-                Thread.sleep(clip.getMicrosecondLength() / 1000);
             } catch (Exception e) {
                 System.err.println("Lỗi phát âm thanh: " + e.getMessage());
+                if (onFinished != null) onFinished.run();
             }
-        }).start();
+        }, "play-" + file.getName()).start();
     }
 }
\ No newline at end of file
@@ -12,6 +12,7 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 
+import java.io.FileNotFoundException;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -28,6 +29,8 @@ public class ChatClient extends Application {
 
     private NetworkManager networkManager;
     private ChatClientController controller;
+    // Dùng chung cho mọi tab chat: giới hạn số file tải cùng lúc, gộp các yêu cầu trùng file
+    private DownloadManager downloadManager;
     private Stage primaryStage;
 
     /**
@@ -38,6 +41,9 @@ public class ChatClient extends Application {
     public void start(Stage stage) {
         this.primaryStage = stage;
 
+        downloadManager = new DownloadManager((fileName, error) ->
+                showAlert(error instanceof FileNotFoundException ? "File không tồn tại trên server!"
+                        : "Lỗi khi tải file: " + error.getMessage()));
         networkManager = new NetworkManager(this);
         controller = new ChatClientController(this, networkManager);
 
@@ -160,19 +166,16 @@ public class ChatClient extends Application {
                 networkManager.sendPrivateMessage(finalUsername, msg);
             });
 
-            // 2. [KHÔI PHỤC] Xử lý GỬI File (Đoạn này bị thiếu trong code bạn gửi)
-            panel.setSendFileAction((fileName, fileSize, fileType) -> {
-                Message fileMessage = Message.createFileMessage(fileName, fileSize, fileType, networkManager.getMyUsername());
-                finalPanel.addMessageAndSort(fileMessage);
-                networkManager.sendFileMessage(finalUsername, fileName, fileSize, fileType);
-            });
+            // 2. Xử lý GỬI File: khung chat đã hiện tin nhắn, ở đây chỉ gửi thông báo kèm id file
+            panel.setSendFileAction(fileMessage -> networkManager.sendFileMessage(finalUsername,
+                    fileMessage.getFileName(), fileMessage.getFileSize(), fileMessage.getFileType(),
+                    fileMessage.getFileId()));
 
             // 3. Xử lý TẢI File (Giữ lại 1 cái thôi)
-            panel.setDownloadAction(fileName -> {
-                System.out.println("DEBUG: Starting download stream for: " + fileName);
-                String serverIp = networkManager.getServerIp();
-                FileDownloader.download(serverIp, fileName, this);
-            });
+            panel.setDownloadAction((fileMessage, priority) -> downloadManager.request(networkManager.getServerIp(),
+                    fileMessage.getFileName(), fileMessage.getFileId(), priority));
+            panel.setPreviewAction((fileMessage, priority) -> downloadManager.requestPreview(
+                    networkManager.getServerIp(), fileMessage.getFileName(), fileMessage.getFileId(), priority));
 
             chatPanels.put(key, panel);
             createAndSelectTab("💬 " + finalUsername, panel, key, "PRIVATE", finalUsername);
@@ -201,17 +204,14 @@ public class ChatClient extends Application {
             });
 
             // Xử lý gửi File
-            panel.setSendFileAction((fileName, fileSize, fileType) -> {
-                Message fileMessage = Message.createFileMessage(fileName, fileSize, fileType, networkManager.getMyUsername());
-                finalPanel.addMessageAndSort(fileMessage);
-                networkManager.sendGroupFileMessage(finalGroupName, fileName, fileSize, fileType);
-            });
-
-            panel.setDownloadAction(fileName -> {
-                System.out.println("DEBUG: Starting group download stream for: " + fileName);
-                String serverIp = networkManager.getServerIp();
-                FileDownloader.download(serverIp, fileName, this);
-            });
+            panel.setSendFileAction(fileMessage -> networkManager.sendGroupFileMessage(finalGroupName,
+                    fileMessage.getFileName(), fileMessage.getFileSize(), fileMessage.getFileType(),
+                    fileMessage.getFileId()));
+
+            panel.setDownloadAction((fileMessage, priority) -> downloadManager.request(networkManager.getServerIp(),
+                    fileMessage.getFileName(), fileMessage.getFileId(), priority));
+            panel.setPreviewAction((fileMessage, priority) -> downloadManager.requestPreview(
+                    networkManager.getServerIp(), fileMessage.getFileName(), fileMessage.getFileId(), priority));
 
             chatPanels.put(key, panel);
             createAndSelectTab("👥 " + finalGroupName, panel, key, "GROUP", finalGroupName);
@@ -1,6 +1,8 @@
 package com.chatapp.client;
 
 import com.chatapp.common.AppLogger;
+import com.chatapp.common.Opcode;
+import com.chatapp.common.Packet;
 import com.chatapp.model.Message;
 import com.chatapp.model.MessageType;
 import com.chatapp.ui.ChatPanel;
@@ -19,8 +21,14 @@ import java.util.*;
 import javafx.scene.control.Tab;
 
 public class ChatClientController {
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int FILES_PAGE_SIZE = 20;
+
     private final ChatClient chatClient;
     private final NetworkManager networkManager;
+    // Con trỏ trang cũ hơn của từng tab (khóa là PRIVATE_x / GROUP_x); không có khóa nghĩa là đã hết hoặc đang tải
+    private final Map<String, String> olderHistoryCursors = new HashMap<>();
+    private final Map<String, String> olderFileCursors = new HashMap<>();
 
     /**
      * Khởi tạo controller với tham chiếu đến Client UI và Network Manager.
@@ -31,62 +39,62 @@ public class ChatClientController {
     }
 
     /**
-     * Xử lý các tin nhắn thô nhận được từ server, phân loại theo command và điều hướng đến các hàm xử lý cụ thể.
+     * Xử lý các gói tin nhận được từ server (đã tách trường và bỏ escape), phân loại theo command
+     * và điều hướng đến các hàm xử lý cụ thể.
      */
-    public void processMessage(String message) {
+    public void processMessage(Packet packet) {
         try {
-            // Tách tin nhắn, giới hạn split là -1 để giữ cả chuỗi rỗng nếu có
-            String[] parts = message.split("\\|", -1);
-            if (parts.length == 0) return;
-            String command = parts[0];
+            String[] parts = packet.parts();
 
-            switch (command) {
-                case "BROADCAST":
+            switch (packet.opcode()) {
+                case BROADCAST:
                     if (parts.length > 1) {
                         // 1. Hiển thị tin nhắn (Code cũ)
-                        chatClient.appendToBroadcast(parts[1].replace("&#124;", "|"));
+                        chatClient.appendToBroadcast(parts[1]);
 
                         // 2. [THÊM MỚI] Tự động chuyển tab
                         chatClient.selectBroadcastTab();
                     }
                     break;
 
-                case "PRIVATE":
+                case PRIVATE:
                     if (parts.length >= 3)
                         receivePrivateMessage(parts[1], parts[2]);
                     break;
 
-                case "GROUP":
+                case GROUP:
                     if (parts.length >= 3)
                         receiveGroupMessage(parts[1], parts[2]);
                     break;
 
                 // === TIN NHẮN FILE (CHỈ LÀ THÔNG BÁO CÓ FILE) ===
-                case "FILE_PRIVATE":
+                case FILE_PRIVATE:
                     if (parts.length >= 6) {
                         String sender = parts[1];
                         String receiver = parts[2];
                         String fileName = parts[3];
                         long fileSize = Long.parseLong(parts[4]);
                         String fileType = parts[5];
+                        long fileId = parts.length >= 7 ? Long.parseLong(parts[6]) : 0;
 
                         if (receiver.equals(networkManager.getMyUsername())) {
-                            receivePrivateFileMessage(sender, fileName, fileSize, fileType);
+                            receivePrivateFileMessage(sender, fileName, fileSize, fileType, fileId);
                         }
                     }
                     break;
 
-                case "FILE_GROUP":
+                case FILE_GROUP:
                     if (parts.length >= 6) {
                         String sender = parts[1];
                         String groupName = parts[2];
                         String fileName = parts[3];
                         long fileSize = Long.parseLong(parts[4]);
                         String fileType = parts[5];
-                        receiveGroupFileMessage(sender, groupName, fileName, fileSize, fileType);
+                        long fileId = parts.length >= 7 ? Long.parseLong(parts[6]) : 0;
+                        receiveGroupFileMessage(sender, groupName, fileName, fileSize, fileType, fileId);
                     }
                     break;
-                case "FILE_CONTENT":
+                case FILE_CONTENT:
                     if (parts.length >= 3) {
                         String fileName = parts[1];
                         String base64Data = parts[2];
@@ -118,68 +126,73 @@ public class ChatClientController {
                     }
                     break;
                 // === TIN NHẮN EMOJI ===
-                case "EMOJI_PRIVATE":
+                case EMOJI_PRIVATE:
                     if (parts.length >= 4)
                         receivePrivateEmojiMessage(parts[1], parts[3]);
                     break;
 
-                case "EMOJI_GROUP":
+                case EMOJI_GROUP:
                     if (parts.length >= 4)
                         receiveGroupEmojiMessage(parts[1], parts[2], parts[3]);
                     break;
 
                 // === QUẢN LÝ NHÓM & USER ===
-                case "GROUP_LIST":
+                case GROUP_LIST:
                     if (parts.length > 1 && !parts[1].isEmpty())
                         handleGroupList(parts[1]);
                     break;
 
-                case "GROUP_CREATED":
-                case "GROUP_JOINED":
+                case GROUP_CREATED:
+                case GROUP_JOINED:
                     if (parts.length >= 2)
                         handleGroupJoined(parts[1]);
                     break;
 
-                case "GROUP_LEFT":
-                case "GROUP_DISSOLVED":
+                case GROUP_LEFT:
+                case GROUP_DISSOLVED:
                     if (parts.length >= 2)
-                        handleGroupLeft(parts[1], command);
+                        handleGroupLeft(parts[1], packet.opcode());
                     break;
 
-                case "USER_LIST":
+                case USER_LIST:
                     if (parts.length > 1)
                         Platform.runLater(() -> updateUserList(parts[1].split(",")));
                     break;
 
-                case "USER_JOINED":
+                case USER_JOINED:
                     if (parts.length > 1 && !parts[1].equals(networkManager.getMyUsername()))
                         Platform.runLater(() -> addUser(parts[1]));
                     break;
 
-                case "USER_LEFT":
+                case USER_LEFT:
                     if (parts.length > 1)
                         Platform.runLater(() -> removeUser(parts[1]));
                     break;
 
+                case PRESENCE:
+                    if (parts.length >= 3)
+                        Platform.runLater(() -> applyPresence(parts[1], parts[2]));
+                    break;
+
                 // === XÁC THỰC ===
-                case "LOGIN_SUCCESS":
+                case LOGIN_SUCCESS:
                     if (parts.length > 1) handleLoginSuccess(parts[1]);
                     break;
-                case "LOGIN_FAIL":
+                case LOGIN_FAIL:
                     if (parts.length > 1) handleLoginFail(parts[1]);
                     break;
-                case "REGISTER_SUCCESS":
+                case REGISTER_SUCCESS:
                     if (parts.length > 1) handleRegisterSuccess(parts[1]);
                     break;
-                case "REGISTER_FAIL":
+                case REGISTER_FAIL:
                     if (parts.length > 1) handleRegisterFail(parts[1]);
                     break;
-                case "ERROR":
+                case ERROR:
                     if (parts.length > 1) showError(parts[1]);
                     break;
 
                 // === [MỚI] XỬ LÝ PHẢN HỒI DOWNLOAD ===
-                case "DOWNLOAD_ERROR":
+                case DOWNLOAD_ERROR:
                     if (parts.length > 1) {
                         String errorMsg = parts[1];
                         Platform.runLater(() -> chatClient.showAlert("Lỗi tải file: " + errorMsg));
@@ -187,42 +200,56 @@ public class ChatClientController {
                     break;
 
                 // === DỮ LIỆU LỊCH SỬ ===
-                case "HISTORY_DATA":
+                case HISTORY_DATA:
                     if (parts.length >= 6) {
-                        receiveHistoryData(parts[1], parts[2], parts[3], parts[4].replace("&#124;", "|"), parts[5]);
+                        receiveHistoryData(parts[1], parts[2], parts[3], parts[4], parts[5]);
                     }
                     break;
 
-                case "FILES_DATA":
+                case FILES_DATA:
                     if (parts.length >= 6) {
                         receiveFilesData(parts[1], parts[2], Long.parseLong(parts[3]), parts[4], parts[5]);
                     }
                     break;
 
+                case HISTORY_PAGE:
+                    if (parts.length >= 7) receiveHistoryPage(parts);
+                    break;
+
+                case FILES_PAGE:
+                    if (parts.length >= 6) receiveFilesPage(parts);
+                    break;
+
+                case RETRACT:
+                    if (parts.length >= 5) receiveRetract(parts[1], parts[2], parts[3], parts[4]);
+                    break;
+
                 // === VIDEO CALL & WEBRTC ===
-                case "WEBRTC":
+                case WEBRTC:
                     if (parts.length >= 3)
-                        Platform.runLater(() -> handleIncomingWebRTC(parts[1], message.substring(message.indexOf(parts[2]))));
+                        Platform.runLater(() -> handleIncomingWebRTC(parts[1], parts[2]));
                     break;
 
-                case "CALL_REQ":
+                case CALL_REQ:
                     if (parts.length >= 4)
                         Platform.runLater(() -> showIncomingCallDialog(parts[1], Long.parseLong(parts[2]), parts[3]));
                     break;
 
-                case "CALL_LOG":
-                    if (parts.length >= 5) handleCallLog(parts[1], parts[2], parts[3], parts[4]);
+                case CALL_LOG:
+                    // Server cũ gửi "STATUS|duration" thành hai trường riêng
+                    if (parts.length >= 6) handleCallLog(parts[1], parts[2], parts[3] + "|" + parts[4], parts[5]);
+                    else if (parts.length == 5) handleCallLog(parts[1], parts[2], parts[3], parts[4]);
                     break;
 
-                case "CALL_RES":
+                case CALL_RES:
                     if (parts.length >= 4) handleCallResponse(parts[1], parts[2], Long.parseLong(parts[3]));
                     break;
 
-                case "CALL_END":
+                case CALL_END:
                     if (parts.length >= 2) handleCallEnd(parts[1]);
                     break;
 
-                case "TYPING":
+                case TYPING:
                     if (parts.length >= 4) {
                         String sender = parts[1];
                         String target = parts[2];
@@ -245,16 +272,17 @@ public class ChatClientController {
                         });
                     }
                     break;
-                case "VOICE_PRIVATE":
-                case "VOICE_GROUP":
+                case VOICE_PRIVATE:
+                case VOICE_GROUP:
                     if (parts.length >= 6) {
                         String sender = parts[1];
                         String target = parts[2];
                         String fileName = parts[3];
+                        long fileId = parts.length >= 7 ? Long.parseLong(parts[6]) : 0;
 
                         // Xác định Tab
                         String tabName;
-                        if (command.equals("VOICE_PRIVATE")) {
+                        if (packet.opcode() == Opcode.VOICE_PRIVATE) {
                             tabName = "PRIVATE_" + sender;
                         } else {
                             tabName = "GROUP_" + target;
@@ -268,6 +296,7 @@ public class ChatClientController {
                                 Message msg = new Message(MessageType.VOICE, fileName, sender, LocalDateTime.now());
 
                                 msg.setFileName(fileName);
+                                msg.setFileId(fileId);
 
                                 panel.appendMessage(msg);
                             }
@@ -276,7 +305,7 @@ public class ChatClientController {
                     break;
             }
         } catch (Exception e) {
-            AppLogger.severe("Error processing message: " + message, e);
+            AppLogger.severe("Error processing message: " + packet, e);
         }
     }
 
@@ -290,7 +319,9 @@ public class ChatClientController {
         ChatPanel panel = chatClient.getChatPanels().get(key);
         if (panel != null) {
             panel.clearMessages();
-            networkManager.requestHistory(type, target);
+            olderHistoryCursors.remove(key);
+            panel.setLoadOlderAction(() -> loadOlder(type, target));
+            networkManager.requestHistoryPage(type, target, "LATEST", null, HISTORY_PAGE_SIZE);
         }
     }
 
@@ -300,7 +331,23 @@ public class ChatClientController {
     public void loadFiles(String target) {
         ChatPanel panel = chatClient.getChatPanels().get(target);
         if (panel != null) {
-            networkManager.requestFiles(target);
+            olderFileCursors.remove(target);
+            networkManager.requestFilesPage(target, "LATEST", null, FILES_PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Người dùng cuộn lên đầu tab: yêu cầu trang tin nhắn và file cũ hơn (nếu còn).
+     */
+    private void loadOlder(String type, String target) {
+        String key = type + "_" + target;
+        String historyCursor = olderHistoryCursors.remove(key);
+        if (historyCursor != null) {
+            networkManager.requestHistoryPage(type, target, "BEFORE", historyCursor, HISTORY_PAGE_SIZE);
+        }
+        String filesCursor = olderFileCursors.remove(key);
+        if (filesCursor != null) {
+            networkManager.requestFilesPage(key, "BEFORE", filesCursor, FILES_PAGE_SIZE);
         }
     }
 
@@ -327,6 +374,50 @@ public class ChatClientController {
         });
     }
 
+    /**
+     * Nhận một trang lịch sử: HISTORY_PAGE|type|target|direction|hasMore|oldest|newest|(sender|content|time)*.
+     * Cả trang được thêm vào tab trong một lần cập nhật giao diện.
+     */
+    private void receiveHistoryPage(String[] parts) {
+        String type = parts[1];
+        String key = type.equals("PRIVATE") ? "PRIVATE_" + parts[2] : "GROUP_" + parts[2];
+        boolean latest = "LATEST".equals(parts[3]);
+        if ("1".equals(parts[4])) olderHistoryCursors.put(key, parts[5]);
+
+        ChatPanel panel = chatClient.getChatPanels().get(key);
+        if (panel == null) return;
+        List<Message> batch = new ArrayList<>((parts.length - 7) / 3);
+        for (int i = 7; i + 2 < parts.length; i += 3) {
+            String sender = parts[i];
+            String content = parts[i + 1];
+            LocalDateTime timestamp = parseTime(parts[i + 2]);
+            batch.add(isCallContent(content)
+                    ? new Message(MessageType.CALL, content, sender, timestamp)
+                    : Message.createTextMessage(content, sender).withTimestamp(timestamp));
+        }
+        panel.addMessagesAndSort(batch, latest);
+    }
+
+    /**
+     * Nhận một trang file: FILES_PAGE|target|direction|hasMore|oldest|newest|(filename|size|sender|time)*.
+     */
+    private void receiveFilesPage(String[] parts) {
+        String key = parts[1];
+        boolean latest = "LATEST".equals(parts[2]);
+        if ("1".equals(parts[3])) olderFileCursors.put(key, parts[4]);
+
+        ChatPanel panel = chatClient.getChatPanels().get(key);
+        if (panel == null) return;
+        // Mỗi file 5 trường: tên, kích thước, người gửi, thời gian, id file
+        List<Message> batch = new ArrayList<>((parts.length - 6) / 5);
+        for (int i = 6; i + 4 < parts.length; i += 5) {
+            batch.add(Message.createFileMessage(parts[i], Long.parseLong(parts[i + 1]), "unknown", parts[i + 2])
+                    .withTimestamp(parseTime(parts[i + 3]))
+                    .withFileId(Long.parseLong(parts[i + 4])));
+        }
+        panel.addMessagesAndSort(batch, latest);
+    }
+
     /**
      * Nhận dữ liệu lịch sử tin nhắn dạng file từ server và hiển thị lên giao diện chat.
      */
@@ -348,8 +439,7 @@ public class ChatClientController {
      * Xử lý tin nhắn văn bản riêng tư nhận được: mở tab chat (nếu chưa mở) và hiển thị nội dung.
      */
     private void receivePrivateMessage(String from, String msg) {
-        String decodedMsg = msg.replace("&#124;", "|");
-        Message message = Message.createTextMessage(decodedMsg, from);
+        Message message = Message.createTextMessage(msg, from);
 
         Platform.runLater(() -> {
             chatClient.openPrivateChat(from);
@@ -362,9 +452,8 @@ public class ChatClientController {
      * Xử lý tin nhắn nhóm nhận được: mở tab chat nhóm và hiển thị nội dung (loại trừ tin nhắn do chính mình gửi).
      */
     private void receiveGroupMessage(String groupName, String msg) {
-        String decodedMsg = msg.replace("&#124;", "|");
         String sender = "Unknown";
-        String content = decodedMsg.trim();
+        String content = msg.trim();
 
         int colonIndex = content.indexOf(": ");
         if (colonIndex > 0) {
@@ -374,7 +463,7 @@ public class ChatClientController {
 
         if (sender.equals(networkManager.getMyUsername())) return;
 
-        Message message = Message.createTextMessage(decodedMsg, sender);
+        Message message = Message.createTextMessage(msg, sender);
         Platform.runLater(() -> {
             chatClient.openGroupChat(groupName);
             ChatPanel panel = chatClient.getChatPanels().get("GROUP_" + groupName);
@@ -382,12 +471,25 @@ public class ChatClientController {
         });
     }
 
+    /**
+     * Xử lý tin bị Server thu hồi (vi phạm kiểm duyệt): xóa bong bóng chat tương ứng khỏi tab hội thoại.
+     */
+    private void receiveRetract(String type, String sender, String target, String text) {
+        String me = networkManager.getMyUsername();
+        String key = "GROUP".equals(type) ? "GROUP_" + target
+                : "PRIVATE_" + (sender.equals(me) ? target : sender);
+        Platform.runLater(() -> {
+            ChatPanel panel = chatClient.getChatPanels().get(key);
+            if (panel != null) panel.removeLastMessage(sender, text, sender + ": " + text);
+        });
+    }
+
     /**
      * Xử lý thông báo có file gửi riêng: hiển thị bong bóng chat chứa thông tin file để người dùng tải về.
      */
-    private void receivePrivateFileMessage(String from, String fileName, long fileSize, String fileType) {
+    private void receivePrivateFileMessage(String from, String fileName, long fileSize, String fileType, long fileId) {
         if (from.equals(networkManager.getMyUsername())) return;
-        Message message = Message.createFileMessage(fileName, fileSize, fileType, from);
+        Message message = Message.createFileMessage(fileName, fileSize, fileType, from).withFileId(fileId);
         Platform.runLater(() -> {
             chatClient.openPrivateChat(from);
             ChatPanel panel = chatClient.getChatPanels().get("PRIVATE_" + from);
@@ -398,9 +500,10 @@ public class ChatClientController {
     /**
      * Xử lý thông báo có file gửi vào nhóm: hiển thị bong bóng chat chứa thông tin file.
      */
-    private void receiveGroupFileMessage(String from, String groupName, String fileName, long fileSize, String fileType) {
+    private void receiveGroupFileMessage(String from, String groupName, String fileName, long fileSize, String fileType,
+                                         long fileId) {
         if (from.equals(networkManager.getMyUsername())) return;
-        Message message = Message.createFileMessage(fileName, fileSize, fileType, from);
+        Message message = Message.createFileMessage(fileName, fileSize, fileType, from).withFileId(fileId);
         Platform.runLater(() -> {
             chatClient.openGroupChat(groupName);
             ChatPanel panel = chatClient.getChatPanels().get("GROUP_" + groupName);
@@ -464,13 +567,13 @@ public class ChatClientController {
     /**
      * Xử lý sự kiện khi người dùng rời nhóm hoặc nhóm bị giải tán.
      */
-    private void handleGroupLeft(String group, String command) {
+    private void handleGroupLeft(String group, Opcode command) {
         chatClient.getMyGroups().remove(group);
         Platform.runLater(() -> {
             chatClient.getGroupsPanel().removeGroup(group);
             updateGroupList();
             closeGroupTab(group);
-            appendToBroadcast(command.equals("GROUP_LEFT") ? "You left group: " + group : "Group dissolved: " + group);
+            appendToBroadcast(command == Opcode.GROUP_LEFT ? "You left group: " + group : "Group dissolved: " + group);
         });
     }
 
@@ -615,6 +718,39 @@ public class ChatClientController {
         }
     }
 
+    /**
+     * Áp dụng một lượt thay đổi trạng thái (PRESENCE|joined|left) đã được Server gom theo nhịp.
+     */
+    private void applyPresence(String joinedCsv, String leftCsv) {
+        String me = networkManager.getMyUsername();
+        Set<String> joined = new LinkedHashSet<>();
+        for (String u : joinedCsv.split(",")) {
+            if (!u.isEmpty() && !u.equals(me)) joined.add(u);
+        }
+        Set<String> left = new LinkedHashSet<>();
+        for (String u : leftCsv.split(",")) {
+            if (!u.isEmpty()) left.add(u);
+        }
+
+        ObservableList<UsersPanel.ClientRow> data = chatClient.getUsersPanel().getClientData();
+        if (!left.isEmpty()) data.removeIf(row -> left.contains(row.getUsername()));
+        Set<String> shown = new HashSet<>();
+        for (UsersPanel.ClientRow row : data) shown.add(row.getUsername());
+        List<UsersPanel.ClientRow> added = new ArrayList<>();
+        for (String u : joined) {
+            if (shown.add(u)) added.add(new UsersPanel.ClientRow(u));
+        }
+        data.addAll(added);
+
+        // Thông báo vào/ra chỉ hiển thị tại chỗ, không còn lưu vào lịch sử broadcast
+        if (!joined.isEmpty()) appendToBroadcast(describe(joined) + " joined the server!");
+        if (!left.isEmpty()) appendToBroadcast(describe(left) + " left the server.");
+    }
+
+    private static String describe(Set<String> users) {
+        return users.size() <= 5 ? String.join(", ", users) : users.size() + " users";
+    }
+
     /**
      * Xóa một người dùng khỏi danh sách online (khi họ đăng xuất).
      */
@@ -693,7 +829,7 @@ public class ChatClientController {
 
         Optional<ButtonType> result = alert.showAndWait();
         if (result.isPresent() && result.get() == btnAccept) {
-            networkManager.getOut().println("CALL_RES|" + sender + "|ACCEPTED|" + callId);
+            networkManager.send(Packet.of("CALL_RES", sender, "ACCEPTED", callId));
             Platform.runLater(() -> {
                 ChatPanel panel = chatClient.getChatPanels().get("PRIVATE_" + sender);
                 if (panel != null) {
@@ -702,7 +838,7 @@ public class ChatClientController {
                 }
             });
         } else {
-            networkManager.getOut().println("CALL_RES|" + sender + "|REJECTED|" + callId);
+            networkManager.send(Packet.of("CALL_RES", sender, "REJECTED", callId));
         }
     }
 
@@ -721,7 +857,7 @@ public class ChatClientController {
             if (!groupName.trim().isEmpty()) {
                 // Gửi lệnh: CREATE_GROUP|TenNhom
                 // (Có thể mở rộng thêm danh sách thành viên nếu muốn, hiện tại tạo nhóm rỗng trước)
-                networkManager.getOut().println("CREATE_GROUP|" + groupName);
+                networkManager.send(Packet.of("CREATE_GROUP", groupName));
             }
         });
     }
@@ -737,7 +873,7 @@ public class ChatClientController {
 
         dialog.showAndWait().ifPresent(groupName -> {
             if (!groupName.trim().isEmpty()) {
-                networkManager.getOut().println("JOIN_GROUP|" + groupName);
+                networkManager.send(Packet.of("JOIN_GROUP", groupName));
             }
         });
     }
@@ -752,7 +888,7 @@ public class ChatClientController {
 
         alert.showAndWait().ifPresent(response -> {
             if (response == ButtonType.OK) {
-                networkManager.getOut().println("LEAVE_GROUP|" + groupName);
+                networkManager.send(Packet.of("LEAVE_GROUP", groupName));
             }
         });
     }
@@ -0,0 +1,284 @@
+package com.chatapp.client;
+
+import com.chatapp.common.AppLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Hàng đợi tải file phía client: số lượt tải chạy cùng lúc có giới hạn, các yêu cầu cùng một file dùng chung
+ * một lượt tải và yêu cầu của tin nhắn đang hiển thị được ưu tiên. Bên gọi nhận kết quả qua CompletableFuture
+ * thay vì dò file trên đĩa.
+ */
+public final class DownloadManager {
+    // Số file được tải cùng lúc (mỗi file tự dùng nhiều kết nối, xem RangeDownloader)
+    private static final int MAX_ACTIVE = 3;
+
+    /**
+     * Mức ưu tiên của một yêu cầu tải; VISIBLE được chạy trước BACKGROUND.
+     */
+    public enum Priority {
+        VISIBLE, BACKGROUND
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final BiConsumer<String, Throwable> onFailure;
+    private final AtomicLong sequence = new AtomicLong();
+    // Lượt tải đang chờ hoặc đang chạy theo khóa file; truy cập khi giữ khóa this
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    /**
+     * onFailure nhận tên file và lỗi, một lần cho mỗi lượt tải thất bại (không gọi khi bị hủy).
+     */
+    public DownloadManager(BiConsumer<String, Throwable> onFailure) {
+        this.onFailure = onFailure;
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(MAX_ACTIVE, MAX_ACTIVE, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "download-" + seq.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Yêu cầu tải file (fileId = 0: tin nhắn cũ, tải theo tên). Nếu file đang được tải thì dùng chung lượt tải đó
+     * và nâng mức ưu tiên nếu cần.
+     */
+    public Download request(String serverIp, String fileName, long fileId, Priority priority) {
+        return request(fileId > 0 ? "#" + fileId : fileName, serverIp, fileName, fileId, false, priority);
+    }
+
+    /**
+     * Yêu cầu tải ảnh xem trước của file ảnh có id fileId. Lỗi (kể cả server chưa có ảnh xem trước)
+     * chỉ báo qua future, không qua onFailure.
+     */
+    public Download requestPreview(String serverIp, String fileName, long fileId, Priority priority) {
+        return request("preview#" + fileId, serverIp, fileName, fileId, true, priority);
+    }
+
+    private synchronized Download request(String key, String serverIp, String fileName, long fileId, boolean preview,
+                                          Priority priority) {
+        Transfer transfer = transfers.get(key);
+        boolean started = transfer == null || transfer.cancelled;
+        if (started) {
+            // Lượt tải vừa bị hủy vẫn có thể đang ghi file .part: lượt mới chờ nó dừng hẳn
+            transfer = new Transfer(key, serverIp, fileName, fileId, preview, transfer != null ? transfer.future : null);
+            transfers.put(key, transfer);
+        }
+        Download download = new Download(transfer, priority, started);
+        transfer.downloads.add(download);
+        if (started) {
+            transfer.priority = priority;
+            executor.execute(transfer);
+        } else {
+            reprioritize(transfer);
+        }
+        return download;
+    }
+
+    // Mức ưu tiên của lượt tải là mức cao nhất trong các yêu cầu còn theo dõi nó
+    private void reprioritize(Transfer transfer) {
+        Priority wanted = Priority.BACKGROUND;
+        for (Download d : transfer.downloads) {
+            if (d.priority.compareTo(wanted) < 0) wanted = d.priority;
+        }
+        if (wanted == transfer.priority) return;
+        // Không đổi thứ tự của phần tử đang nằm trong hàng đợi ưu tiên: lấy ra, đổi rồi đưa vào lại
+        boolean queued = executor.remove(transfer);
+        transfer.priority = wanted;
+        if (queued) executor.execute(transfer);
+    }
+
+    private void cancelTransfer(Transfer transfer) {
+        transfer.cancelled = true;
+        if (executor.remove(transfer)) {
+            finish(transfer, null, new CancellationException("Download cancelled"));
+        } else if (transfer.worker != null) {
+            transfer.worker.interrupt();
+        }
+    }
+
+    private void finish(Transfer transfer, File file, Throwable error) {
+        synchronized (this) {
+            transfers.remove(transfer.key, transfer);
+        }
+        if (error == null) {
+            transfer.future.complete(file);
+            return;
+        }
+        if (!(error instanceof CancellationException) && !transfer.preview) {
+            AppLogger.severe("Download failed: " + transfer.fileName, error);
+            onFailure.accept(transfer.fileName, error);
+        }
+        transfer.future.completeExceptionally(error);
+    }
+
+    private final class Transfer implements Runnable, Comparable<Transfer> {
+        private final String key;
+        private final String serverIp;
+        private final String fileName;
+        private final long fileId;
+        private final boolean preview;
+        private final CompletableFuture<File> previous;
+        private final long order = sequence.getAndIncrement();
+        private final CompletableFuture<File> future = new CompletableFuture<>();
+        private final List<Download> downloads = new CopyOnWriteArrayList<>();
+        private volatile Priority priority;
+        private volatile boolean cancelled;
+        private volatile Thread worker;
+        // Tiến độ gần nhất, để yêu cầu đến sau hiện ngay phần trăm hiện tại
+        private volatile long done;
+        private volatile long total = -1;
+
+        Transfer(String key, String serverIp, String fileName, long fileId, boolean preview,
+                 CompletableFuture<File> previous) {
+            this.key = key;
+            this.serverIp = serverIp;
+            this.fileName = fileName;
+            this.fileId = fileId;
+            this.preview = preview;
+            this.previous = previous;
+        }
+
+        @Override
+        public void run() {
+            if (previous != null) previous.exceptionally(e -> null).join();
+            synchronized (DownloadManager.this) {
+                if (!cancelled) worker = Thread.currentThread();
+            }
+            if (worker == null) {
+                finish(this, null, new CancellationException("Download cancelled"));
+                return;
+            }
+            try {
+                finish(this, preview ? FileDownloader.fetchPreview(serverIp, fileId, this::publish)
+                        : FileDownloader.fetch(serverIp, fileName, fileId, this::publish), null);
+            } catch (IOException | RuntimeException e) {
+                finish(this, null, cancelled ? new CancellationException("Download cancelled") : e);
+            } finally {
+                synchronized (DownloadManager.this) {
+                    worker = null;
+                }
+            }
+        }
+
+        private void publish(long done, long total) {
+            // Ném lỗi để dừng luồng tải ngay ở khối dữ liệu kế tiếp
+            if (cancelled) throw new CancellationException("Download cancelled");
+            this.done = done;
+            this.total = total;
+            for (Download d : downloads) {
+                RangeDownloader.Progress listener = d.progress;
+                if (listener != null) listener.update(done, total);
+            }
+        }
+
+        @Override
+        public int compareTo(Transfer other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Một yêu cầu tải của một bên gọi (thường là một cell tin nhắn). Nhiều yêu cầu có thể dùng chung một lượt tải;
+     * bên gọi ngừng theo dõi bằng release() hoặc cancel().
+     */
+    public final class Download {
+        private final Transfer transfer;
+        private final boolean started;
+        private final CompletableFuture<File> future = new CompletableFuture<>();
+        private volatile Priority priority;
+        private volatile RangeDownloader.Progress progress;
+
+        private Download(Transfer transfer, Priority priority, boolean started) {
+            this.transfer = transfer;
+            this.priority = priority;
+            this.started = started;
+            transfer.future.whenComplete((file, error) -> {
+                if (error == null) {
+                    future.complete(file);
+                } else {
+                    future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                }
+            });
+        }
+
+        /**
+         * Hoàn thành với file đã tải; bị hủy (CancellationException) nếu yêu cầu này đã release/cancel.
+         */
+        public CompletableFuture<File> future() {
+            return future;
+        }
+
+        /**
+         * true nếu yêu cầu này tạo ra lượt tải mới, false nếu dùng chung lượt tải đang có.
+         */
+        public boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Nhận tiến độ tải (gọi từ luồng tải); gọi ngay với tiến độ hiện tại nếu lượt tải đã chạy.
+         */
+        public void onProgress(RangeDownloader.Progress listener) {
+            progress = listener;
+            long total = transfer.total;
+            if (total >= 0) listener.update(transfer.done, total);
+        }
+
+        /**
+         * Đổi mức ưu tiên của yêu cầu này (ví dụ khi tin nhắn cuộn ra/vào màn hình).
+         */
+        public void setPriority(Priority priority) {
+            synchronized (DownloadManager.this) {
+                if (future.isDone()) return;
+                this.priority = priority;
+                reprioritize(transfer);
+            }
+        }
+
+        /**
+         * Ngừng theo dõi; lượt tải vẫn tiếp tục ở mức BACKGROUND nếu không còn yêu cầu nào khác.
+         */
+        public void release() {
+            detach(false);
+        }
+
+        /**
+         * Ngừng theo dõi và hủy lượt tải nếu không còn yêu cầu nào khác dùng chung. Phần đã tải được giữ lại
+         * để lần tải sau tải tiếp.
+         */
+        public void cancel() {
+            detach(true);
+        }
+
+        private void detach(boolean cancelTransfer) {
+            synchronized (DownloadManager.this) {
+                progress = null;
+                future.cancel(false);
+                if (!transfer.downloads.remove(this) || transfer.future.isDone()) return;
+                if (cancelTransfer && transfer.downloads.isEmpty()) {
+                    cancelTransfer(transfer);
+                } else {
+                    reprioritize(transfer);
+                }
+            }
+        }
+    }
+}
@@ -1,88 +1,111 @@
 package com.chatapp.client;
 
 import com.chatapp.common.AppLogger;
-import javafx.application.Platform;
-import javafx.scene.control.Alert;
-import javafx.scene.control.ButtonType;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 public class FileDownloader {
 
     private static final int DOWNLOAD_PORT = 5557; // Port dành riêng cho tải file
 
     /**
-     * Phương thức static thực hiện quy trình tải file từ server về máy client.
-     * Quy trình này chạy trên một luồng (thread) riêng biệt để đảm bảo không làm đóng băng giao diện người dùng.
-     * Nó kết nối đến cổng tải file riêng, gửi yêu cầu, nhận dữ liệu stream và lưu vào thư mục 'client_downloads'.
+     * Tải file từ server về thư mục 'client_downloads' (chặn đến khi xong; DownloadManager gọi trên luồng tải của nó).
+     * Có fileId (từ tin nhắn) thì tải song song theo đoạn và nối tiếp được (RangeDownloader); fileId = 0 (tin nhắn cũ)
+     * thì tải cả file theo tên trên một kết nối. Ném FileNotFoundException nếu server không có file.
+     * progress nhận số byte đã tải và tổng kích thước (gọi từ luồng tải).
      */
-    public static void download(String serverIp, String fileName, ChatClient chatClient) {
-        // Chạy trên luồng riêng để không làm đơ giao diện
-        new Thread(() -> {
-            Socket socket = null;
-            try {
-                socket = new Socket(serverIp, DOWNLOAD_PORT);
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-
-                // 1. Gửi yêu cầu tải file
-                out.writeUTF("DOWNLOAD");
-                out.writeUTF(fileName);
-                out.flush();
-
-                // 2. Nhận phản hồi từ Server
-                boolean exists = in.readBoolean();
-                if (!exists) {
-                    Platform.runLater(() -> chatClient.showAlert("File không tồn tại trên server!"));
-                    return;
-                }
-
-                long fileSize = in.readLong();
-
-                // 3. Chuẩn bị file lưu trên Client
-                File downloadDir = new File("client_downloads");
-                if (!downloadDir.exists()) downloadDir.mkdirs();
-
-                String saveName = fileName;
-
-                File destFile = new File(downloadDir, saveName);
+    public static File fetch(String serverIp, String fileName, long fileId, RangeDownloader.Progress progress)
+            throws IOException {
+        // 1. Chuẩn bị file lưu trên Client
+        File destFile = localFile(fileName, fileId);
+        File downloadDir = destFile.getParentFile();
+        if (!downloadDir.exists()) downloadDir.mkdirs();
+
+        // 2. Tải file
+        if (fileId > 0) {
+            RangeDownloader.download(serverIp, fileId, destFile, progress);
+        } else {
+            downloadByName(serverIp, fileName, destFile, progress);
+        }
+
+        AppLogger.info("Downloaded file: " + destFile.getAbsolutePath());
+        return destFile;
+    }
 
-                // 4. Bắt đầu nhận luồng dữ liệu (Stream)
-                try (FileOutputStream fos = new FileOutputStream(destFile)) {
-                    byte[] buffer = new byte[8192]; // Buffer 8KB
-                    long totalRead = 0;
-                    int bytesRead;
+    /**
+     * Nơi lưu file tải về trong 'client_downloads' (có thể chưa tồn tại). File có id được lưu thành "&lt;id&gt;_&lt;tên&gt;"
+     * để hai file trùng tên không dùng chung file đích, .part và .ranges.
+     */
+    public static File localFile(String fileName, long fileId) {
+        return new File("client_downloads", fileId > 0 ? fileId + "_" + fileName : fileName);
+    }
 
-                    // Đọc đến khi hết file (dựa vào fileSize)
-                    while (totalRead < fileSize && (bytesRead = in.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
+    /**
+     * File ảnh xem trước của file ảnh có id fileId trong bộ nhớ đệm 'client_downloads/.previews' (có thể chưa tồn tại).
+     */
+    public static File previewFile(long fileId) {
+        return new File(new File("client_downloads", ".previews"), fileId + ".jpg");
+    }
 
-                        // (Tùy chọn) Có thể cập nhật Progress Bar tại đây nếu muốn
-                    }
-                }
+    /**
+     * Tải ảnh xem trước (vài KB, do server tạo) của file ảnh có id fileId về previewFile(fileId).
+     * Ném FileNotFoundException nếu server chưa có ảnh xem trước.
+     */
+    public static File fetchPreview(String serverIp, long fileId, RangeDownloader.Progress progress) throws IOException {
+        File destFile = previewFile(fileId);
+        destFile.getParentFile().mkdirs();
+        File part = new File(destFile.getPath() + ".part");
+        try (Socket socket = new Socket(serverIp, DOWNLOAD_PORT)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeUTF("DOWNLOAD_PREVIEW");
+            out.writeLong(fileId);
+            out.flush();
+
+            if (!in.readBoolean()) throw new FileNotFoundException("No preview for #" + fileId);
+            byte[] data = new byte[(int) in.readLong()];
+            in.readFully(data);
+            Files.write(part.toPath(), data);
+            progress.update(data.length, data.length);
+        }
+        Files.move(part.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return destFile;
+    }
 
-                AppLogger.info("Downloaded file: " + destFile.getAbsolutePath());
-
-                // 5. Thông báo thành công trên UI
-                Platform.runLater(() -> {
-                    Alert alert = new Alert(Alert.AlertType.INFORMATION,
-                            "Tải xong!\nFile lưu tại: " + destFile.getAbsolutePath(), ButtonType.OK);
-                    alert.initOwner(chatClient.getPrimaryStage());
-                    alert.show();
-                });
-
-            } catch (IOException e) {
-                AppLogger.severe("Download failed", e);
-                Platform.runLater(() -> chatClient.showAlert("Lỗi khi tải file: " + e.getMessage()));
-            } finally {
-                try {
-                    if (socket != null) socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+    // Giao thức cũ: cả file trên một kết nối, tra cứu theo tên hiển thị
+    private static void downloadByName(String serverIp, String fileName, File destFile,
+                                       RangeDownloader.Progress progress) throws IOException {
+        // Ghi vào file tạm rồi mới đổi tên: file đích chỉ xuất hiện khi đã tải đủ
+        File part = new File(destFile.getPath() + ".part");
+        try (Socket socket = new Socket(serverIp, DOWNLOAD_PORT)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            out.writeUTF("DOWNLOAD");
+            out.writeUTF(fileName);
+            out.flush();
+
+            if (!in.readBoolean()) throw new FileNotFoundException(fileName);
+            long fileSize = in.readLong();
+
+            try (FileOutputStream fos = new FileOutputStream(part)) {
+                byte[] buffer = new byte[64 * 1024];
+                long totalRead = 0;
+                int bytesRead;
+
+                // Đọc đến khi hết file (dựa vào fileSize)
+                while (totalRead < fileSize && (bytesRead = in.read(buffer)) != -1) {
+                    fos.write(buffer, 0, bytesRead);
+                    totalRead += bytesRead;
+                    progress.update(totalRead, fileSize);
                 }
+                if (totalRead < fileSize) throw new EOFException("Connection closed at " + totalRead);
             }
-        }).start();
+        }
+        Files.move(part.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
     }
-}
\ No newline at end of file
+}
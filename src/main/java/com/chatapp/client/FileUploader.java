@@ -0,0 +1,158 @@
+package com.chatapp.client;
+
+import com.chatapp.common.AppLogger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+public class FileUploader {
+
+    private static final int UPLOAD_PORT = 5556; // Port dành riêng cho gửi file
+    private static final String COMMAND = "UPLOAD2";
+    private static final long CHECKSUM_MISMATCH = -1;
+    private static final long BUSY = -3;
+    // Số lần kết nối lại liên tiếp mà không gửi thêm được khối nào trước khi bỏ cuộc
+    private static final int MAX_RETRIES = 5;
+
+    /**
+     * Gửi file lên server theo từng khối trên một luồng riêng. Mỗi khối được server xác nhận;
+     * nếu mất kết nối, client kết nối lại và gửi tiếp từ vị trí server đã lưu thay vì gửi lại từ đầu.
+     * Server đã có file cùng nội dung (SHA-256) thì không phải gửi byte nào.
+     * onUploaded nhận id file do server cấp (gửi kèm tin nhắn FILE_* / VOICE_*); onFailure nhận thông báo lỗi
+     * khi đã thử lại nhiều lần mà vẫn không gửi được.
+     */
+    public static void upload(String serverIp, String sender, File file, String fileName, LongConsumer onUploaded,
+                              Consumer<String> onFailure) {
+        new Thread(() -> {
+            // Cùng một uploadId cho mọi lần kết nối lại của file này
+            String uploadId = UUID.randomUUID().toString();
+            String hash;
+            try {
+                hash = sha256(file);
+            } catch (IOException e) {
+                AppLogger.severe("Cannot read file to upload: " + fileName, e);
+                onFailure.accept(e.getMessage());
+                return;
+            }
+            long committed = -1;
+            int failures = 0;
+            while (true) {
+                try {
+                    long fileId = sendFrom(serverIp, uploadId, sender, file, fileName, hash);
+                    AppLogger.info("Uploaded file: " + fileName + " (#" + fileId + ", " + file.length() + " bytes)");
+                    onUploaded.accept(fileId);
+                    return;
+                } catch (UploadProgress p) {
+                    // Có tiến triển thì đếm lại số lần thử
+                    if (p.committed > committed) {
+                        failures = 0;
+                        committed = p.committed;
+                    }
+                    if (++failures > MAX_RETRIES || p.fatal) {
+                        AppLogger.severe("Upload failed: " + fileName, p.getCause());
+                        onFailure.accept(p.getMessage());
+                        return;
+                    }
+                    AppLogger.warning("Upload of " + fileName + " interrupted at " + committed + " bytes, retrying: "
+                            + p.getMessage());
+                    try {
+                        Thread.sleep(Math.min(30_000L, 1000L << (failures - 1)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }, "upload-" + fileName).start();
+    }
+
+    // Một lần kết nối: bắt tay, gửi các khối còn thiếu; trả về id file khi server đã lưu xong
+    private static long sendFrom(String serverIp, String uploadId, String sender, File file, String fileName,
+                                 String hash) throws UploadProgress {
+        long committed = -1;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(serverIp, UPLOAD_PORT), 5000);
+            socket.setSoTimeout(60_000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            long fileSize = file.length();
+
+            out.writeUTF(COMMAND);
+            out.writeUTF(uploadId);
+            out.writeUTF(sender);
+            out.writeUTF(fileName);
+            out.writeLong(fileSize);
+            out.writeUTF(hash);
+            out.flush();
+
+            committed = in.readLong();
+            int chunkSize = in.readInt();
+            if (committed == BUSY) throw new UploadProgress("Server đang xử lý phiên tải trước", -1, false, null);
+            if (committed < 0) throw new UploadProgress("Server từ chối file", -1, true, null);
+            // Server đã có file (cùng nội dung hoặc phiên trước đã xong): không phải gửi gì
+            if (committed == fileSize) return in.readLong();
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                byte[] chunk = new byte[chunkSize];
+                CRC32 crc = new CRC32();
+                while (committed < fileSize) {
+                    int length = (int) Math.min(chunkSize, fileSize - committed);
+                    raf.seek(committed);
+                    raf.readFully(chunk, 0, length);
+                    crc.reset();
+                    crc.update(chunk, 0, length);
+
+                    out.writeInt(length);
+                    out.write(chunk, 0, length);
+                    out.writeLong(crc.getValue());
+                    out.flush();
+
+                    long ack = in.readLong();
+                    if (ack == CHECKSUM_MISMATCH) continue; // Khối hỏng trên đường truyền: gửi lại
+                    if (ack < 0) throw new UploadProgress("Server không lưu được file", committed, true, null);
+                    committed = ack;
+                }
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            throw new UploadProgress(e.getMessage(), committed, false, e);
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Lỗi của một lần kết nối, kèm vị trí server đã xác nhận
+    private static class UploadProgress extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final long committed;
+        final boolean fatal;
+
+        UploadProgress(String message, long committed, boolean fatal, Throwable cause) {
+            super(message, cause);
+            this.committed = committed;
+            this.fatal = fatal;
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package com.chatapp.client;
 
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.FrameCodec;
+import com.chatapp.common.Opcode;
+import com.chatapp.common.Packet;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class NetworkManager {
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private boolean isConnected = false;
+    private InputStream in;
+    private OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Chiều gửi đã chuyển sang khung nhị phân (đổi dưới writeLock)
+    private boolean binaryOut = false;
+    private volatile boolean isConnected = false;
     private String myUsername;
     private final ChatClient chatClient;
     private String serverIp;
+    // Token nối lại phiên nhận từ Server sau lần đăng nhập gần nhất (RESUME bỏ qua bước BCrypt)
+    private volatile String resumeToken;
+    private volatile String resumeUser;
+    private volatile String resumeServer;
+    private volatile long resumeExpiry;
+    // Mật khẩu giữ tạm trong lúc chờ kết quả RESUME, để đăng nhập lại bình thường nếu token bị từ chối
+    private volatile String pendingPassword;
 
     /**
      * Khởi tạo trình quản lý mạng với tham chiếu đến Client chính.
@@ -33,8 +47,9 @@ public class NetworkManager {
         try {
             socket = new Socket();
             socket.connect(new InetSocketAddress(server, 5555), 3000);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            binaryOut = false;
             this.isConnected = true;
             new Thread(this::readMessages).start();
             return true;
@@ -52,7 +67,16 @@ public class NetworkManager {
     public void sendLogin(String username, String password) {
         if (isConnected) {
             this.myUsername = username;
-            out.println("LOGIN|" + username + "|" + password);
+            String token = resumeToken;
+            // Còn token hợp lệ cho đúng tài khoản và Server này thì nối lại phiên, khỏi gửi mật khẩu
+            if (token != null && username.equals(resumeUser) && serverIp.equals(resumeServer)
+                    && System.currentTimeMillis() < resumeExpiry) {
+                pendingPassword = password;
+                send(Packet.of("RESUME", username, token));
+            } else {
+                pendingPassword = null;
+                send(Packet.of("LOGIN", username, password));
+            }
         }
     }
 
@@ -61,7 +85,7 @@ public class NetworkManager {
      */
     public void sendRegister(String username, String password) {
         if (isConnected) {
-            out.println("REGISTER|" + username + "|" + password);
+            send(Packet.of("REGISTER", username, password));
         }
     }
 
@@ -87,16 +111,50 @@ public class NetworkManager {
 
     /**
      * Vòng lặp chạy trên luồng riêng để liên tục đọc tin nhắn từ Server và chuyển giao cho Controller xử lý.
+     * Đọc dòng văn bản cho tới khi Server xác nhận PROTO_OK, sau đó đọc khung nhị phân.
      */
     private void readMessages() {
         try {
-            String line;
-            while (isConnected && (line = in.readLine()) != null) {
-                final String finalLine = line;
+            ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+            boolean binaryIn = false;
+            while (isConnected) {
+                Packet packet;
+                if (binaryIn) {
+                    packet = FrameCodec.read(in);
+                } else {
+                    String line = FrameCodec.readLine(in, lineBuffer, FrameCodec.MAX_FRAME_BYTES);
+                    packet = line == null ? null : Packet.fromText(line);
+                }
+                if (packet == null) break;
+
+                if (packet.opcode() == Opcode.PROTO_OK) {
+                    // Mọi byte sau dòng này là khung nhị phân
+                    binaryIn = true;
+                    continue;
+                }
+                if (packet.opcode() == Opcode.SESSION_TOKEN) {
+                    rememberToken(packet);
+                    continue;
+                }
+                if (packet.opcode() == Opcode.LOGIN_FAIL && pendingPassword != null) {
+                    // Token hết hạn hoặc bị thu hồi: đăng nhập lại bằng mật khẩu, người dùng không thấy lỗi
+                    String password = pendingPassword;
+                    pendingPassword = null;
+                    resumeToken = null;
+                    send(Packet.of("LOGIN", myUsername, password));
+                    continue;
+                }
+                if (packet.opcode() == Opcode.LOGIN_SUCCESS) {
+                    pendingPassword = null;
+                    if (packet.size() >= 3 && String.valueOf(FrameCodec.VERSION).equals(packet.get(2))) {
+                        switchToBinary();
+                    }
+                }
+
                 Platform.runLater(() -> {
                     try {
                         if (chatClient.getController() != null) {
-                            chatClient.getController().processMessage(finalLine);
+                            chatClient.getController().processMessage(packet);
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -113,69 +171,127 @@ public class NetworkManager {
         }
     }
 
+    // SESSION_TOKEN|token|thời hạn (giây)
+    private void rememberToken(Packet packet) {
+        if (packet.size() < 3) return;
+        try {
+            long ttlSeconds = Long.parseLong(packet.get(2));
+            // Trừ hao một chút để không gửi token sát giờ hết hạn
+            resumeExpiry = System.currentTimeMillis() + Math.max(0, ttlSeconds - 10) * 1000;
+            resumeToken = packet.get(1);
+            resumeUser = myUsername;
+            resumeServer = serverIp;
+        } catch (NumberFormatException e) {
+            AppLogger.warning("Invalid session token TTL: " + packet.get(2));
+        }
+    }
+
+    /**
+     * Server mời dùng giao thức nhị phân: gửi SWITCH_PROTO (dạng văn bản) rồi chuyển chiều gửi sang khung nhị phân.
+     */
+    private void switchToBinary() {
+        writeLock.lock();
+        try {
+            out.write(Packet.of("SWITCH_PROTO", FrameCodec.VERSION).toTextBytes());
+            binaryOut = true;
+        } catch (IOException e) {
+            AppLogger.warning("Không thể chuyển sang giao thức nhị phân: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gửi một gói tin tới Server, mã hóa theo giao thức đang dùng (dòng văn bản hoặc khung nhị phân).
+     */
+    public void send(Packet packet) {
+        if (!isConnected) return;
+        writeLock.lock();
+        try {
+            out.write(binaryOut ? packet.toFrameBytes() : packet.toTextBytes());
+        } catch (IOException e) {
+            AppLogger.warning("Send failed: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     /**
      * Gửi tin nhắn văn bản riêng tư tới một người dùng cụ thể.
      */
     public void sendPrivateMessage(String to, String message) {
-        if (isConnected) out.println("PRIVATE|" + to + "|" + message.replace("|", "&#124;"));
+        send(Packet.of("PRIVATE", to, message));
     }
 
     /**
      * Gửi tin nhắn văn bản tới một nhóm chat.
      */
     public void sendGroupMessage(String group, String message) {
-        if (isConnected) out.println("GROUP|" + group + "|" + message.replace("|", "&#124;"));
+        send(Packet.of("GROUP", group, message));
     }
 
     /**
      * Gửi tin nhắn thông báo toàn hệ thống (Broadcast).
      */
     public void sendBroadcast(String message) {
-        if (isConnected) out.println("BROADCAST|" + message.replace("|", "&#124;"));
+        send(Packet.of("BROADCAST", message));
     }
 
     /**
      * Gửi thông tin (metadata) về file được gửi riêng tư (không gửi nội dung file ở đây, việc truyền file xử lý qua luồng khác).
+     * fileId là id server cấp khi file đã tải lên xong.
      */
-    public void sendFileMessage(String to, String fileName, long fileSize, String fileType) {
-        if (isConnected)
-            out.println("FILE_PRIVATE|" + to + "|" + myUsername + "|" + fileName + "|" + fileSize + "|" + fileType);
+    public void sendFileMessage(String to, String fileName, long fileSize, String fileType, long fileId) {
+        send(Packet.of("FILE_PRIVATE", to, myUsername, fileName, fileSize, fileType, fileId));
     }
 
     /**
      * Gửi thông tin (metadata) về file được gửi vào nhóm.
      */
-    public void sendGroupFileMessage(String group, String fileName, long fileSize, String fileType) {
-        if (isConnected)
-            out.println("FILE_GROUP|" + group + "|" + myUsername + "|" + fileName + "|" + fileSize + "|" + fileType);
+    public void sendGroupFileMessage(String group, String fileName, long fileSize, String fileType, long fileId) {
+        send(Packet.of("FILE_GROUP", group, myUsername, fileName, fileSize, fileType, fileId));
     }
 
     /**
      * Gửi mã Emoji tới người dùng khác.
      */
     public void sendEmojiMessage(String to, String emojiCode) {
-        if (isConnected) out.println("EMOJI_PRIVATE|" + to + "|" + myUsername + "|" + emojiCode);
+        send(Packet.of("EMOJI_PRIVATE", to, myUsername, emojiCode));
     }
 
     /**
      * Gửi mã Emoji vào nhóm chat.
      */
     public void sendGroupEmojiMessage(String group, String emojiCode) {
-        if (isConnected) out.println("EMOJI_GROUP|" + group + "|" + myUsername + "|" + emojiCode);
+        send(Packet.of("EMOJI_GROUP", group, myUsername, emojiCode));
     }
 
     /**
      * Gửi yêu cầu lấy lại lịch sử chat (Private hoặc Group) từ Server.
      */
     public void requestHistory(String type, String target) {
-        if (isConnected) out.println("REQ_HISTORY|" + type + "|" + target);
+        send(Packet.of("REQ_HISTORY", type, target));
     }
 
     /**
      * Gửi yêu cầu lấy danh sách các file đã chia sẻ với một đối tượng cụ thể.
      */
     public void requestFiles(String target) {
-        if (isConnected) out.println("REQ_FILES|" + target);
+        send(Packet.of("REQ_FILES", target));
+    }
+
+    /**
+     * Yêu cầu một trang lịch sử tin nhắn: direction là LATEST, BEFORE hoặc AFTER so với con trỏ cursor.
+     */
+    public void requestHistoryPage(String type, String target, String direction, String cursor, int limit) {
+        send(Packet.of("REQ_HISTORY_PAGE", type, target, direction, cursor == null ? "" : cursor, limit));
+    }
+
+    /**
+     * Yêu cầu một trang danh sách file đã chia sẻ (target dạng PRIVATE_user hoặc GROUP_nhóm).
+     */
+    public void requestFilesPage(String target, String direction, String cursor, int limit) {
+        send(Packet.of("REQ_FILES_PAGE", target, direction, cursor == null ? "" : cursor, limit));
     }
 
     /**
@@ -189,24 +305,15 @@ public class NetworkManager {
      * Gửi yêu cầu đặt lại mật khẩu tới Server.
      */
     public void sendResetPassword(String username, String newPassword) {
-        if (isConnected) out.println("RESET_PASSWORD|" + username + "|" + newPassword);
+        send(Packet.of("RESET_PASSWORD", username, newPassword));
     }
 
     /**
      * Gửi tín hiệu WebRTC (SDP offer/answer hoặc Ice Candidate) để thiết lập cuộc gọi video.
      */
     public void sendWebRTCSignal(String target, String jsonPayload) {
-        if (isConnected) {
-            String cleanJson = jsonPayload.replace("\n", "").replace("\r", "");
-            out.println("WEBRTC|" + target + "|" + cleanJson);
-        }
-    }
-
-    /**
-     * Lấy luồng ghi dữ liệu ra (Writer).
-     */
-    public PrintWriter getOut() {
-        return out;
+        String cleanJson = jsonPayload.replace("\n", "").replace("\r", "");
+        send(Packet.of("WEBRTC", target, cleanJson));
     }
 
     /**
@@ -227,18 +334,13 @@ public class NetworkManager {
      * Gửi trạng thái "đang soạn tin" (typing) tới đối phương.
      */
     public void sendTyping(String target, boolean isTyping) {
-        if (isConnected) {
-            String state = isTyping ? "START" : "STOP";
-            out.println("TYPING|" + target + "|" + state);
-        }
+        send(Packet.of("TYPING", target, isTyping ? "START" : "STOP"));
     }
 
     /**
-     * Gửi một gói tin thô bất kỳ tới Server (hàm tiện ích).
+     * Gửi một gói tin thô dạng "LỆNH|a|b" tới Server (hàm tiện ích).
      */
     public void sendMessage(String packet) {
-        if (isConnected) {
-            out.println(packet);
-        }
+        send(Packet.fromText(packet));
     }
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+package com.chatapp.client;
+
+import com.chatapp.common.AppLogger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tải file theo id bằng nhiều kết nối song song (DOWNLOAD_RANGE trên cổng 5557): file được chia thành các đoạn,
+ * mỗi đoạn ghi thẳng vào đúng vị trí trong file .part đã cấp phát trước. Đoạn đã xong được ghi vào file .ranges
+ * bên cạnh, nên lần tải sau (mất mạng, tắt ứng dụng) chỉ tải các đoạn còn thiếu.
+ * Tải xong thì so SHA-256 với server rồi mới đổi tên thành file đích.
+ */
+public final class RangeDownloader {
+    private static final int DOWNLOAD_PORT = 5557;
+    private static final String COMMAND = "DOWNLOAD_RANGE";
+    private static final long RANGE_SIZE = 4L * 1024 * 1024;
+    private static final int MAX_CONNECTIONS = 4;
+    // Số lần thử lại một đoạn khi mất kết nối
+    private static final int RANGE_RETRIES = 3;
+
+    /**
+     * Nhận tiến độ tải: số byte đã có và tổng kích thước.
+     */
+    @FunctionalInterface
+    public interface Progress {
+        void update(long done, long total);
+    }
+
+    private record Stat(long size, String hash) {
+    }
+
+    private RangeDownloader() {
+    }
+
+    /**
+     * Tải file có id fileId về dest (chặn đến khi xong). Ném FileNotFoundException nếu server không có file.
+     */
+    public static void download(String serverIp, long fileId, File dest, Progress progress) throws IOException {
+        Stat stat = requestRange(serverIp, fileId, 0, 0, null, null);
+        long size = stat.size();
+        int rangeCount = (int) Math.max(1, (size + RANGE_SIZE - 1) / RANGE_SIZE);
+
+        File part = new File(dest.getPath() + ".part");
+        File journal = new File(dest.getPath() + ".ranges");
+        String journalHeader = size + " " + stat.hash() + " " + RANGE_SIZE;
+
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            FileChannel file = raf.getChannel();
+            BitSet done = raf.length() == size ? loadJournal(journal, journalHeader) : new BitSet();
+            if (done.isEmpty()) {
+                // Bắt đầu lại từ đầu: cấp phát trước toàn bộ file và ghi lại thông tin nhận dạng phiên tải
+                raf.setLength(size);
+                try (Writer w = new FileWriter(journal, false)) {
+                    w.write(journalHeader + "\n");
+                }
+            }
+
+            AtomicLong received = new AtomicLong();
+            for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) received.addAndGet(rangeLength(i, size));
+            progress.update(received.get(), size);
+
+            List<Integer> missing = new ArrayList<>();
+            for (int i = done.nextClearBit(0); i < rangeCount; i = done.nextClearBit(i + 1)) missing.add(i);
+            if (!missing.isEmpty()) {
+                AppLogger.info("Downloading #" + fileId + " (" + size + " bytes): " + missing.size() + "/" + rangeCount
+                        + " ranges over " + Math.min(MAX_CONNECTIONS, missing.size()) + " connections");
+                fetchRanges(serverIp, fileId, stat, missing, file, journal, received, progress);
+            }
+            file.force(true);
+        }
+
+        if (!stat.hash().isEmpty() && !stat.hash().equals(sha256(part))) {
+            // Dữ liệu hỏng: xóa để lần sau tải lại từ đầu
+            part.delete();
+            journal.delete();
+            throw new IOException("Checksum mismatch for " + dest.getName());
+        }
+        Files.move(part.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journal.delete();
+    }
+
+    private static void fetchRanges(String serverIp, long fileId, Stat stat, List<Integer> missing, FileChannel file,
+                                    File journal, AtomicLong received, Progress progress) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_CONNECTIONS, missing.size()), r -> {
+            Thread t = new Thread(r, "download-range-" + fileId);
+            t.setDaemon(true);
+            return t;
+        });
+        try (Writer log = new FileWriter(journal, true)) {
+            List<Future<?>> results = new ArrayList<>(missing.size());
+            for (int index : missing) {
+                results.add(pool.submit(() -> {
+                    fetchRange(serverIp, fileId, stat, index, file, received, progress);
+                    // Chỉ ghi nhận đoạn đã nằm trên đĩa
+                    file.force(false);
+                    synchronized (log) {
+                        log.write(index + "\n");
+                        log.flush();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException io ? io : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void fetchRange(String serverIp, long fileId, Stat stat, int index, FileChannel file,
+                                   AtomicLong received, Progress progress) throws IOException {
+        long offset = index * RANGE_SIZE;
+        long length = rangeLength(index, stat.size());
+        for (int attempt = 1; ; attempt++) {
+            long[] written = {0};
+            try {
+                requestRange(serverIp, fileId, offset, length, stat, (data, position) -> {
+                    int n = data.remaining();
+                    while (data.hasRemaining()) position += file.write(data, position);
+                    written[0] += n;
+                    progress.update(received.addAndGet(n), stat.size());
+                });
+                return;
+            } catch (IOException e) {
+                // Lần thử sau ghi lại cả đoạn: bỏ phần đã tính vào tiến độ
+                received.addAndGet(-written[0]);
+                // Bị hủy (luồng bị ngắt, kênh file đã đóng) thì không thử lại
+                if (attempt >= RANGE_RETRIES || e instanceof FileNotFoundException || e instanceof ClosedChannelException
+                        || Thread.currentThread().isInterrupted()) throw e;
+                AppLogger.warning("Range " + index + " of #" + fileId + " failed, retrying: " + e.getMessage());
+            }
+        }
+    }
+
+    // Nơi nhận dữ liệu của một đoạn: buffer và vị trí trong file của byte đầu tiên trong buffer
+    private interface RangeSink {
+        void write(ByteBuffer data, long position) throws IOException;
+    }
+
+    /**
+     * Gửi một yêu cầu đoạn; expected khác null thì kiểm tra file trên server vẫn là file đó.
+     */
+    private static Stat requestRange(String serverIp, long fileId, long offset, long length, Stat expected,
+                                     RangeSink sink) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(serverIp, DOWNLOAD_PORT), 5000);
+            socket.setSoTimeout(60_000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+            out.writeUTF(COMMAND);
+            out.writeLong(fileId);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.flush();
+
+            if (!in.readBoolean()) throw new FileNotFoundException("File #" + fileId + " not found on server");
+            Stat stat = new Stat(in.readLong(), in.readUTF());
+            long count = in.readLong();
+            if (expected != null && !expected.equals(stat)) throw new IOException("File changed on server");
+            if (count != length) throw new IOException("Short range: " + count + " of " + length + " bytes");
+
+            byte[] buffer = new byte[64 * 1024];
+            long position = offset;
+            while (position < offset + count) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, offset + count - position));
+                if (read < 0) throw new EOFException("Connection closed at " + position);
+                sink.write(ByteBuffer.wrap(buffer, 0, read), position);
+                position += read;
+            }
+            return stat;
+        }
+    }
+
+    private static long rangeLength(int index, long size) {
+        return Math.min(RANGE_SIZE, size - index * RANGE_SIZE);
+    }
+
+    // Các đoạn đã xong theo file .ranges; rỗng nếu file đó thuộc về một phiên bản khác của file
+    private static BitSet loadJournal(File journal, String header) {
+        BitSet done = new BitSet();
+        if (!journal.isFile()) return done;
+        try (BufferedReader reader = new BufferedReader(new FileReader(journal))) {
+            if (!header.equals(reader.readLine())) return done;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) done.set(Integer.parseInt(line.trim()));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Dòng cuối có thể ghi dở khi ứng dụng bị tắt: giữ các đoạn đã đọc được
+            AppLogger.warning("Partial download journal " + journal.getName() + " is damaged: " + e.getMessage());
+        }
+        return done;
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
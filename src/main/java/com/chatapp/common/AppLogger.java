@@ -20,7 +20,7 @@ public class AppLogger {
                 private static final String FORMAT = "[%1$tF %1$tT] [%2$-7s] %3$s %n";
 
                 @Override
-                public synchronized String format(LogRecord record) {
+                public String format(LogRecord record) {
                     return String.format(FORMAT,
                             new java.util.Date(record.getMillis()),
                             record.getLevel().getLocalizedName(),
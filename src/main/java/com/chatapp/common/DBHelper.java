@@ -40,6 +40,8 @@ public class DBHelper {
             config.addDataSourceProperty("cachePrepStmts", "true");
             config.addDataSourceProperty("prepStmtCacheSize", "250");
             config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            // Cho phép driver MySQL gộp một lô INSERT thành câu lệnh nhiều dòng
+            config.addDataSourceProperty("rewriteBatchedStatements", "true");
 
             dataSource = new HikariDataSource(config);
             AppLogger.info("✅ Database Connection Pool started successfully.");
@@ -73,6 +75,40 @@ public class DBHelper {
         }
     }
 
+    /**
+     * Thực thi cùng một câu lệnh cho nhiều bộ tham số trong một lô (JDBC batch) và một transaction.
+     * Trả về khóa chính tự tăng của từng dòng theo thứ tự (0 nếu driver không trả về),
+     * hoặc null nếu lô đã bị rollback.
+     */
+    public static long[] executeBatchAndGetIds(String sql, List<Object[]> rows) {
+        try (Connection conn = get();
+             PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                for (Object[] row : rows) {
+                    for (int i = 0; i < row.length; i++) ps.setObject(i + 1, row[i]);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                long[] ids = new long[rows.size()];
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (int i = 0; i < ids.length && keys.next(); i++) ids[i] = keys.getLong(1);
+                }
+                conn.commit();
+                return ids;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error executing batch (" + rows.size() + " rows): " + sql, e);
+            return null;
+        }
+    }
+
     /**
      * Thực thi câu lệnh INSERT và lấy về khóa chính (ID) tự động tăng vừa được tạo ra (nếu có).
      */
@@ -0,0 +1,183 @@
+package com.chatapp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Giao thức khung nhị phân (phiên bản 2), được thương lượng sau khi đăng nhập.
+ * Mỗi khung: [varint độ dài thân][opcode 1 byte][varint số trường][mỗi trường: varint độ dài + byte UTF-8].
+ * Dữ liệu không cần escape và có thể chứa ký tự xuống dòng. Opcode lấy từ enum Opcode; 0 nghĩa là tên lệnh nằm ở trường đầu tiên.
+ */
+public final class FrameCodec {
+    public static final int VERSION = 2;
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Mã hóa một gói tin thành khung nhị phân hoàn chỉnh (gồm cả tiền tố độ dài).
+     */
+    public static byte[] encode(Packet packet) {
+        String[] parts = packet.parts();
+        int opcode = packet.opcode().code();
+        int firstField = opcode != 0 ? 1 : 0;
+        int fieldCount = parts.length - firstField;
+
+        byte[][] fields = new byte[fieldCount][];
+        int bodyLen = 1 + varintSize(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            fields[i] = parts[firstField + i].getBytes(StandardCharsets.UTF_8);
+            bodyLen += varintSize(fields[i].length) + fields[i].length;
+        }
+
+        byte[] frame = new byte[varintSize(bodyLen) + bodyLen];
+        int pos = putVarint(frame, 0, bodyLen);
+        frame[pos++] = (byte) opcode;
+        pos = putVarint(frame, pos, fieldCount);
+        for (byte[] f : fields) {
+            pos = putVarint(frame, pos, f.length);
+            System.arraycopy(f, 0, frame, pos, f.length);
+            pos += f.length;
+        }
+        return frame;
+    }
+
+    /**
+     * Ghi một gói tin dạng khung nhị phân ra luồng (không flush).
+     */
+    public static void write(OutputStream out, Packet packet) throws IOException {
+        out.write(encode(packet));
+    }
+
+    /**
+     * Đọc (chặn) một khung từ luồng vào. Trả về null nếu luồng kết thúc đúng ranh giới khung.
+     */
+    public static Packet read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        int len = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = in.read();
+            if (b < 0) throw new EOFException("Truncated frame header");
+            if (shift > 28) throw new IOException("Malformed frame length");
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        if (len <= 0 || len > MAX_FRAME_BYTES) throw new IOException("Invalid frame length: " + len);
+        byte[] body = in.readNBytes(len);
+        if (body.length < len) throw new EOFException("Truncated frame body");
+        return decodeBody(ByteBuffer.wrap(body), 0, len);
+    }
+
+    /**
+     * Đọc (chặn) một dòng văn bản UTF-8 kết thúc bằng '\n' (bỏ '\r' cuối) từ cùng luồng có thể chuyển sang khung
+     * nhị phân sau đó. Đọc từng byte nên không đọc lố sang dữ liệu phía sau. Trả về null khi hết luồng.
+     */
+    public static String readLine(InputStream in, ByteArrayOutputStream buffer, int maxBytes) throws IOException {
+        buffer.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (buffer.size() >= maxBytes) throw new IOException("Line exceeds " + maxBytes + " bytes");
+            buffer.write(b);
+        }
+        if (b == -1 && buffer.size() == 0) return null;
+        String line = buffer.toString(StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    /**
+     * Kiểm tra bộ đệm [pos, limit) đã chứa trọn một khung chưa.
+     * Trả về vị trí kết thúc khung, hoặc -1 nếu còn thiếu dữ liệu.
+     */
+    public static int frameEnd(ByteBuffer buf, int pos, int limit) throws IOException {
+        int len = 0;
+        int shift = 0;
+        int p = pos;
+        while (true) {
+            if (p >= limit) return -1;
+            int b = buf.get(p++) & 0xFF;
+            len |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 28) throw new IOException("Malformed frame length");
+        }
+        if (len <= 0 || len > MAX_FRAME_BYTES) throw new IOException("Invalid frame length: " + len);
+        return limit - p >= len ? p + len : -1;
+    }
+
+    /**
+     * Giải mã một khung hoàn chỉnh nằm trong [pos, end) của bộ đệm (end lấy từ frameEnd).
+     */
+    public static Packet decode(ByteBuffer buf, int pos, int end) throws IOException {
+        int p = pos;
+        while ((buf.get(p++) & 0x80) != 0) {
+            // bỏ qua tiền tố độ dài
+        }
+        return decodeBody(buf, p, end);
+    }
+
+    private static Packet decodeBody(ByteBuffer buf, int pos, int end) throws IOException {
+        int[] cursor = {pos};
+        int code = buf.get(cursor[0]++) & 0xFF;
+        int fieldCount = readVarint(buf, cursor, end);
+        Opcode opcode = Opcode.fromCode(code);
+        if (opcode == null) throw new IOException("Unknown opcode: " + code);
+        if (fieldCount < 0 || fieldCount > end - cursor[0] + 1) throw new IOException("Invalid field count");
+
+        boolean inlineCommand = opcode == Opcode.UNKNOWN;
+        if (inlineCommand && fieldCount == 0) throw new IOException("Missing command");
+        String[] parts = new String[inlineCommand ? fieldCount : fieldCount + 1];
+        int idx = 0;
+        if (!inlineCommand) parts[idx++] = opcode.name();
+        for (int i = 0; i < fieldCount; i++) {
+            int len = readVarint(buf, cursor, end);
+            if (len < 0 || cursor[0] + len > end) throw new IOException("Field exceeds frame");
+            byte[] bytes = new byte[len];
+            buf.get(cursor[0], bytes, 0, len);
+            cursor[0] += len;
+            parts[idx++] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        // Lệnh gửi kèm dạng chuỗi vẫn được tra lại, phòng khi phía gửi dùng bảng opcode cũ hơn
+        return Packet.wrap(inlineCommand ? Opcode.of(parts[0]) : opcode, parts);
+    }
+
+    private static int readVarint(ByteBuffer buf, int[] cursor, int end) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (cursor[0] >= end) throw new IOException("Truncated varint");
+            int b = buf.get(cursor[0]++) & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+            if (shift > 28) throw new IOException("Malformed varint");
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarint(byte[] dst, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+}
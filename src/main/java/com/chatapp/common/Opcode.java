@@ -0,0 +1,97 @@
+package com.chatapp.common;
+
+/**
+ * Các lệnh của giao thức chat. Tên hằng chính là tên lệnh trên dòng văn bản,
+ * còn thứ tự khai báo là opcode trong khung nhị phân (FrameCodec).
+ * Chỉ được thêm lệnh mới vào cuối danh sách để không đổi opcode đã phát hành.
+ */
+public enum Opcode {
+    // Lệnh không có trong bảng (tên lệnh được giữ nguyên trong gói tin)
+    UNKNOWN,
+    LOGIN(true), REGISTER(true), RESET_PASSWORD(true),
+    LOGIN_SUCCESS, LOGIN_FAIL, REGISTER_SUCCESS, REGISTER_FAIL, RESET_SUCCESS, RESET_FAIL,
+    ERROR, SYSTEM, BROADCAST, PRIVATE, GROUP,
+    FILE_PRIVATE, FILE_GROUP, FILE_CONTENT, EMOJI_PRIVATE, EMOJI_GROUP,
+    VOICE_PRIVATE, VOICE_GROUP,
+    CREATE_GROUP, JOIN_GROUP, LEAVE_GROUP, DISSOLVE_GROUP,
+    GROUP_LIST, GROUP_CREATED, GROUP_JOINED, GROUP_LEFT, GROUP_DISSOLVED,
+    USER_LIST, USER_JOINED, USER_LEFT,
+    REQ_HISTORY, HISTORY_DATA, REQ_FILES, FILES_DATA, DOWNLOAD_ERROR,
+    TYPING, WEBRTC(true), CALL_REQ, CALL_RES, CALL_END, CALL_LOG,
+    SWITCH_PROTO, PROTO_OK,
+    REQ_HISTORY_PAGE, HISTORY_PAGE, REQ_FILES_PAGE, FILES_PAGE,
+    RETRACT,
+    RESUME(true), SESSION_TOKEN,
+    PRESENCE;
+
+    private static final Opcode[] VALUES = values();
+    // Bảng băm địa chỉ mở (kích thước lũy thừa của 2), tra theo vùng ký tự mà không cần tạo chuỗi con
+    private static final Opcode[] TABLE = new Opcode[128];
+    private static final int MASK = TABLE.length - 1;
+
+    static {
+        for (int i = 1; i < VALUES.length; i++) {
+            String name = VALUES[i].name();
+            int slot = hash(name, 0, name.length()) & MASK;
+            while (TABLE[slot] != null) slot = (slot + 1) & MASK;
+            TABLE[slot] = VALUES[i];
+        }
+    }
+
+    // Trường cuối giữ nguyên văn khi ở dạng văn bản (JSON của WEBRTC, mật khẩu của lệnh xác thực)
+    private final boolean rawTail;
+
+    Opcode() {
+        this(false);
+    }
+
+    Opcode(boolean rawTail) {
+        this.rawTail = rawTail;
+    }
+
+    public boolean hasRawTail() {
+        return rawTail;
+    }
+
+    /**
+     * Opcode trên khung nhị phân (0 nghĩa là lệnh không có trong bảng).
+     */
+    public int code() {
+        return ordinal();
+    }
+
+    /**
+     * Tra opcode theo mã trong khung nhị phân; trả về null nếu mã không hợp lệ.
+     */
+    public static Opcode fromCode(int code) {
+        return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+    }
+
+    /**
+     * Tra opcode theo tên lệnh; trả về UNKNOWN nếu không có trong bảng.
+     */
+    public static Opcode of(String command) {
+        return lookup(command, 0, command.length());
+    }
+
+    /**
+     * Tra opcode theo tên lệnh nằm trong line[start, end) mà không cấp phát chuỗi mới.
+     */
+    public static Opcode lookup(String line, int start, int end) {
+        int len = end - start;
+        int slot = hash(line, start, end) & MASK;
+        Opcode op;
+        while ((op = TABLE[slot]) != null) {
+            String name = op.name();
+            if (name.length() == len && line.regionMatches(start, name, 0, len)) return op;
+            slot = (slot + 1) & MASK;
+        }
+        return UNKNOWN;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,166 @@
+package com.chatapp.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Một gói tin của giao thức chat: tên lệnh và các trường dữ liệu ở dạng gốc (chưa escape).
+ * Cùng một gói có thể được mã hóa thành dòng văn bản "LỆNH|a|b|c" (giao thức cũ) hoặc khung nhị phân (FrameCodec).
+ */
+public final class Packet {
+    public static final String ESCAPED_PIPE = "&#124;";
+
+    private final Opcode opcode;
+    // parts[0] là tên lệnh, các phần tử sau là trường dữ liệu
+    private final String[] parts;
+    // Bản mã hóa được tạo một lần rồi dùng chung cho mọi người nhận (gói tin bất biến)
+    private volatile byte[] textBytes;
+    private volatile byte[] frameBytes;
+
+    private Packet(Opcode opcode, String[] parts) {
+        this.opcode = opcode;
+        this.parts = parts;
+    }
+
+    /**
+     * Tạo gói tin từ tên lệnh và các trường (giá trị không phải chuỗi được chuyển bằng String.valueOf).
+     */
+    public static Packet of(String command, Object... fields) {
+        String[] parts = new String[fields.length + 1];
+        parts[0] = command;
+        for (int i = 0; i < fields.length; i++) parts[i + 1] = String.valueOf(fields[i]);
+        return new Packet(Opcode.of(command), parts);
+    }
+
+    /**
+     * Tạo gói tin từ mảng đã tách sẵn (phần tử đầu là tên lệnh). Mảng được dùng trực tiếp, không sao chép.
+     */
+    static Packet wrap(Opcode opcode, String[] parts) {
+        return new Packet(opcode, parts);
+    }
+
+    public String command() {
+        return parts[0];
+    }
+
+    /**
+     * Lệnh của gói đã được tra sẵn khi phân tích, dùng cho switch thay vì so sánh chuỗi.
+     */
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    /**
+     * Lấy phần tử thứ i (0 là tên lệnh, 1 là trường đầu tiên...).
+     */
+    public String get(int i) {
+        return parts[i];
+    }
+
+    /**
+     * Số phần tử của gói, tính cả tên lệnh (tương đương độ dài mảng sau khi split theo '|').
+     */
+    public int size() {
+        return parts.length;
+    }
+
+    /**
+     * Mảng các phần tử của gói (phần tử đầu là tên lệnh). Không được sửa đổi mảng trả về.
+     */
+    public String[] parts() {
+        return parts;
+    }
+
+    /**
+     * Gói tin tạm thời, có thể bỏ qua khi người nhận không theo kịp (trạng thái đang gõ).
+     */
+    public boolean isEphemeral() {
+        return opcode == Opcode.TYPING;
+    }
+
+    /**
+     * Ước lượng kích thước gói (byte) để giới hạn hàng đợi gửi mà không cần mã hóa trước.
+     */
+    public int estimatedSize() {
+        int size = 0;
+        for (String p : parts) size += p.length() + 1;
+        return size;
+    }
+
+    // === MÃ HÓA VĂN BẢN ===
+
+    /**
+     * Phân tích một dòng văn bản "LỆNH|a|b|c" thành gói tin, đồng thời bỏ escape '&#124;' trong các trường.
+     * Tên lệnh được tra trực tiếp trên dòng (không tạo chuỗi con); lệnh có trường cuối nguyên văn
+     * (Opcode.hasRawTail) chỉ được tách tối đa 3 phần.
+     */
+    public static Packet fromText(String line) {
+        int first = line.indexOf('|');
+        Opcode opcode = Opcode.lookup(line, 0, first < 0 ? line.length() : first);
+        String command = opcode != Opcode.UNKNOWN ? opcode.name() : (first < 0 ? line : line.substring(0, first));
+        int limit = opcode.hasRawTail() ? 3 : -1;
+
+        int count = 1;
+        for (int i = first; i >= 0 && (limit < 0 || count < limit); i = line.indexOf('|', i + 1)) count++;
+
+        String[] parts = new String[count];
+        parts[0] = command;
+        int start = first + 1;
+        for (int idx = 1; idx < count; idx++) {
+            boolean last = idx == count - 1;
+            int end = last ? -1 : line.indexOf('|', start);
+            if (last && limit > 0) {
+                // Trường cuối giữ nguyên văn
+                parts[idx] = line.substring(start);
+                break;
+            }
+            if (end < 0) end = line.length();
+            String field = line.substring(start, end);
+            parts[idx] = field.indexOf('&') >= 0 ? field.replace(ESCAPED_PIPE, "|") : field;
+            start = end + 1;
+        }
+        return new Packet(opcode, parts);
+    }
+
+    /**
+     * Mã hóa gói thành một dòng văn bản (không gồm ký tự xuống dòng), escape '|' trong các trường.
+     */
+    public String toText() {
+        int rawTail = opcode.hasRawTail() ? parts.length - 1 : -1;
+        StringBuilder sb = new StringBuilder(estimatedSize() + 16);
+        sb.append(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            sb.append('|');
+            String field = parts[i];
+            if (i != rawTail && field.indexOf('|') >= 0) {
+                sb.append(field.replace("|", ESCAPED_PIPE));
+            } else {
+                sb.append(field);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Mã hóa gói thành dòng văn bản UTF-8 kết thúc bằng '\n', sẵn sàng ghi ra socket.
+     * Kết quả được lưu lại và dùng chung, không được sửa đổi mảng trả về.
+     */
+    public byte[] toTextBytes() {
+        byte[] bytes = textBytes;
+        if (bytes == null) textBytes = bytes = (toText() + "\n").getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    /**
+     * Mã hóa gói thành khung nhị phân (FrameCodec). Kết quả được lưu lại và dùng chung, không được sửa đổi mảng trả về.
+     */
+    public byte[] toFrameBytes() {
+        byte[] bytes = frameBytes;
+        if (bytes == null) frameBytes = bytes = FrameCodec.encode(this);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
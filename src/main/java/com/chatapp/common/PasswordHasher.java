@@ -4,11 +4,34 @@ import at.favre.lib.crypto.bcrypt.BCrypt;
 
 public class PasswordHasher {
 
+    public static final int DEFAULT_COST = 12;
+
     /**
      * Băm mật khẩu dạng văn bản thô sử dụng thuật toán BCrypt với độ phức tạp (cost) là 12 để lưu trữ an toàn.
      */
     public static String hashPassword(String password) {
-        return BCrypt.withDefaults().hashToString(12, password.toCharArray());
+        return hashPassword(password, DEFAULT_COST);
+    }
+
+    /**
+     * Băm mật khẩu bằng BCrypt với cost cho trước.
+     */
+    public static String hashPassword(String password, int cost) {
+        return BCrypt.withDefaults().hashToString(cost, password.toCharArray());
+    }
+
+    /**
+     * Đọc cost từ chuỗi băm dạng $2a$12$...; trả về -1 nếu chuỗi không đúng định dạng.
+     */
+    public static int costOf(String storedHash) {
+        if (storedHash == null || storedHash.length() < 7 || storedHash.charAt(0) != '$') return -1;
+        int sep = storedHash.indexOf('$', 1);
+        if (sep < 0 || sep + 3 > storedHash.length()) return -1;
+        try {
+            return Integer.parseInt(storedHash.substring(sep + 1, sep + 3));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
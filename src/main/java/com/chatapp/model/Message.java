@@ -12,6 +12,7 @@ public class Message implements Serializable {
     private String fileName;
     private Long fileSize;
     private String fileType;
+    private long fileId; // id file trên server (0 = chưa biết, tải theo tên)
     private Double uploadProgress;
     private MessageStatus status;
 
@@ -117,6 +118,14 @@ public class Message implements Serializable {
         return this;
     }
 
+    /**
+     * Gán id file do server cấp và trả về chính đối tượng đó (Fluent API).
+     */
+    public Message withFileId(long fileId) {
+        this.fileId = fileId;
+        return this;
+    }
+
     // --- ENUM ---
     public enum MessageStatus {
         SENDING, SENT, DELIVERED, READ, FAILED
@@ -155,6 +164,10 @@ public class Message implements Serializable {
         return fileType;
     }
 
+    public long getFileId() {
+        return fileId;
+    }
+
     public Double getUploadProgress() {
         return uploadProgress;
     }
@@ -196,6 +209,10 @@ public class Message implements Serializable {
         this.fileType = fileType;
     }
 
+    public void setFileId(long fileId) {
+        this.fileId = fileId;
+    }
+
     public void setUploadProgress(Double uploadProgress) {
         this.uploadProgress = uploadProgress;
     }
@@ -0,0 +1,217 @@
+package com.chatapp.server;
+
+import com.chatapp.common.PasswordHasher;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Xác thực người dùng tách khỏi luồng kết nối: các lệnh LOGIN/REGISTER/RESET_PASSWORD/RESUME chạy trên một pool
+ * có giới hạn (hàng đợi đầy thì từ chối ngay thay vì để BCrypt chiếm hết CPU khi hàng nghìn client kết nối lại),
+ * kèm giới hạn số lần thử theo IP và theo tài khoản.
+ * Sau khi đăng nhập, client nhận một token ký HMAC có hạn ngắn để lần kết nối lại tiếp theo bỏ qua BCrypt.
+ */
+final class AuthService {
+    private static final String HMAC = "HmacSHA256";
+
+    private final ThreadPoolExecutor executor;
+    private final int cost;
+    private final long tokenTtlMillis;
+    private final SecretKeySpec tokenKey;
+    private final AttemptCounter ipAttempts;
+    private final AttemptCounter userFailures;
+
+    AuthService(int threads, int queueSize, int cost, long tokenTtlSeconds, byte[] tokenSecret,
+                int maxAttemptsPerIp, int maxFailuresPerUser, long windowSeconds) {
+        int count = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(count, count, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread t = new Thread(r, "auth-" + seq.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.cost = cost;
+        this.tokenTtlMillis = TimeUnit.SECONDS.toMillis(tokenTtlSeconds);
+        this.tokenKey = new SecretKeySpec(tokenSecret, HMAC);
+        long windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+        this.ipAttempts = new AttemptCounter(maxAttemptsPerIp, windowMillis);
+        this.userFailures = new AttemptCounter(maxFailuresPerUser, windowMillis);
+    }
+
+    /**
+     * Tạo AuthService theo các khóa server.auth.* trong server.properties.
+     * Nếu không cấu hình server.auth.tokenSecret, khóa ký được sinh ngẫu nhiên (token mất hiệu lực khi Server khởi động lại).
+     */
+    static AuthService fromConfig() {
+        String secret = ServerConfig.getString("server.auth.tokenSecret", "");
+        byte[] key;
+        if (secret.isEmpty()) {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        return new AuthService(
+                ServerConfig.getInt("server.auth.threads", 0),
+                ServerConfig.getInt("server.auth.queueSize", 256),
+                ServerConfig.getInt("server.auth.bcryptCost", PasswordHasher.DEFAULT_COST),
+                ServerConfig.getLong("server.auth.resumeTtlSeconds", 600),
+                key,
+                ServerConfig.getInt("server.auth.maxAttemptsPerIp", 30),
+                ServerConfig.getInt("server.auth.maxFailuresPerUser", 5),
+                ServerConfig.getLong("server.auth.throttleWindowSeconds", 60));
+    }
+
+    /**
+     * Xếp một lệnh xác thực vào pool; trả về false nếu hàng đợi đã đầy (Server quá tải).
+     */
+    boolean submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Ghi nhận một lần thử cần BCrypt từ ip cho tài khoản user (có thể null);
+     * trả về false nếu ip hoặc tài khoản đang bị tạm khóa.
+     */
+    boolean tryAcquire(String ip, String user) {
+        if (user != null && userFailures.isBlocked(user)) return false;
+        return ip == null || ipAttempts.record(ip);
+    }
+
+    /**
+     * Ghi nhận đăng nhập sai cho tài khoản (tính vào giới hạn theo tài khoản).
+     */
+    void recordFailure(String user) {
+        userFailures.record(user);
+    }
+
+    void recordSuccess(String user) {
+        userFailures.reset(user);
+    }
+
+    /**
+     * Cost BCrypt hiện hành cho mật khẩu mới.
+     */
+    int cost() {
+        return cost;
+    }
+
+    /**
+     * Hash đang lưu có cần băm lại theo cost hiện hành hay không.
+     */
+    boolean needsRehash(String storedHash) {
+        return PasswordHasher.costOf(storedHash) != cost;
+    }
+
+    /**
+     * Tạo token nối lại phiên cho user; token gắn với hash mật khẩu hiện tại nên đổi mật khẩu là token cũ mất hiệu lực.
+     */
+    String issueToken(String user, String storedHash) {
+        long expiry = System.currentTimeMillis() + tokenTtlMillis;
+        return expiry + "." + sign(user, expiry, storedHash);
+    }
+
+    long tokenTtlSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(tokenTtlMillis);
+    }
+
+    /**
+     * Kiểm tra token nối lại phiên: đúng chữ ký và còn hạn.
+     */
+    boolean verifyToken(String user, String token, String storedHash) {
+        if (token == null || storedHash == null) return false;
+        int dot = token.indexOf('.');
+        if (dot <= 0) return false;
+        long expiry;
+        try {
+            expiry = Long.parseLong(token.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expiry < System.currentTimeMillis()) return false;
+        byte[] expected = sign(user, expiry, storedHash).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Số lệnh xác thực đang chờ trong hàng đợi.
+     */
+    int pending() {
+        return executor.getQueue().size();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private String sign(String user, long expiry, String storedHash) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(tokenKey);
+            byte[] sig = mac.doFinal((user + '\n' + expiry + '\n' + storedHash).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(sig);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Đếm số lần theo khóa trong cửa sổ thời gian cố định.
+     */
+    private static final class AttemptCounter {
+        private final int max;
+        private final long windowMillis;
+        private final Map<String, long[]> windows = new ConcurrentHashMap<>();
+
+        AttemptCounter(int max, long windowMillis) {
+            this.max = max;
+            this.windowMillis = windowMillis;
+        }
+
+        // Tăng bộ đếm; trả về false nếu đã vượt giới hạn
+        boolean record(String key) {
+            if (max <= 0) return true;
+            long now = System.currentTimeMillis();
+            if (windows.size() > 10_000) windows.values().removeIf(w -> now - w[0] >= windowMillis);
+            long[] w = windows.computeIfAbsent(key, k -> new long[]{now, 0});
+            synchronized (w) {
+                if (now - w[0] >= windowMillis) {
+                    w[0] = now;
+                    w[1] = 0;
+                }
+                return ++w[1] <= max;
+            }
+        }
+
+        boolean isBlocked(String key) {
+            if (max <= 0) return false;
+            long[] w = windows.get(key);
+            if (w == null) return false;
+            synchronized (w) {
+                return System.currentTimeMillis() - w[0] < windowMillis && w[1] >= max;
+            }
+        }
+
+        void reset(String key) {
+            windows.remove(key);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.chatapp.server;
 
+import com.chatapp.model.Message;
 import com.chatapp.ui.ChatPanel;
 import com.chatapp.ui.ControlPanel;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -9,13 +12,21 @@ import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class ChatServer extends Application {
+/**
+ * Console quản trị JavaFX: chạy lõi Server và quan sát nó qua ServerListener.
+ * Để chạy không giao diện (máy chủ, container), dùng ChatServerMain.
+ */
+public class ChatServer extends Application implements ServerListener {
 
     // Components
     private BorderPane mainLayout;
@@ -31,9 +42,25 @@ public class ChatServer extends Application {
     private ChatServerController controller;
     private TextField broadcastField;
 
+    // Giao diện chỉ nhận bản tóm tắt theo chu kỳ: log và cờ "cần làm mới" được gom lại rồi vẽ một lần
+    private static final int MAX_PENDING_LOGS = 2000;
+    private static final int MAX_LOG_CHARS = 200_000;
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private final ConcurrentLinkedQueue<String> pendingLogs = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingLogCount = new AtomicInteger();
+    private final AtomicInteger droppedLogCount = new AtomicInteger();
+    // Tin nhóm / thông báo chờ đưa vào khung chat: {tên nhóm hoặc null nếu là broadcast, nội dung}
+    private final ConcurrentLinkedQueue<String[]> pendingChat = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingChatCount = new AtomicInteger();
+    private final AtomicBoolean clientsDirty = new AtomicBoolean();
+    private final AtomicBoolean groupsDirty = new AtomicBoolean();
+    private volatile boolean serverRunning = false;
+    private Timeline uiRefresher;
+
     @Override
     public void start(Stage stage) {
-        networkManager = new ServerNetworkManager(this);
+        networkManager = new ServerNetworkManager();
+        networkManager.addListener(this);
         controller = new ChatServerController(this, networkManager);
 
         // 1. Root Layout
@@ -109,37 +136,139 @@ public class ChatServer extends Application {
         stage.setOnCloseRequest(e -> stopServer());
         stage.show();
 
+        uiRefresher = new Timeline(new KeyFrame(
+                Duration.millis(ServerConfig.getInt("server.ui.refreshMillis", 250)), e -> flushUi()));
+        uiRefresher.setCycleCount(Timeline.INDEFINITE);
+        uiRefresher.play();
+
         Platform.runLater(() -> {
             networkManager.startServer();
             FileTransferServer.start();
             FileTransferServer.startDownloadServer();
-
-            statusLabel.setText("● Server Running (Port 5555, 5556, 5557)");
-            statusLabel.setStyle("-fx-text-fill: green; -fx-font-weight: bold;");
+            serverRunning = true;
         });
     }
 
     // === BRIDGE METHODS ===
 
+    @Override
+    public void onLog(String message) {
+        log(message);
+    }
+
+    @Override
+    public void onClientsChanged() {
+        updateClientTable();
+    }
+
+    @Override
+    public void onGroupsChanged() {
+        updateGroupTable();
+    }
+
+    @Override
+    public void onBroadcast(String message) {
+        queueChat(null, message);
+    }
+
+    @Override
+    public void onGroupMessage(String groupName, String message) {
+        queueChat(groupName, message);
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+        Platform.runLater(() -> closePrivateChatTab(username));
+    }
+
+    @Override
+    public void onGroupDissolved(String groupName) {
+        Platform.runLater(() -> closeGroupChatTab(groupName));
+    }
+
+    @Override
+    public void onServerStateChanged(boolean running) {
+        Platform.runLater(() -> getControlPanel().setRunning(running));
+    }
+
+    /**
+     * Ghi một dòng log lên console quản trị. An toàn khi gọi từ bất kỳ luồng nào:
+     * dòng log chỉ được xếp hàng, việc vẽ lên TextArea diễn ra theo chu kỳ trong flushUi().
+     */
     public void log(String msg) {
-        Platform.runLater(() -> {
-            String time = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-            if (logArea != null) {
-                logArea.appendText("[" + time + "] " + msg + "\n");
-            }
-        });
+        String time = LocalDateTime.now().format(LOG_TIME);
+        pendingLogs.add("[" + time + "] " + msg + "\n");
+        if (pendingLogCount.incrementAndGet() > MAX_PENDING_LOGS && pendingLogs.poll() != null) {
+            pendingLogCount.decrementAndGet();
+            droppedLogCount.incrementAndGet();
+        }
+    }
+
+    // Cùng giới hạn với log: giao diện chậm thì bỏ tin cũ nhất thay vì giữ vô hạn
+    private void queueChat(String groupName, String message) {
+        pendingChat.add(new String[]{groupName, message});
+        if (pendingChatCount.incrementAndGet() > MAX_PENDING_LOGS && pendingChat.poll() != null) {
+            pendingChatCount.decrementAndGet();
+        }
     }
 
+    /**
+     * Đánh dấu bảng client cần làm mới (được vẽ lại ở chu kỳ giao diện kế tiếp).
+     */
     public void updateClientTable() {
-        Platform.runLater(() -> {
-            if (clientsPanelRef != null) clientsPanelRef.refreshClients(networkManager.getClients());
-        });
+        clientsDirty.set(true);
     }
 
+    /**
+     * Đánh dấu bảng nhóm cần làm mới (được vẽ lại ở chu kỳ giao diện kế tiếp).
+     */
     public void updateGroupTable() {
-        Platform.runLater(() -> {
-            if (groupsPanelRef != null) groupsPanelRef.refreshGroups();
-        });
+        groupsDirty.set(true);
+    }
+
+    /**
+     * Chạy trên luồng JavaFX theo chu kỳ: gom toàn bộ log đang chờ thành một lần append,
+     * làm mới các bảng nếu có thay đổi và cập nhật thanh trạng thái.
+     */
+    private void flushUi() {
+        if (!pendingLogs.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = pendingLogs.poll()) != null) {
+                pendingLogCount.decrementAndGet();
+                sb.append(line);
+            }
+            int dropped = droppedLogCount.getAndSet(0);
+            if (dropped > 0) sb.append("... (").append(dropped).append(" log lines skipped)\n");
+            if (logArea != null) {
+                logArea.appendText(sb.toString());
+                int excess = logArea.getLength() - MAX_LOG_CHARS;
+                if (excess > 0) logArea.deleteText(0, excess);
+            }
+        }
+
+        String[] chat;
+        while ((chat = pendingChat.poll()) != null) {
+            pendingChatCount.decrementAndGet();
+            if (chat[0] != null) {
+                appendToGroupChat(chat[0], chat[1]);
+            } else if (getChatPanels().containsKey("BROADCAST")) {
+                getChatPanels().get("BROADCAST").appendMessage(Message.createSystemMessage(chat[1]));
+            }
+        }
+
+        if (clientsDirty.getAndSet(false) && clientsPanelRef != null) {
+            clientsPanelRef.refreshClients(networkManager.getClients());
+            getControlPanel().updateClientCount(networkManager.getClients().size());
+        }
+        if (groupsDirty.getAndSet(false) && groupsPanelRef != null) {
+            groupsPanelRef.refreshGroups();
+        }
+
+        if (serverRunning) {
+            statusLabel.setText("● Server Running (Port 5555, 5556, 5557) | " + ServerMetrics.summary(networkManager));
+            statusLabel.setStyle("-fx-text-fill: green; -fx-font-weight: bold;");
+        }
     }
 
     public ServerNetworkManager getNetworkManager() {
@@ -171,6 +300,8 @@ public class ChatServer extends Application {
     }
 
     public void stopServer() {
+        serverRunning = false;
+        if (uiRefresher != null) uiRefresher.stop();
         if (networkManager != null) networkManager.stopServer();
         Platform.exit();
         System.exit(0);
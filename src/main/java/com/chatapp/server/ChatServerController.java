@@ -23,7 +23,7 @@ public class ChatServerController {
 
         Optional<ButtonType> result = confirm.showAndWait();
         if (result.isPresent() && result.get() == ButtonType.OK) {
-            networkManager.handleDissolveGroup(groupName);
+            networkManager.requestDissolveGroup(groupName);
             showInfo("Group '" + groupName + "' has been dissolved and deleted from database.");
         }
     }
@@ -0,0 +1,63 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.DBHelper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Điểm khởi động Server không giao diện: chạy cổng chat, upload và download mà không nạp JavaFX.
+ * Log vận hành (kể cả các chỉ số ServerMetrics theo chu kỳ server.metrics.logSeconds) được ghi qua AppLogger;
+ * dừng Server bằng tín hiệu tắt tiến trình (Ctrl+C, SIGTERM).
+ */
+public final class ChatServerMain {
+
+    private ChatServerMain() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ServerNetworkManager networkManager = new ServerNetworkManager();
+        networkManager.addListener(new ServerListener() {
+            @Override
+            public void onLog(String message) {
+                AppLogger.info(message);
+            }
+        });
+
+        ScheduledExecutorService metricsLog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-log");
+            t.setDaemon(true);
+            return t;
+        });
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            metricsLog.shutdownNow();
+            networkManager.stopServer();
+            try {
+                DBHelper.closePool();
+            } catch (LinkageError e) {
+                // Pool chưa từng khởi tạo được (VD: không kết nối được DB lúc khởi động)
+            }
+            stopped.countDown();
+        }, "server-shutdown"));
+
+        networkManager.startServer();
+        FileTransferServer.start();
+        FileTransferServer.startDownloadServer();
+
+        long period = ServerConfig.getLong("server.metrics.logSeconds", 60);
+        if (period > 0) {
+            metricsLog.scheduleAtFixedRate(() -> logMetrics(networkManager), period, period, TimeUnit.SECONDS);
+        }
+
+        stopped.await();
+    }
+
+    // Cùng các chỉ số với thanh trạng thái của giao diện quản trị (ChatServer), cho Server chạy không giao diện
+    private static void logMetrics(ServerNetworkManager networkManager) {
+        AppLogger.info("Metrics | " + ServerMetrics.summary(networkManager));
+    }
+}
@@ -2,177 +2,243 @@ package com.chatapp.server;
 
 import com.chatapp.common.AppLogger;
 import com.chatapp.common.DBHelper;
+import com.chatapp.common.FrameCodec;
+import com.chatapp.common.Opcode;
+import com.chatapp.common.Packet;
 import com.chatapp.common.PasswordHasher;
-import javafx.application.Platform;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.file.Files;
 import java.sql.SQLException;
-import java.util.Base64;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-class ClientHandler implements Runnable {
-    private final Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private String username;
-    private final ChatServer server;
-    private final ServerNetworkManager networkManager;
-    private boolean isAuthenticated = false;
-
-    // Thư mục chứa file upload trên Server
-    private static final String UPLOAD_DIR = "uploads/";
-
-    public ClientHandler(Socket socket, ChatServer server, ServerNetworkManager networkManager) {
-        this.socket = socket;
-        this.server = server;
+/**
+ * Phiên làm việc của một client trên Server, độc lập với cách truyền tải (socket chặn hoặc NIO).
+ * Lớp con chỉ cần cung cấp cách đọc dòng lệnh, cách ghi gói tin ra và cách đóng kết nối;
+ * toàn bộ giao thức LOGIN/REGISTER/RESET_PASSWORD, thương lượng giao thức nhị phân và việc chuyển lệnh
+ * sang DispatchEngine nằm ở đây.
+ */
+abstract class ClientHandler {
+    static final int OUTBOUND_MAX_PACKETS = ServerConfig.getInt("server.outbound.maxPackets", 1024);
+    static final long OUTBOUND_MAX_BYTES = ServerConfig.getLong("server.outbound.maxBytes", 8L * 1024 * 1024);
+    // Độ dài tối đa của một dòng lệnh / khung nhận từ client
+    static final int MAX_LINE_BYTES = ServerConfig.getInt("server.maxLineBytes", 16 * 1024 * 1024);
+    // Kích thước tối đa của một lần ghi gộp nhiều gói
+    static final int WRITE_BATCH_BYTES = 64 * 1024;
+    // Server có mời client chuyển sang khung nhị phân sau khi đăng nhập hay không
+    static final boolean OFFER_BINARY = ServerConfig.getBoolean("server.protocol.binary", true);
+
+    protected volatile String username;
+    protected final ServerNetworkManager networkManager;
+    protected volatile boolean isAuthenticated = false;
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+    private final AtomicBoolean authInFlight = new AtomicBoolean(false);
+    protected final OutboundQueue outbound = new OutboundQueue(OUTBOUND_MAX_PACKETS, OUTBOUND_MAX_BYTES);
+    // Đã gửi LOGIN_SUCCESS kèm phiên bản 2, client được phép gửi SWITCH_PROTO
+    protected volatile boolean binaryOffered = false;
+    // Client đã chuyển sang giao thức 2 (SWITCH_PROTO), tức là hiểu các gói mới như PRESENCE
+    private volatile boolean protocolV2 = false;
+    // Chiều gửi đã chuyển sang nhị phân (chỉ writer của kết nối đọc/ghi)
+    private boolean binaryOut = false;
+    // Gói xác nhận chuyển giao thức: writer gửi nó dạng văn bản rồi chuyển sang nhị phân ngay sau đó
+    private final Packet protoAck = Packet.of("PROTO_OK", FrameCodec.VERSION);
+
+    protected ClientHandler(ServerNetworkManager networkManager) {
         this.networkManager = networkManager;
     }
 
-    @Override
-    public void run() {
-        try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), java.nio.charset.StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), java.nio.charset.StandardCharsets.UTF_8), true);
-
-            // === VÒNG LẶP XÁC THỰC ===
-            while (!isAuthenticated) {
-                String request = in.readLine();
-                if (request == null) return;
-
-                String[] parts = request.split("\\|", 3);
-                String command = parts[0];
-
-                if ("LOGIN".equals(command) && parts.length == 3) {
-                    handleLogin(parts[1], parts[2]);
-                } else if ("REGISTER".equals(command) && parts.length == 3) {
-                    handleRegister(parts[1], parts[2]);
-                } else if ("RESET_PASSWORD".equals(command) && parts.length == 3) {
-                    handleResetPassword(parts[1], parts[2]);
-                } else {
-                    out.println("ERROR|Vui lòng đăng nhập trước!");
-                }
-            }
+    /**
+     * Xử lý một gói tin nhận được từ client: trước khi đăng nhập chỉ chấp nhận các lệnh xác thực,
+     * sau khi đăng nhập thì chuyển tiếp sang bộ điều phối.
+     */
+    protected void handlePacket(Packet packet) {
+        if (isAuthenticated) {
+            networkManager.dispatchFromClient(username, packet);
+        } else {
+            handleAuthCommand(packet);
+        }
+    }
 
-            // === VÒNG LẶP XỬ LÝ TIN NHẮN CHÍNH ===
-            String message;
-            while ((message = in.readLine()) != null) {
-                final String finalMsg = message;
-                String[] parts = finalMsg.split("\\|", -1);
-
-                if (parts.length > 0) {
-                    String command = parts[0];
-
-                    // --- XỬ LÝ LỊCH SỬ ---
-                    if ("REQ_HISTORY".equals(command) && parts.length >= 3) {
-                        String type = parts[1];
-                        String target = parts[2];
-                        Platform.runLater(() -> networkManager.handleHistoryRequest(username, type, target));
-                        continue;
-                    } else if ("REQ_FILES".equals(command) && parts.length >= 2) {
-                        String target = parts[1];
-                        Platform.runLater(() -> networkManager.handleFileRequest(username, target));
-                        continue;
+    /**
+     * Nếu gói là SWITCH_PROTO hợp lệ thì xếp PROTO_OK vào hàng đợi gửi và trả về true; tầng truyền tải phải
+     * đọc mọi byte tiếp theo của kết nối dưới dạng khung nhị phân. Phải gọi ngay trên luồng đọc.
+     */
+    protected boolean acceptProtocolSwitch(Packet packet) {
+        if (packet.opcode() != Opcode.SWITCH_PROTO) return false;
+        if (!binaryOffered || packet.size() < 2 || !String.valueOf(FrameCodec.VERSION).equals(packet.get(1))) {
+            send(Packet.of("ERROR", "Phiên bản giao thức không được hỗ trợ"));
+            return false;
+        }
+        send(protoAck);
+        protocolV2 = true;
+        return true;
+    }
+
+    /**
+     * true nếu client đã thương lượng giao thức 2; client cũ chỉ hiểu USER_JOINED/USER_LEFT thay cho PRESENCE.
+     */
+    boolean isProtocolV2() {
+        return protocolV2;
+    }
+
+    /**
+     * Mã hóa gói theo giao thức hiện tại của chiều gửi (chỉ được gọi bởi writer của kết nối).
+     */
+    protected byte[] encode(Packet packet) {
+        if (!binaryOut) {
+            byte[] bytes = packet.toTextBytes();
+            if (packet == protoAck) binaryOut = true;
+            return bytes;
+        }
+        return packet.toFrameBytes();
+    }
+
+    /**
+     * Xử lý các lệnh được phép khi chưa đăng nhập (LOGIN, RESUME, REGISTER, RESET_PASSWORD).
+     * Lệnh được chuyển sang pool của AuthService nên luồng đọc (hoặc event-loop) không bao giờ bị BCrypt chặn.
+     */
+    protected void handleAuthCommand(Packet request) {
+        // Mật khẩu là phần còn lại của dòng, giữ nguyên văn (xem Packet.fromText)
+        String secret = request.size() == 3 ? request.get(2) : null;
+        Opcode op = request.opcode();
+        if (secret == null || failReply(op) == null) {
+            send(Packet.of("ERROR", "Vui lòng đăng nhập trước!"));
+            return;
+        }
+        AuthService auth = networkManager.getAuth();
+        if (auth == null) {
+            send(Packet.of(failReply(op), "Server chưa sẵn sàng, vui lòng thử lại sau!"));
+            return;
+        }
+        // Mỗi kết nối chỉ có một lệnh xác thực đang chạy
+        if (!authInFlight.compareAndSet(false, true)) {
+            send(Packet.of(failReply(op), "Yêu cầu trước đang được xử lý, vui lòng chờ!"));
+            return;
+        }
+
+        String user = request.get(1);
+        boolean queued = auth.submit(() -> {
+            try {
+                if (cleanedUp.get()) return;
+                switch (op) {
+                    case LOGIN -> handleLogin(auth, user, secret);
+                    case RESUME -> handleResume(auth, user, secret);
+                    case REGISTER -> handleRegister(auth, user, secret);
+                    case RESET_PASSWORD -> handleResetPassword(auth, user, secret);
+                    default -> {
                     }
-//                    else if ("REQ_DOWNLOAD_FILE".equals(command) && parts.length >= 2) {
-//                        String fileName = parts[1];
-//                        // Xử lý trên luồng riêng để không chặn Chat
-//                        new Thread(() -> handleFileDownload(fileName)).start();
-//                        continue;
-//                    }
                 }
+            } catch (Exception e) {
+                AppLogger.severe("Auth command failed for " + getRemoteAddress(), e);
+                send(Packet.of(failReply(op), "Lỗi hệ thống."));
+            } finally {
+                authInFlight.set(false);
+            }
+        });
+        if (!queued) {
+            authInFlight.set(false);
+            send(Packet.of(failReply(op), "Server đang bận, vui lòng thử lại sau!"));
+        }
+    }
+
+    private static String failReply(Opcode op) {
+        return switch (op) {
+            case LOGIN, RESUME -> "LOGIN_FAIL";
+            case REGISTER -> "REGISTER_FAIL";
+            case RESET_PASSWORD -> "RESET_FAIL";
+            default -> null;
+        };
+    }
+
+    private void handleLogin(AuthService auth, String user, String pass) {
+        // Kiểm tra nhanh trước BCrypt; việc giữ tên thật sự diễn ra nguyên tử trong loginSucceeded
+        if (networkManager.hasSession(user)) {
+            send(Packet.of("LOGIN_FAIL", "Tài khoản đang được đăng nhập ở nơi khác!"));
+            return;
+        }
+        if (!auth.tryAcquire(getRemoteAddress(), user)) {
+            send(Packet.of("LOGIN_FAIL", "Thử đăng nhập quá nhiều lần, vui lòng thử lại sau!"));
+            return;
+        }
+
+        String storedHash = loadPasswordHash(user);
+        if (storedHash == null || !PasswordHasher.verifyPassword(pass, storedHash)) {
+            auth.recordFailure(user);
+            send(Packet.of("LOGIN_FAIL", "Sai tên đăng nhập hoặc mật khẩu!"));
+            return;
+        }
+        auth.recordSuccess(user);
+        if (!loginSucceeded(user)) return;
 
-                // Các tin nhắn chat thông thường
-                Platform.runLater(() -> networkManager.processMessage(username, finalMsg));
+        // Cost cấu hình đã đổi: băm lại sau khi client đã vào phòng chat, chỉ ghi nếu mật khẩu chưa bị đổi trong lúc đó
+        if (auth.needsRehash(storedHash)) {
+            String newHash = PasswordHasher.hashPassword(pass, auth.cost());
+            if (DBHelper.executeUpdate("UPDATE users SET password = ? WHERE username = ? AND password = ?",
+                    newHash, user, storedHash) > 0) {
+                storedHash = newHash;
             }
+        }
+        send(Packet.of("SESSION_TOKEN", auth.issueToken(user, storedHash), auth.tokenTtlSeconds()));
+    }
 
-        } catch (IOException e) {
-            AppLogger.warning("Connection error with " + username + ": " + e.getMessage());
-        } finally {
-            cleanup();
-        }
-    }
-
-//    private void handleFileDownload(String displayFileName) {
-//        // Biến để chứa tên file thật trên ổ cứng (có timestamp)
-//        final String[] realPathOnDisk = {null};
-//
-//        // BƯỚC 1: Truy vấn Database để tìm tên file thật dựa trên tên hiển thị
-//        // Lấy file mới nhất (ORDER BY id DESC) nếu có nhiều file trùng tên
-//        String sql = "SELECT path FROM files WHERE filename = ? ORDER BY id DESC LIMIT 1";
-//
-//        DBHelper.executeQuery(sql, rs -> {
-//            try {
-//                if (rs.next()) {
-//                    realPathOnDisk[0] = rs.getString("path");
-//                }
-//            } catch (SQLException e) {
-//                AppLogger.severe("DB Error searching file: " + displayFileName, e);
-//            }
-//        }, displayFileName);
-//
-//        // Nếu không tìm thấy trong DB thì thử dùng chính tên client gửi lên (fallback)
-//        String targetFileName = (realPathOnDisk[0] != null && !realPathOnDisk[0].isEmpty())
-//                ? realPathOnDisk[0]
-//                : displayFileName;
-//
-//        File file = new File(UPLOAD_DIR + targetFileName);
-//
-//        // BƯỚC 2: Kiểm tra file có tồn tại vật lý không
-//        if (!file.exists()) {
-//            out.println("DOWNLOAD_ERROR|File không tồn tại trên hệ thống server.");
-//            AppLogger.warning("User " + username + " requested missing file: " + targetFileName + " (Display: " + displayFileName + ")");
-//            return;
-//        }
-//
-//        try {
-//            // BƯỚC 3: Đọc và gửi file
-//            byte[] fileContent = Files.readAllBytes(file.toPath());
-//            String encodedString = Base64.getEncoder().encodeToString(fileContent);
-//
-//            // Gửi về Client: Giữ nguyên tên hiển thị (displayFileName) để Client lưu cho đẹp
-//            out.println("FILE_CONTENT|" + displayFileName + "|" + encodedString);
-//
-//            AppLogger.info("Sent file " + targetFileName + " as " + displayFileName + " to " + username);
-//
-//        } catch (IOException e) {
-//            out.println("DOWNLOAD_ERROR|Lỗi khi đọc file trên server.");
-//            AppLogger.severe("Error sending file: " + targetFileName, e);
-//        }
-//    }
-
-    private void handleLogin(String user, String pass) {
-        if (networkManager.getClients().containsKey(user)) {
-            out.println("LOGIN_FAIL|Tài khoản đang được đăng nhập ở nơi khác!");
+    /**
+     * RESUME|user|token: kết nối lại bằng token đã nhận ở lần đăng nhập trước, không cần BCrypt.
+     */
+    private void handleResume(AuthService auth, String user, String token) {
+        String storedHash = loadPasswordHash(user);
+        if (!auth.verifyToken(user, token, storedHash)) {
+            send(Packet.of("LOGIN_FAIL", "Phiên đăng nhập đã hết hạn, vui lòng đăng nhập lại!"));
             return;
         }
-        AtomicBoolean loginSuccess = new AtomicBoolean(false);
+        // Kết nối cũ có thể chưa bị phát hiện là đã rớt (VD: sau sự cố mạng): thay bằng kết nối mới
+        ClientHandler stale = networkManager.takeOverSession(user, this);
+        if (stale != null && stale != this) stale.cleanup();
+
+        auth.recordSuccess(user);
+        if (loginSucceeded(user)) {
+            send(Packet.of("SESSION_TOKEN", auth.issueToken(user, storedHash), auth.tokenTtlSeconds()));
+        }
+    }
+
+    private boolean loginSucceeded(String user) {
+        if (cleanedUp.get()) return false;
+        // Hai lượt LOGIN/RESUME cùng tài khoản chạy song song trên pool xác thực: chỉ một lượt giữ được tên
+        if (!networkManager.claimSession(user, this)) {
+            send(Packet.of("LOGIN_FAIL", "Tài khoản đang được đăng nhập ở nơi khác!"));
+            return false;
+        }
+        this.username = user;
+        this.isAuthenticated = true;
+        if (cleanedUp.get()) {
+            // Kết nối đóng trong lúc giữ tên; cleanup() có thể đã bỏ qua bước hủy đăng ký
+            networkManager.releaseSession(user, this);
+            return false;
+        }
+        binaryOffered = OFFER_BINARY;
+        // Client cũ chỉ đọc trường thứ nhất nên trường phiên bản không ảnh hưởng tới họ
+        send(binaryOffered ? Packet.of("LOGIN_SUCCESS", user, FrameCodec.VERSION) : Packet.of("LOGIN_SUCCESS", user));
+        networkManager.dispatchForUser(username, () -> networkManager.registerClient(username, this));
+        return true;
+    }
+
+    private static String loadPasswordHash(String user) {
+        AtomicReference<String> hash = new AtomicReference<>();
         DBHelper.executeQuery("SELECT password FROM users WHERE username = ?", rs -> {
             try {
-                if (rs.next()) {
-                    String storedHash = rs.getString("password");
-                    if (PasswordHasher.verifyPassword(pass, storedHash)) loginSuccess.set(true);
-                }
+                if (rs.next()) hash.set(rs.getString("password"));
             } catch (SQLException e) {
                 AppLogger.severe("Login DB error", e);
             }
         }, user);
-
-        if (loginSuccess.get()) {
-            this.username = user;
-            this.isAuthenticated = true;
-            out.println("LOGIN_SUCCESS|" + user);
-            DBHelper.updateUserOnlineStatus(username, true);
-            Platform.runLater(() -> networkManager.registerClient(username, this));
-        } else {
-            out.println("LOGIN_FAIL|Sai tên đăng nhập hoặc mật khẩu!");
-        }
+        return hash.get();
     }
 
-    private void handleRegister(String user, String pass) {
+    private void handleRegister(AuthService auth, String user, String pass) {
+        if (!auth.tryAcquire(getRemoteAddress(), null)) {
+            send(Packet.of("REGISTER_FAIL", "Thử quá nhiều lần, vui lòng thử lại sau!"));
+            return;
+        }
         if (user.length() < 3 || pass.length() < 4) {
-            out.println("REGISTER_FAIL|Tên hoặc mật khẩu quá ngắn!");
+            send(Packet.of("REGISTER_FAIL", "Tên hoặc mật khẩu quá ngắn!"));
             return;
         }
         AtomicBoolean exists = new AtomicBoolean(false);
@@ -183,19 +249,23 @@ class ClientHandler implements Runnable {
             }
         }, user);
         if (exists.get()) {
-            out.println("REGISTER_FAIL|Tên đăng nhập đã tồn tại!");
+            send(Packet.of("REGISTER_FAIL", "Tên đăng nhập đã tồn tại!"));
             return;
         }
         try {
-            String hash = PasswordHasher.hashPassword(pass);
+            String hash = PasswordHasher.hashPassword(pass, auth.cost());
             DBHelper.executeUpdate("INSERT INTO users (username, password, online, last_seen) VALUES (?, ?, 0, NOW())", user, hash);
-            out.println("REGISTER_SUCCESS|Đăng ký thành công! Hãy đăng nhập.");
+            send(Packet.of("REGISTER_SUCCESS", "Đăng ký thành công! Hãy đăng nhập."));
         } catch (Exception e) {
-            out.println("REGISTER_FAIL|Lỗi hệ thống khi đăng ký.");
+            send(Packet.of("REGISTER_FAIL", "Lỗi hệ thống khi đăng ký."));
         }
     }
 
-    private void handleResetPassword(String user, String newPass) {
+    private void handleResetPassword(AuthService auth, String user, String newPass) {
+        if (!auth.tryAcquire(getRemoteAddress(), user)) {
+            send(Packet.of("RESET_FAIL", "Thử quá nhiều lần, vui lòng thử lại sau!"));
+            return;
+        }
         final boolean[] exists = {false};
         DBHelper.executeQuery("SELECT 1 FROM users WHERE username = ?", rs -> {
             try {
@@ -205,51 +275,66 @@ class ClientHandler implements Runnable {
         }, user);
         if (exists[0]) {
             try {
-                String newHash = PasswordHasher.hashPassword(newPass);
+                String newHash = PasswordHasher.hashPassword(newPass, auth.cost());
                 DBHelper.executeUpdate("UPDATE users SET password = ? WHERE username = ?", newHash, user);
-                out.println("RESET_SUCCESS|Mật khẩu đã được thay đổi thành công!");
+                send(Packet.of("RESET_SUCCESS", "Mật khẩu đã được thay đổi thành công!"));
             } catch (Exception e) {
-                out.println("RESET_FAIL|Lỗi hệ thống.");
+                send(Packet.of("RESET_FAIL", "Lỗi hệ thống."));
             }
         } else {
-            out.println("RESET_FAIL|Tài khoản không tồn tại!");
+            send(Packet.of("RESET_FAIL", "Tài khoản không tồn tại!"));
         }
     }
 
-    private void cleanup() {
+    /**
+     * Dọn dẹp khi kết nối kết thúc: hủy đăng ký user (nếu đã đăng nhập) và đóng kết nối. Chỉ chạy một lần.
+     */
+    protected void cleanup() {
+        if (!cleanedUp.compareAndSet(false, true)) return;
         if (isAuthenticated && username != null) {
-            Platform.runLater(() -> {
-                networkManager.unregisterClient(username);
-                server.log("User disconnected: " + username);
-            });
-            try {
-                DBHelper.updateUserOnlineStatus(username, false);
-            } catch (Exception e) {
-            }
+            String user = username;
+            networkManager.dispatchForUser(user, () -> networkManager.unregisterClient(user, this));
+            networkManager.log("User disconnected: " + user);
         }
+        networkManager.handlerClosed(this);
         close();
     }
 
-    public void sendMessage(String msg) {
-        if (out != null) out.println(msg);
+    /**
+     * Gửi một gói tin tới client này (mã hóa văn bản hoặc nhị phân tùy giao thức đã thương lượng).
+     * Hàm chỉ xếp gói vào hàng đợi nên không bao giờ chặn luồng gọi; client không theo kịp sẽ bị bỏ gói TYPING
+     * rồi bị ngắt kết nối.
+     */
+    public void send(Packet packet) {
+        switch (outbound.offer(packet)) {
+            case QUEUED -> onOutboundReady();
+            case DROPPED -> {
+            }
+            case OVERFLOW -> {
+                ServerMetrics.SLOW_CONSUMER_DISCONNECTS.increment();
+                AppLogger.warning("Disconnecting slow consumer " + (username != null ? username : getRemoteAddress())
+                        + ": outbound queue full (" + outbound.size() + " packets)");
+                cleanup();
+            }
+        }
     }
 
-    public Socket getSocket() {
-        return socket;
-    }
+    /**
+     * Báo cho tầng truyền tải biết hàng đợi gửi vừa có thêm dữ liệu.
+     */
+    protected abstract void onOutboundReady();
 
-    public void close() {
-        try {
-            if (in != null) in.close();
-        } catch (Exception e) {
-        }
-        try {
-            if (out != null) out.close();
-        } catch (Exception e) {
-        }
-        try {
-            if (socket != null) socket.close();
-        } catch (Exception e) {
-        }
+    /**
+     * Địa chỉ IP của client (hiển thị trên bảng quản trị).
+     */
+    public abstract String getRemoteAddress();
+
+    /**
+     * Đóng kết nối vật lý tới client.
+     */
+    public abstract void close();
+
+    public String getUsername() {
+        return username;
     }
-}
\ No newline at end of file
+}
@@ -63,7 +63,7 @@ public class ClientsPanel extends BorderPane {
     public void refreshClients(java.util.Map<String, ClientHandler> clients) {
         clientData.clear();
         clients.forEach((username, handler) -> {
-            String ip = handler.getSocket().getInetAddress().getHostAddress();
+            String ip = handler.getRemoteAddress();
             clientData.add(new ClientRow(username, ip));
         });
     }
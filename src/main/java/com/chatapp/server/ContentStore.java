@@ -0,0 +1,394 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.DBHelper;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Kho file theo nội dung: mỗi nội dung chỉ được lưu một lần tại uploads/objects/ab/cd/&lt;sha256&gt;.
+ * Dòng files trỏ tới đối tượng qua cột hash (path là đường dẫn tương đối của đối tượng), bảng file_objects
+ * đếm số dòng files đang dùng mỗi đối tượng; đối tượng bị xóa khỏi đĩa khi không còn dòng nào tham chiếu.
+ * Mỗi lần tải lên tạo một dòng files với receiver rỗng và trả id công khai (public_id) của dòng đó cho client;
+ * tin nhắn FILE_* / VOICE_* mang id này để gắn file vào cuộc trò chuyện (claim) và người nhận tải file theo id.
+ * public_id là số ngẫu nhiên 63 bit, không phải files.id tuần tự, nên không thể dò lần lượt để tải file của người khác.
+ * Ảnh được đưa sang PreviewService để tạo ảnh xem trước nằm cạnh đối tượng.
+ */
+final class ContentStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final HexFormat HEX = HexFormat.of();
+    // Khóa theo dải hash: gắn tham chiếu và xóa cùng một đối tượng không được chen nhau.
+    // Dùng ReentrantLock thay cho synchronized: khóa được giữ qua JDBC và fsync, không ghim luồng mang virtual thread
+    private static final int LOCK_STRIPES = 64;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path uploadDir;
+    private final FileMetaCache meta;
+    private final PreviewService previews;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // Giao thức cũ: tin nhắn FILE_* (tạo dòng files) đi qua kết nối chat nên có thể đến sau khi nhận xong nội dung.
+    // Nội dung đến trước chờ ở đây, giữ một tham chiếu tới đối tượng, cho tới khi recordFile tạo dòng và gọi claimPending
+    private final Map<NameKey, Pending> pending = new ConcurrentHashMap<>();
+
+    private record NameKey(String sender, String fileName) {
+    }
+
+    private record Pending(String hash, long storedAt) {
+    }
+
+    ContentStore(Path uploadDir, FileMetaCache meta, PreviewService previews) {
+        this.uploadDir = uploadDir;
+        this.meta = meta;
+        this.previews = previews;
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new ReentrantLock();
+    }
+
+    static ContentStore open(String uploadDir) {
+        Path dir = Paths.get(uploadDir);
+        return new ContentStore(dir, FileMetaCache.fromConfig(), PreviewService.fromConfig(dir));
+    }
+
+    /**
+     * Tạo bảng file_objects và cột files.hash nếu DB còn theo lược đồ cũ.
+     */
+    static void ensureSchema() {
+        DBHelper.executeUpdate("CREATE TABLE IF NOT EXISTS file_objects ("
+                + "hash CHAR(64) NOT NULL PRIMARY KEY, "
+                + "size BIGINT NOT NULL, "
+                + "ref_count INT NOT NULL DEFAULT 0, "
+                + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+        boolean[] hasColumn = {true};
+        DBHelper.executeQuery("SELECT 1 FROM information_schema.columns WHERE table_schema = DATABASE() "
+                + "AND table_name = 'files' AND column_name = 'hash'", rs -> hasColumn[0] = rs.next());
+        if (!hasColumn[0]) {
+            DBHelper.executeUpdate("ALTER TABLE files ADD COLUMN hash CHAR(64) NULL, ADD INDEX idx_files_hash (hash)");
+            AppLogger.info("Added column files.hash for the content store");
+        }
+        boolean[] hasPublicId = {true};
+        DBHelper.executeQuery("SELECT 1 FROM information_schema.columns WHERE table_schema = DATABASE() "
+                + "AND table_name = 'files' AND column_name = 'public_id'", rs -> hasPublicId[0] = rs.next());
+        if (!hasPublicId[0]) {
+            DBHelper.executeUpdate("ALTER TABLE files ADD COLUMN public_id BIGINT NULL, "
+                    + "ADD UNIQUE INDEX idx_files_public_id (public_id)");
+            AppLogger.info("Added column files.public_id for download ids");
+        }
+        backfillPublicIds();
+    }
+
+    /**
+     * Id công khai mới cho một dòng files: số dương ngẫu nhiên 63 bit.
+     */
+    static long newPublicId() {
+        long id;
+        do {
+            id = RANDOM.nextLong() & Long.MAX_VALUE;
+        } while (id == 0);
+        return id;
+    }
+
+    // Dòng có từ trước khi có public_id: cấp id ngẫu nhiên để tin nhắn cũ trong lịch sử vẫn tải được theo id
+    private static void backfillPublicIds() {
+        List<Long> ids = new ArrayList<>();
+        do {
+            ids.clear();
+            DBHelper.executeQuery("SELECT id FROM files WHERE public_id IS NULL LIMIT 1000", rs -> {
+                while (rs.next()) ids.add(rs.getLong(1));
+            });
+            int updated = 0;
+            for (long id : ids) {
+                updated += DBHelper.executeUpdate("UPDATE files SET public_id = ? WHERE id = ? AND public_id IS NULL",
+                        newPublicId(), id);
+            }
+            // Không cập nhật được dòng nào (lỗi DB): dừng thay vì lặp mãi
+            if (updated == 0) return;
+        } while (!ids.isEmpty());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String hex(MessageDigest digest) {
+        return HEX.formatHex(digest.digest());
+    }
+
+    static boolean isHash(String value) {
+        return value != null && HASH.matcher(value).matches();
+    }
+
+    /**
+     * Đường dẫn của đối tượng, tương đối với thư mục uploads (giá trị lưu ở cột files.path).
+     */
+    static String relativePath(String hash) {
+        return "objects/" + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+    }
+
+    /**
+     * Tạo dòng files cho nội dung đã có trong kho mà không cần nhận lại byte nào.
+     * Trả về id file, -1 nếu kho chưa có nội dung này.
+     */
+    long linkExisting(String hash, long size, String sender, String fileName) {
+        if (!isHash(hash)) return -1;
+        long id;
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            if (!has(hash, size)) return -1;
+            id = insertRow(hash, size, sender, fileName);
+        } finally {
+            lock.unlock();
+        }
+        if (id > 0) {
+            AppLogger.info("File linked: #" + id + " " + relativePath(hash) + " from " + sender +
+                    " | Original: " + fileName + " | Size: " + size + " bytes (already stored)");
+            // Đối tượng có từ trước khi có ảnh xem trước
+            previews.enqueue(hash, fileName);
+        }
+        return id;
+    }
+
+    /**
+     * Đưa file tạm đã băm xong vào kho (bỏ file tạm nếu nội dung đã có) và tạo dòng files cho nó.
+     * Trả về id file, -1 nếu không ghi được DB.
+     */
+    long store(Path temp, String hash, long size, String sender, String fileName) throws IOException {
+        long id;
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            putObject(temp, hash, size);
+            id = insertRow(hash, size, sender, fileName);
+            if (id <= 0) deleteIfUnreferenced(hash);
+        } finally {
+            lock.unlock();
+        }
+        if (id > 0) {
+            AppLogger.info("File saved: #" + id + " " + relativePath(hash) + " from " + sender +
+                    " | Original: " + fileName + " | Size: " + size + " bytes");
+            previews.enqueue(hash, fileName);
+        }
+        return id;
+    }
+
+    /**
+     * Giao thức tải lên cũ (không có id): đưa vào kho rồi gắn với dòng files mới nhất của (sender, fileName).
+     */
+    void storeByName(Path temp, String hash, long size, String sender, String fileName) throws IOException {
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            putObject(temp, hash, size);
+            // Tham chiếu của mục chờ: đối tượng không bị xóa trong lúc chưa có dòng files nào trỏ tới
+            addRef(hash, size);
+        } finally {
+            lock.unlock();
+        }
+        AppLogger.info("File saved: " + relativePath(hash) + " from " + sender +
+                " | Original: " + fileName + " | Size: " + size + " bytes");
+        previews.enqueue(hash, fileName);
+
+        NameKey key = new NameKey(sender, fileName);
+        Pending entry = new Pending(hash, System.currentTimeMillis());
+        Pending replaced = pending.put(key, entry);
+        if (replaced != null) release(replaced.hash());
+        // Tin FILE_* đã tới trước: gắn ngay. Nếu chưa, claimPending gắn khi dòng được tạo (ai lấy được mục chờ thì gắn)
+        if (hasUnattachedRow(sender, fileName) && pending.remove(key, entry)) attach(entry, sender, fileName);
+    }
+
+    /**
+     * Giao thức cũ: gọi sau khi tạo dòng files cho tin FILE_*, gắn nội dung (sender, fileName) đã tải lên trước đó nếu có.
+     */
+    void claimPending(String sender, String fileName) {
+        Pending entry = pending.remove(new NameKey(sender, fileName));
+        if (entry != null) attach(entry, sender, fileName);
+    }
+
+    /**
+     * Gắn file đã tải lên (theo id công khai) vào tin nhắn gửi tới receiver. Chỉ người tải lên mới gắn được
+     * và mỗi file chỉ gắn một lần.
+     */
+    boolean claim(long id, String sender, String receiver, String fileName, long size, String fileType) {
+        // Kích thước phải khớp: kiểm duyệt đã xét kích thước khai báo trong tin nhắn
+        int rows = DBHelper.executeUpdate("UPDATE files SET receiver = ?, file_type = ?, sent_at = NOW() "
+                        + "WHERE public_id = ? AND sender = ? AND filename = ? AND size = ? AND receiver = ''",
+                receiver, fileType, id, sender, fileName, size);
+        meta.invalidate(id);
+        return rows > 0;
+    }
+
+    /**
+     * Đường dẫn (tương đối với uploads), kích thước và loại của file theo id công khai; null nếu không có.
+     */
+    FileMetaCache.Meta lookup(long id) {
+        return meta.get(id);
+    }
+
+    /**
+     * Ảnh xem trước của file ảnh theo id, null nếu chưa có (khi đó ảnh được đưa vào hàng đợi tạo ảnh xem trước).
+     */
+    Path preview(long id) {
+        FileMetaCache.Meta m = meta.get(id);
+        if (m == null || m.hash().isEmpty() || !PreviewService.isImage(m.fileName())) return null;
+        Path path = uploadDir.resolve(PreviewService.relativePath(m.hash()));
+        if (Files.isRegularFile(path)) return path;
+        if (Files.isRegularFile(pathOf(m.hash()))) previews.enqueue(m.hash(), m.fileName());
+        return null;
+    }
+
+    int previewsPending() {
+        return previews.pending();
+    }
+
+    /**
+     * Xóa các file đã tải lên nhưng không được gắn vào tin nhắn nào trong khoảng maxAgeMillis.
+     */
+    void purgeUnclaimed(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        deleteRows("receiver = '' AND sent_at < ?", new Timestamp(cutoff));
+        pending.forEach((key, entry) -> {
+            if (entry.storedAt() < cutoff && pending.remove(key, entry)) release(entry.hash());
+        });
+    }
+
+    /**
+     * Xóa các dòng files gửi vào nhóm và trả lại tham chiếu tới đối tượng của chúng.
+     */
+    void deleteGroupFiles(String groupName) {
+        // Tên nhóm có thể trùng tên người dùng: chỉ lấy dòng có receiver không phải người dùng
+        deleteRows("receiver = ? AND NOT EXISTS (SELECT 1 FROM users WHERE username = files.receiver)", groupName);
+    }
+
+    /**
+     * Bớt một tham chiếu; đối tượng không còn ai dùng bị xóa khỏi DB và đĩa.
+     */
+    void release(String hash) {
+        if (!isHash(hash)) return;
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            DBHelper.executeUpdate("UPDATE file_objects SET ref_count = ref_count - 1 WHERE hash = ? AND ref_count > 0", hash);
+            deleteIfUnreferenced(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteRows(String condition, Object param) {
+        List<Long> ids = new ArrayList<>();
+        List<Long> publicIds = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        DBHelper.executeQuery("SELECT id, hash, public_id FROM files WHERE " + condition, rs -> {
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+                hashes.add(rs.getString(2));
+                publicIds.add(rs.getLong(3));
+            }
+        }, param);
+        for (int i = 0; i < ids.size(); i++) {
+            // Lặp lại điều kiện: dòng vừa được gắn vào tin nhắn trong lúc đó không bị xóa
+            if (DBHelper.executeUpdate("DELETE FROM files WHERE id = ? AND " + condition, ids.get(i), param) > 0) {
+                meta.invalidate(publicIds.get(i));
+                release(hashes.get(i));
+            }
+        }
+    }
+
+    private void putObject(Path temp, String hash, long size) throws IOException {
+        if (has(hash, size)) {
+            Files.delete(temp);
+            return;
+        }
+        Path target = pathOf(hash);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Dòng mới có receiver rỗng: file đã ở trên server nhưng chưa thuộc tin nhắn nào (xem claim). Trả về id công khai
+    private long insertRow(String hash, long size, String sender, String fileName) {
+        long publicId = newPublicId();
+        long id = DBHelper.executeInsertAndGetId(
+                "INSERT INTO files(filename, sender, receiver, size, file_type, path, hash, public_id, sent_at) "
+                        + "VALUES(?,?,'',?,'',?,?,?,NOW())",
+                fileName, sender, size, relativePath(hash), hash, publicId);
+        if (id <= 0) return -1;
+        addRef(hash, size);
+        return publicId;
+    }
+
+    private static void addRef(String hash, long size) {
+        DBHelper.executeUpdate("INSERT INTO file_objects (hash, size, ref_count) VALUES (?, ?, 1) "
+                + "ON DUPLICATE KEY UPDATE ref_count = ref_count + 1", hash, size);
+    }
+
+    // Tham chiếu của mục chờ chuyển sang dòng files; không có dòng nào nhận thì trả lại
+    private void attach(Pending entry, String sender, String fileName) {
+        int rows = DBHelper.executeUpdate(
+                "UPDATE files SET path = ?, hash = ? WHERE filename = ? AND sender = ? AND hash IS NULL "
+                        + "ORDER BY sent_at DESC LIMIT 1",
+                relativePath(entry.hash()), entry.hash(), fileName, sender);
+        if (rows == 0) release(entry.hash());
+    }
+
+    private static boolean hasUnattachedRow(String sender, String fileName) {
+        boolean[] found = {false};
+        DBHelper.executeQuery("SELECT 1 FROM files WHERE filename = ? AND sender = ? AND hash IS NULL LIMIT 1",
+                rs -> found[0] = rs.next(), fileName, sender);
+        return found[0];
+    }
+
+    private void deleteIfUnreferenced(String hash) {
+        long[] refs = {-1};
+        DBHelper.executeQuery("SELECT ref_count FROM file_objects WHERE hash = ?",
+                rs -> refs[0] = rs.next() ? rs.getLong(1) : 0, hash);
+        // -1: lỗi DB, không biết số tham chiếu nên giữ nguyên file
+        if (refs[0] != 0) return;
+        DBHelper.executeUpdate("DELETE FROM file_objects WHERE hash = ? AND ref_count <= 0", hash);
+        try {
+            if (Files.deleteIfExists(pathOf(hash))) AppLogger.info("Removed unreferenced object " + hash);
+        } catch (IOException e) {
+            AppLogger.severe("Error removing object " + hash, e);
+        }
+        previews.delete(hash);
+    }
+
+    private boolean has(String hash, long size) {
+        try {
+            Path path = pathOf(hash);
+            return Files.isRegularFile(path) && Files.size(path) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Path pathOf(String hash) {
+        return uploadDir.resolve(relativePath(hash));
+    }
+
+    private ReentrantLock lockFor(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+}
@@ -0,0 +1,138 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.Packet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bộ điều phối xử lý tin nhắn của Server, chạy trên một nhóm luồng worker thay vì luồng giao diện JavaFX.
+ * Mỗi cuộc hội thoại (cặp chat riêng, nhóm, người dùng) luôn được băm vào cùng một "làn" đơn luồng,
+ * nhờ vậy thứ tự tin nhắn trong cùng hội thoại được giữ nguyên trong khi các hội thoại khác chạy song song.
+ */
+class DispatchEngine {
+    private final ExecutorService[] lanes;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+
+    /**
+     * Khởi tạo bộ điều phối với số làn xử lý cho trước (mỗi làn là một luồng riêng).
+     */
+    DispatchEngine(int laneCount) {
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        lanes = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            final int laneId = i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "dispatch-" + laneId);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        AppLogger.info("Dispatch engine started with " + count + " lanes");
+    }
+
+    /**
+     * Đưa một tác vụ vào làn tương ứng với khóa hội thoại; các tác vụ cùng khóa chạy tuần tự theo thứ tự gửi.
+     */
+    void submit(String key, Runnable task) {
+        ExecutorService lane = lanes[Math.floorMod(key.hashCode(), lanes.length)];
+        pending.incrementAndGet();
+        try {
+            lane.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    AppLogger.severe("Dispatch task failed for key " + key, e);
+                } finally {
+                    pending.decrementAndGet();
+                    processed.incrementAndGet();
+                }
+            });
+        } catch (Exception e) {
+            // Làn đã bị tắt (Server đang dừng)
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Số tác vụ đang chờ hoặc đang xử lý trên tất cả các làn.
+     */
+    int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Tổng số tác vụ đã xử lý xong kể từ khi khởi động.
+     */
+    long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * Dừng toàn bộ các làn, chờ tối đa vài giây để các tác vụ còn lại hoàn tất.
+     */
+    void shutdown() {
+        for (ExecutorService lane : lanes) lane.shutdown();
+        for (ExecutorService lane : lanes) {
+            try {
+                if (!lane.awaitTermination(3, TimeUnit.SECONDS)) lane.shutdownNow();
+            } catch (InterruptedException e) {
+                lane.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // === KHÓA HỘI THOẠI ===
+
+    /**
+     * Khóa làn riêng của một người dùng (đăng nhập, đăng xuất, các lệnh không gắn với hội thoại).
+     */
+    static String userKey(String username) {
+        return "U:" + username;
+    }
+
+    /**
+     * Khóa của một cuộc chat riêng, không phụ thuộc chiều gửi (A->B và B->A cùng một làn).
+     */
+    static String pairKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? "P:" + a + "|" + b : "P:" + b + "|" + a;
+    }
+
+    /**
+     * Khóa của một nhóm chat.
+     */
+    static String groupKey(String groupName) {
+        return "G:" + groupName;
+    }
+
+    /**
+     * Xác định khóa hội thoại cho một gói tin do người dùng gửi lên.
+     */
+    static String conversationKey(String username, Packet packet, Predicate<String> isGroup) {
+        String[] parts = packet.parts();
+        if (parts.length < 2) return userKey(username);
+        String target = parts[1];
+        return switch (packet.opcode()) {
+            case PRIVATE, EMOJI_PRIVATE, FILE_PRIVATE, VOICE_PRIVATE,
+                 WEBRTC, CALL_REQ, CALL_RES, CALL_END -> pairKey(username, target);
+            case GROUP, EMOJI_GROUP, FILE_GROUP, VOICE_GROUP,
+                 CREATE_GROUP, JOIN_GROUP, LEAVE_GROUP, DISSOLVE_GROUP -> groupKey(target);
+            case TYPING -> isGroup.test(target) ? groupKey(target) : pairKey(username, target);
+            case REQ_HISTORY, REQ_HISTORY_PAGE -> parts.length >= 3 && "GROUP".equals(target)
+                    ? groupKey(parts[2])
+                    : (parts.length >= 3 ? pairKey(username, parts[2]) : userKey(username));
+            case REQ_FILES, REQ_FILES_PAGE -> target.startsWith("GROUP_")
+                    ? groupKey(target.substring(6))
+                    : (target.startsWith("PRIVATE_") ? pairKey(username, target.substring(8)) : userKey(username));
+            case BROADCAST -> "BROADCAST";
+            default -> userKey(username);
+        };
+    }
+}
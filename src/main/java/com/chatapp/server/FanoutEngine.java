@@ -0,0 +1,106 @@
+package com.chatapp.server;
+
+import com.chatapp.common.Packet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Phát một gói tin tới nhiều người nhận (nhóm, broadcast). Gói được mã hóa một lần và cùng một mảng byte
+ * được xếp vào hàng đợi gửi của mọi người nhận.
+ * Với nhóm rất lớn, danh sách người nhận được chia theo băm tên người dùng cho các luồng fan-out;
+ * mỗi người nhận luôn thuộc cùng một luồng nên thứ tự tin tới họ được giữ nguyên.
+ * Gói nhỏ chỉ được gửi thẳng trên luồng gọi khi không còn lượt chia việc nào đang chờ, nếu không cũng đi qua
+ * luồng fan-out của người nhận: tin sau không thể vượt tin trước khi nhóm vừa vượt ngưỡng chia việc.
+ */
+final class FanoutEngine {
+    private final ExecutorService[] workers;
+    private final int partitionThreshold;
+    // Số phần việc đã giao cho các luồng fan-out mà chưa gửi xong
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Tạo engine với số luồng fan-out (0 = theo số nhân CPU) và ngưỡng số người nhận để bắt đầu chia việc.
+     */
+    FanoutEngine(int workerCount, int partitionThreshold) {
+        int count = workerCount > 0 ? workerCount : Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        this.workers = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "fanout-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.partitionThreshold = partitionThreshold;
+    }
+
+    /**
+     * Gửi gói tới các người nhận đang trực tuyến, bỏ qua người có tên except (có thể null).
+     */
+    void deliver(Collection<String> recipients, String except, Packet packet, Map<String, ClientHandler> clients) {
+        if (recipients.size() < partitionThreshold && inFlight.get() == 0) {
+            for (String name : recipients) send(name, except, packet, clients);
+            return;
+        }
+
+        // Nhóm lớn (hoặc còn phần việc đang chờ): mã hóa trước trên luồng gọi để hàng nghìn writer không cùng lúc mã hóa lại
+        packet.toTextBytes();
+        packet.toFrameBytes();
+
+        List<List<String>> buckets = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++) buckets.add(new ArrayList<>(recipients.size() / workers.length + 1));
+        for (String name : recipients) buckets.get(Math.floorMod(name.hashCode(), workers.length)).add(name);
+
+        for (int i = 0; i < workers.length; i++) {
+            List<String> bucket = buckets.get(i);
+            if (bucket.isEmpty()) continue;
+            inFlight.incrementAndGet();
+            try {
+                workers[i].execute(() -> {
+                    try {
+                        for (String name : bucket) send(name, except, packet, clients);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Engine đã dừng (Server đang tắt)
+                inFlight.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Gửi gói tới mọi kết nối đang đăng nhập.
+     */
+    void broadcast(Packet packet, Map<String, ClientHandler> clients) {
+        deliver(clients.keySet(), null, packet, clients);
+    }
+
+    private static void send(String name, String except, Packet packet, Map<String, ClientHandler> clients) {
+        if (name.equals(except)) return;
+        ClientHandler handler = clients.get(name);
+        if (handler != null) handler.send(packet);
+    }
+
+    void shutdown() {
+        for (ExecutorService worker : workers) worker.shutdown();
+        for (ExecutorService worker : workers) {
+            try {
+                if (!worker.awaitTermination(3, TimeUnit.SECONDS)) worker.shutdownNow();
+            } catch (InterruptedException e) {
+                worker.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.chatapp.server;
+
+import com.chatapp.common.DBHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thông tin file theo id (đường dẫn trên đĩa, kích thước, loại, SHA-256, tên gốc) giữ trong bộ nhớ (LRU theo số mục),
+ * để các lượt tải lặp lại của cùng một file không phải truy vấn bảng files.
+ */
+final class FileMetaCache {
+    // hash rỗng: file cũ được lưu trước khi có kho nội dung
+    record Meta(String path, long size, String type, String hash, String fileName) {
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<Long, Meta> entries;
+
+    FileMetaCache(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.entries = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Meta> eldest) {
+                return size() > FileMetaCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Tạo cache theo khóa server.download.metaCacheEntries trong server.properties.
+     */
+    static FileMetaCache fromConfig() {
+        return new FileMetaCache(ServerConfig.getInt("server.download.metaCacheEntries", 10000));
+    }
+
+    /**
+     * Thông tin của file đã tải lên xong (path khác null), null nếu không có.
+     */
+    Meta get(long id) {
+        synchronized (this) {
+            Meta meta = entries.get(id);
+            if (meta != null) return meta;
+        }
+
+        Meta[] found = {null};
+        DBHelper.executeQuery("SELECT path, size, file_type, hash, filename FROM files WHERE public_id = ? AND path IS NOT NULL",
+                rs -> {
+                    if (rs.next()) {
+                        String hash = rs.getString(4);
+                        found[0] = new Meta(rs.getString(1), rs.getLong(2), rs.getString(3), hash == null ? "" : hash,
+                                rs.getString(5));
+                    }
+                }, id);
+        if (found[0] != null && maxEntries > 0) {
+            synchronized (this) {
+                entries.put(id, found[0]);
+            }
+        }
+        return found[0];
+    }
+
+    /**
+     * Bỏ mục của file vừa bị sửa hoặc xóa.
+     */
+    synchronized void invalidate(long id) {
+        entries.remove(id);
+    }
+}
@@ -4,30 +4,74 @@ import com.chatapp.common.AppLogger;
 import com.chatapp.common.DBHelper;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class FileTransferServer {
     private static final int FILE_PORT = 5556;
     private static final String UPLOAD_DIR = "uploads/";
+    private static final SmallFileCache SMALL_FILES = SmallFileCache.fromConfig();
+    private static final ContentStore STORE = ContentStore.open(UPLOAD_DIR);
+    private static final ResumableUpload UPLOADS = ResumableUpload.fromConfig(UPLOAD_DIR, STORE);
+
+    /**
+     * Kho nội dung chứa các file đã tải lên (dùng khi xóa dòng files để trả lại tham chiếu).
+     */
+    static ContentStore store() {
+        return STORE;
+    }
+
+    /**
+     * Số ảnh đang chờ tạo ảnh xem trước (hiển thị trên thanh trạng thái).
+     */
+    static int getPreviewPending() {
+        return STORE.previewsPending();
+    }
 
     public static void start() {
-        new Thread(() -> {
+        ServerThreads.start("upload-acceptor", () -> {
             try {
                 // Tạo thư mục uploads nếu chưa tồn tại
                 new File(UPLOAD_DIR).mkdirs();
+                ContentStore.ensureSchema();
+                startPartialCleanup();
 
                 ServerSocket serverSocket = new ServerSocket(FILE_PORT);
                 AppLogger.info("File Transfer Server started on port " + FILE_PORT);
 
                 while (true) {
                     Socket clientSocket = serverSocket.accept();
-                    new Thread(new FileHandler(clientSocket)).start();
+                    ServerThreads.start("upload-" + clientSocket.getRemoteSocketAddress(), new FileHandler(clientSocket));
                 }
             } catch (IOException e) {
                 AppLogger.severe("Error starting File Transfer Server", e);
             }
-        }).start();
+        });
+    }
+
+    // Dọn các file tải dở và file đã tải lên nhưng không được gửi đi: ngay khi khởi động rồi mỗi giờ một lần
+    private static void startPartialCleanup() {
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-cleanup");
+            t.setDaemon(true);
+            return t;
+        });
+        cleaner.scheduleWithFixedDelay(() -> {
+            UPLOADS.purgeStale(ResumableUpload.partialTtlMillis());
+            STORE.purgeUnclaimed(ResumableUpload.partialTtlMillis());
+        }, 0, 1, TimeUnit.HOURS);
     }
 
     static class FileHandler implements Runnable {
@@ -39,35 +83,44 @@ public class FileTransferServer {
 
         @Override
         public void run() {
-            try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
-                String sender = in.readUTF();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                // Kết nối chết không báo lỗi sẽ bị cắt để phiên tải (và uploadId của nó) được giải phóng
+                socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(ServerConfig.getInt("server.upload.idleSeconds", 60)));
+                String first = in.readUTF();
+                if (ResumableUpload.COMMAND.equals(first)) {
+                    UPLOADS.handle(in, new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+                    return;
+                }
+
+                // Giao thức cũ: tên người gửi, tên file, kích thước rồi luồng byte thô
+                String sender = first;
                 String fileName = in.readUTF();
                 long fileSize = in.readLong();
 
-                // Tạo tên file duy nhất để tránh trùng lặp
-                String uniqueFileName = System.currentTimeMillis() + "_" + fileName;
-                File outputFile = new File(UPLOAD_DIR + uniqueFileName);
-
-                // Lưu file
-                FileOutputStream fileOut = new FileOutputStream(outputFile);
+                // Ghi vào file tạm và băm trong lúc nhận, sau đó đưa vào kho nội dung
+                File partialDir = new File(UPLOAD_DIR, ".partial");
+                partialDir.mkdirs();
+                File temp = new File(partialDir, "legacy-" + UUID.randomUUID() + ".part");
+                MessageDigest digest = ContentStore.newDigest();
                 byte[] buffer = new byte[4096];
                 int bytesRead;
                 long totalRead = 0;
 
-                while (totalRead < fileSize && (bytesRead = in.read(buffer)) != -1) {
-                    fileOut.write(buffer, 0, bytesRead);
-                    totalRead += bytesRead;
+                try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+                    while (totalRead < fileSize
+                            && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead))) != -1) {
+                        fileOut.write(buffer, 0, bytesRead);
+                        digest.update(buffer, 0, bytesRead);
+                        totalRead += bytesRead;
+                    }
                 }
 
-                fileOut.close();
-
-                AppLogger.info("File saved: " + uniqueFileName + " from " + sender +
-                        " | Original: " + fileName + " | Size: " + fileSize + " bytes");
-
-                DBHelper.executeUpdate(
-                        "UPDATE files SET path = ? WHERE filename = ? AND sender = ? ORDER BY sent_at DESC LIMIT 1",
-                        uniqueFileName, fileName, sender
-                );
+                if (totalRead < fileSize) {
+                    temp.delete();
+                    AppLogger.warning("Upload of " + fileName + " from " + sender + " ended early at " + totalRead + " bytes");
+                    return;
+                }
+                STORE.storeByName(temp.toPath(), ContentStore.hex(digest), fileSize, sender, fileName);
 
             } catch (Exception e) {
                 AppLogger.severe("Error handling file transfer", e);
@@ -81,36 +134,74 @@ public class FileTransferServer {
     }
 
     public static void startDownloadServer() {
-        new Thread(() -> {
+        ServerThreads.start("download-acceptor", () -> {
             try {
-                ServerSocket downloadSocket = new ServerSocket(5557);
+                // Dùng kênh (chế độ chặn) để có thể gửi file bằng FileChannel.transferTo
+                ServerSocketChannel downloadSocket = ServerSocketChannel.open();
+                downloadSocket.bind(new InetSocketAddress(5557));
                 AppLogger.info("✅ File Download Server started on port 5557");
 
                 while (true) {
-                    Socket clientSocket = downloadSocket.accept();
+                    SocketChannel clientChannel = downloadSocket.accept();
+                    Socket clientSocket = clientChannel.socket();
                     AppLogger.info("📥 Download connection accepted from: " + clientSocket.getInetAddress());
-                    new Thread(new DownloadHandler(clientSocket)).start();
+                    ServerThreads.start("download-" + clientSocket.getRemoteSocketAddress(), new DownloadHandler(clientChannel));
                 }
             } catch (IOException e) {
                 AppLogger.severe("❌ Error starting Download Server", e);
             }
-        }).start();
+        });
     }
 
     static class DownloadHandler implements Runnable {
+        private final SocketChannel channel;
         private final Socket socket;
 
-        public DownloadHandler(Socket socket) {
-            this.socket = socket;
+        public DownloadHandler(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
         }
 
         @Override
         public void run() {
-            try (DataInputStream in = new DataInputStream(socket.getInputStream());
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
 
                 String command = in.readUTF();
-                if ("DOWNLOAD".equals(command)) {
+                if ("DOWNLOAD_ID".equals(command)) {
+                    // Tải theo id file (từ tin nhắn FILE_* / VOICE_*): tra cứu qua cache, không quét bảng files
+                    long fileId = in.readLong();
+                    FileMetaCache.Meta meta = STORE.lookup(fileId);
+                    File fileToSend = meta == null ? null : new File(UPLOAD_DIR + meta.path());
+                    if (fileToSend != null && fileToSend.isFile()) {
+                        sendFile(fileToSend);
+                        AppLogger.info("Sent file #" + fileId + ": " + meta.path());
+                    } else {
+                        writeFully(ByteBuffer.wrap(new byte[]{0})); // Báo Client: Không tìm thấy
+                        AppLogger.warning("File #" + fileId + " not found");
+                    }
+                } else if ("DOWNLOAD_RANGE".equals(command)) {
+                    // Một đoạn của file theo id: client tải song song nhiều đoạn; length = 0 chỉ hỏi kích thước và hash
+                    long fileId = in.readLong();
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    FileMetaCache.Meta meta = STORE.lookup(fileId);
+                    File fileToSend = meta == null ? null : new File(UPLOAD_DIR + meta.path());
+                    if (fileToSend != null && fileToSend.isFile() && offset >= 0 && length >= 0) {
+                        sendRange(fileToSend, meta.hash(), offset, length);
+                    } else {
+                        writeFully(ByteBuffer.wrap(new byte[]{0})); // Báo Client: Không tìm thấy
+                        AppLogger.warning("File #" + fileId + " not found for range " + offset + "+" + length);
+                    }
+                } else if ("DOWNLOAD_PREVIEW".equals(command)) {
+                    // Ảnh xem trước (vài KB) của file ảnh theo id, cùng khung trả lời với DOWNLOAD_ID
+                    long fileId = in.readLong();
+                    Path preview = STORE.preview(fileId);
+                    if (preview != null) {
+                        sendFile(preview.toFile());
+                    } else {
+                        writeFully(ByteBuffer.wrap(new byte[]{0})); // Chưa có ảnh xem trước
+                    }
+                } else if ("DOWNLOAD".equals(command)) {
                     String requestedFileName = in.readUTF(); // Tên file hiển thị (VD: TaiLieu.pdf)
 
                     // [FIX] TRA CỨU DB ĐỂ LẤY TÊN FILE THẬT TRÊN Ổ CỨNG (VD: 123456_TaiLieu.pdf)
@@ -133,19 +224,10 @@ public class FileTransferServer {
                     File fileToSend = new File(UPLOAD_DIR + fileNameOnDisk);
 
                     if (fileToSend.exists() && fileToSend.isFile()) {
-                        out.writeBoolean(true); // Báo Client: Có file
-                        out.writeLong(fileToSend.length()); // Báo kích thước
-
-                        try (FileInputStream fileIn = new FileInputStream(fileToSend)) {
-                            byte[] buffer = new byte[8192]; // Tăng buffer lên 8KB cho nhanh
-                            int bytesRead;
-                            while ((bytesRead = fileIn.read(buffer)) != -1) {
-                                out.write(buffer, 0, bytesRead);
-                            }
-                        }
+                        sendFile(fileToSend);
                         AppLogger.info("Sent file: " + fileNameOnDisk);
                     } else {
-                        out.writeBoolean(false); // Báo Client: Không tìm thấy
+                        writeFully(ByteBuffer.wrap(new byte[]{0})); // Báo Client: Không tìm thấy
                         AppLogger.warning("File not found on disk: " + fileNameOnDisk);
                     }
                 }
@@ -153,10 +235,76 @@ public class FileTransferServer {
                 AppLogger.severe("Error handling download request", e);
             } finally {
                 try {
-                    socket.close();
+                    channel.close();
                 } catch (IOException e) {
                 }
             }
         }
+
+        /**
+         * Gửi cờ có file (1 byte), kích thước (8 byte) rồi nội dung: file nhỏ lấy từ bộ nhớ và gửi cùng header
+         * trong một lần ghi, file lớn được kernel chép thẳng từ page cache sang socket (transferTo).
+         */
+        private void sendFile(File file) throws IOException {
+            byte[] small = SMALL_FILES.get(file.toPath(), file.length(), file.lastModified());
+            if (small != null) {
+                ByteBuffer header = ByteBuffer.allocate(9).put((byte) 1).putLong(small.length).flip();
+                writeFully(header, ByteBuffer.wrap(small));
+                return;
+            }
+
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // Kích thước lấy từ kênh đã mở để header khớp đúng số byte sẽ gửi
+                long size = fc.size();
+                writeFully(ByteBuffer.allocate(9).put((byte) 1).putLong(size).flip());
+                long position = 0;
+                while (position < size) {
+                    long sent = fc.transferTo(position, size - position, channel);
+                    if (sent <= 0) throw new EOFException("File truncated while sending: " + file.getName());
+                    position += sent;
+                }
+            }
+        }
+
+        /**
+         * Gửi cờ có file (1 byte), kích thước file, SHA-256 (UTF, rỗng với file cũ), số byte của đoạn rồi nội dung đoạn
+         * [offset, offset + length) đã cắt theo cuối file.
+         */
+        private void sendRange(File file, String hash, long offset, long length) throws IOException {
+            byte[] small = SMALL_FILES.get(file.toPath(), file.length(), file.lastModified());
+            if (small != null) {
+                int start = (int) Math.min(offset, small.length);
+                int count = (int) Math.min(length, small.length - start);
+                writeFully(rangeHeader(small.length, hash, count), ByteBuffer.wrap(small, start, count));
+                return;
+            }
+
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = fc.size();
+                long position = Math.min(offset, size);
+                long end = position + Math.min(length, size - position);
+                writeFully(rangeHeader(size, hash, end - position));
+                while (position < end) {
+                    long sent = fc.transferTo(position, end - position, channel);
+                    if (sent <= 0) throw new EOFException("File truncated while sending: " + file.getName());
+                    position += sent;
+                }
+            }
+        }
+
+        private static ByteBuffer rangeHeader(long size, String hash, long count) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeByte(1);
+            header.writeLong(size);
+            header.writeUTF(hash);
+            header.writeLong(count);
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        private void writeFully(ByteBuffer... buffers) throws IOException {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) channel.write(buffers);
+        }
     }
 }
\ No newline at end of file
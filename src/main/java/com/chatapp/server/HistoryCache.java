@@ -0,0 +1,313 @@
+package com.chatapp.server;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Bộ nhớ đệm lịch sử của các hội thoại đang hoạt động: mỗi hội thoại riêng (theo cặp người dùng) hoặc nhóm
+ * giữ một vòng đệm các tin mới nhất, được nạp từ DB ở lần đọc đầu tiên và cập nhật mỗi khi có tin mới.
+ * Tổng dung lượng có giới hạn; khi vượt quá, các hội thoại lâu không được dùng tới bị loại bỏ trước.
+ * Đọc và ghi của cùng một hội thoại đi qua cùng một làn dispatch nên vòng đệm luôn khớp với DB.
+ */
+final class HistoryCache {
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    // Chi phí ước lượng của một dòng ngoài phần ký tự (đối tượng, header chuỗi, ô trong vòng đệm)
+    private static final int ROW_OVERHEAD = 96;
+    // Kết quả tạm: trong vòng đệm còn dòng chưa có id (đang chờ ghi), cần flush rồi đọc lại
+    private static final HistoryService.Page PENDING = new HistoryService.Page(List.of(), List.of(), false);
+
+    private final HistoryService db;
+    private final int capacity;
+    private final long maxBytes;
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    HistoryCache(HistoryService db, int capacity, long maxBytes) {
+        this.db = db;
+        this.capacity = Math.max(1, capacity);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Tạo cache theo các khóa server.history.* trong server.properties.
+     */
+    static HistoryCache fromConfig(HistoryService db) {
+        return new HistoryCache(db,
+                ServerConfig.getInt("server.history.cacheMessages", 200),
+                ServerConfig.getLong("server.history.cacheMaxBytes", 64L * 1024 * 1024));
+    }
+
+    /**
+     * Ghi nhận một tin vừa lưu. Trả về nơi nhận id của dòng sau khi được ghi xuống DB,
+     * hoặc null nếu hội thoại chưa nằm trong cache.
+     */
+    LongConsumer onWrite(String type, String sender, String receiver, String content, long millis) {
+        String key = key(type, sender, receiver);
+        if (key == null) return null;
+        Conversation conv = conversations.get(key);
+        if (conv == null) return null;
+
+        Row row = new Row(millis, 0, sender, content, TIME_FORMAT.format(Instant.ofEpochMilli(millis)));
+        long delta = conv.add(row);
+        if (delta == Long.MIN_VALUE) return null;
+        grow(delta);
+        return id -> row.id = id;
+    }
+
+    /**
+     * Lấy một trang tin nhắn, ưu tiên phục vụ từ vòng đệm; flush dùng để chờ các tin còn trong hàng đợi ghi.
+     */
+    HistoryService.Page messages(String requester, String type, String target, HistoryService.Direction direction,
+                                 HistoryService.Cursor cursor, int limit, Runnable flush) {
+        String key = key(type, requester, target);
+        if (key == null) {
+            flush.run();
+            return db.messages(requester, type, target, direction, cursor, limit);
+        }
+
+        Conversation conv = conversations.get(key);
+        HistoryService.Page page;
+        if (conv == null) {
+            // Lần đầu: nạp các tin mới nhất từ DB vào vòng đệm
+            flush.run();
+            HistoryService.Page latest = db.messages(requester, type, target, HistoryService.Direction.LATEST,
+                    null, capacity);
+            Conversation loaded = new Conversation(capacity, latest);
+            conv = conversations.putIfAbsent(key, loaded);
+            if (conv == null) {
+                conv = loaded;
+                grow(loaded.bytes);
+            }
+            page = conv.page(direction, cursor, limit);
+            ServerMetrics.HISTORY_CACHE_MISSES.increment();
+        } else {
+            page = conv.page(direction, cursor, limit);
+            if (page == PENDING) {
+                flush.run();
+                page = conv.page(direction, cursor, limit);
+                // Đã flush mà vẫn còn dòng chưa có id: lượt ghi đó lỗi và sẽ không bao giờ có id.
+                // Bỏ vòng đệm này, lần đọc sau nạp lại từ DB
+                if (page == PENDING && conversations.remove(key, conv)) totalBytes.addAndGet(-conv.evict());
+            }
+            if (page != null && page != PENDING) {
+                ServerMetrics.HISTORY_CACHE_HITS.increment();
+                return page;
+            }
+            ServerMetrics.HISTORY_CACHE_MISSES.increment();
+            flush.run();
+        }
+        // Trang nằm ngoài vòng đệm (quá cũ) hoặc chưa xác định được id: đọc thẳng từ DB
+        return page != null && page != PENDING ? page : db.messages(requester, type, target, direction, cursor, limit);
+    }
+
+    /**
+     * Bỏ vòng đệm của nhóm (VD: khi nhóm bị giải tán và lịch sử đã bị xóa).
+     */
+    void invalidateGroup(String groupName) {
+        drop(DispatchEngine.groupKey(groupName));
+    }
+
+    /**
+     * Bỏ vòng đệm của hội thoại chứa tin (sender -> receiver) khi lịch sử bị sửa ngoài luồng ghi thông thường.
+     */
+    void invalidate(String type, String sender, String receiver) {
+        String key = key(type, sender, receiver);
+        if (key != null) drop(key);
+    }
+
+    int size() {
+        return conversations.size();
+    }
+
+    long bytes() {
+        return totalBytes.get();
+    }
+
+    void clear() {
+        for (String key : conversations.keySet()) drop(key);
+    }
+
+    private static String key(String type, String self, String other) {
+        if ("PRIVATE".equals(type)) return DispatchEngine.pairKey(self, other);
+        if ("GROUP".equals(type)) return DispatchEngine.groupKey(other);
+        return null;
+    }
+
+    private void drop(String key) {
+        Conversation conv = conversations.remove(key);
+        if (conv != null) totalBytes.addAndGet(-conv.evict());
+    }
+
+    private void grow(long delta) {
+        if (totalBytes.addAndGet(delta) <= maxBytes || !evictLock.tryLock()) return;
+        try {
+            // LRU xấp xỉ: loại các hội thoại truy cập lâu nhất tới khi còn dưới 90% ngân sách
+            long target = maxBytes / 10 * 9;
+            List<Map.Entry<String, Conversation>> entries = new ArrayList<>(conversations.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            for (Map.Entry<String, Conversation> e : entries) {
+                if (totalBytes.get() <= target) break;
+                if (conversations.remove(e.getKey(), e.getValue())) totalBytes.addAndGet(-e.getValue().evict());
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private static final class Row {
+        final long millis;
+        volatile long id;
+        final String sender;
+        final String content;
+        final String time;
+        final int bytes;
+
+        Row(long millis, long id, String sender, String content, String time) {
+            this.millis = millis;
+            this.id = id;
+            this.sender = sender;
+            this.content = content;
+            this.time = time;
+            this.bytes = ROW_OVERHEAD + 2 * (sender.length() + content.length() + time.length());
+        }
+
+        int compareTo(HistoryService.Cursor c) {
+            int cmp = Long.compare(millis, c.millis());
+            return cmp != 0 ? cmp : Long.compare(id, c.id());
+        }
+    }
+
+    /**
+     * Vòng đệm các tin mới nhất của một hội thoại, sắp theo (thời gian, id) từ cũ tới mới.
+     * complete = true nghĩa là vòng đệm đang chứa toàn bộ lịch sử của hội thoại.
+     */
+    private static final class Conversation {
+        private final Row[] ring;
+        private int head;
+        private int size;
+        private boolean complete;
+        private boolean evicted;
+        long bytes;
+        volatile long lastAccess = System.nanoTime();
+
+        Conversation(int capacity, HistoryService.Page latest) {
+            this.ring = new Row[capacity];
+            List<String[]> rows = latest.rows();
+            List<HistoryService.Cursor> cursors = latest.cursors();
+            for (int i = 0; i < rows.size() && size < capacity; i++) {
+                String[] r = rows.get(i);
+                Row row = new Row(cursors.get(i).millis(), cursors.get(i).id(), nz(r[0]), nz(r[1]), nz(r[2]));
+                ring[size++] = row;
+                bytes += row.bytes;
+            }
+            this.complete = !latest.hasMore();
+        }
+
+        /**
+         * Thêm một dòng theo đúng thứ tự thời gian; trả về phần dung lượng tăng thêm,
+         * hoặc Long.MIN_VALUE nếu dòng không được giữ.
+         */
+        synchronized long add(Row row) {
+            if (evicted) return Long.MIN_VALUE;
+            lastAccess = System.nanoTime();
+            // Dòng cũ hơn cả vòng đệm (VD: nhật ký cuộc gọi lùi thời gian) mà phía trước còn tin trong DB thì bỏ qua
+            if (size > 0 && row.millis < get(0).millis && (!complete || size == ring.length)) return Long.MIN_VALUE;
+
+            long delta = row.bytes;
+            if (size == ring.length) {
+                delta -= ring[head].bytes;
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                complete = false;
+            }
+            int pos = size;
+            while (pos > 0 && get(pos - 1).millis > row.millis) {
+                set(pos, get(pos - 1));
+                pos--;
+            }
+            set(pos, row);
+            size++;
+            bytes += delta;
+            return delta;
+        }
+
+        /**
+         * Cắt một trang từ vòng đệm; trả về null nếu trang vượt ra ngoài phần đang giữ,
+         * PENDING nếu còn dòng chưa có id.
+         */
+        synchronized HistoryService.Page page(HistoryService.Direction direction, HistoryService.Cursor cursor,
+                                              int limit) {
+            lastAccess = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                if (get(i).id == 0) return PENDING;
+            }
+
+            int from;
+            int to;
+            boolean hasMore;
+            if (direction == HistoryService.Direction.AFTER) {
+                int start = 0;
+                if (cursor != null) {
+                    // Con trỏ cũ hơn dòng đầu vòng đệm: có thể còn tin ở giữa chỉ nằm trong DB
+                    if (!complete && (size == 0 || get(0).compareTo(cursor) > 0)) return null;
+                    while (start < size && get(start).compareTo(cursor) <= 0) start++;
+                } else if (!complete) {
+                    return null;
+                }
+                from = start;
+                to = Math.min(size, start + limit);
+                hasMore = to < size;
+            } else {
+                int end = size;
+                if (direction == HistoryService.Direction.BEFORE && cursor != null) {
+                    while (end > 0 && get(end - 1).compareTo(cursor) >= 0) end--;
+                }
+                if (end < limit && !complete) return null;
+                from = Math.max(0, end - limit);
+                to = end;
+                hasMore = from > 0 || !complete;
+            }
+
+            if (from >= to) return new HistoryService.Page(List.of(), List.of(), hasMore);
+            List<String[]> rows = new ArrayList<>(to - from);
+            List<HistoryService.Cursor> cursors = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                Row row = get(i);
+                rows.add(new String[]{row.sender, row.content, row.time});
+                cursors.add(new HistoryService.Cursor(row.millis, row.id));
+            }
+            return new HistoryService.Page(rows, cursors, hasMore);
+        }
+
+        synchronized long evict() {
+            evicted = true;
+            long freed = bytes;
+            bytes = 0;
+            return freed;
+        }
+
+        private Row get(int i) {
+            return ring[(head + i) % ring.length];
+        }
+
+        private void set(int i, Row row) {
+            ring[(head + i) % ring.length] = row;
+        }
+
+        private static String nz(String s) {
+            return s == null ? "" : s;
+        }
+    }
+}
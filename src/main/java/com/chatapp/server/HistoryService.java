@@ -0,0 +1,203 @@
+package com.chatapp.server;
+
+import com.chatapp.common.DBHelper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Truy vấn lịch sử tin nhắn và file theo trang, phân trang kiểu keyset trên cặp (thời gian, id):
+ * mỗi trang chỉ đọc tối đa limit + 1 dòng theo chỉ mục nên chi phí không phụ thuộc kích thước bảng.
+ * Con trỏ trang có dạng "millis:id", trang LATEST là các dòng mới nhất.
+ */
+final class HistoryService {
+    static final int DEFAULT_MESSAGE_PAGE = 50;
+    static final int DEFAULT_FILE_PAGE = 20;
+    static final int MAX_PAGE = 200;
+
+    /**
+     * Hướng lấy trang: mới nhất, cũ hơn con trỏ, hoặc mới hơn con trỏ.
+     */
+    enum Direction {
+        LATEST, BEFORE, AFTER;
+
+        static Direction parse(String s) {
+            try {
+                return valueOf(s);
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return LATEST;
+            }
+        }
+    }
+
+    /**
+     * Vị trí của một dòng trong dòng thời gian của hội thoại.
+     */
+    record Cursor(long millis, long id) {
+        static Cursor parse(String s) {
+            if (s == null) return null;
+            int colon = s.indexOf(':');
+            if (colon <= 0) return null;
+            try {
+                return new Cursor(Long.parseLong(s.substring(0, colon)), Long.parseLong(s.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return millis + ":" + id;
+        }
+    }
+
+    /**
+     * Một trang kết quả, các dòng (và con trỏ tương ứng của từng dòng) luôn theo thứ tự cũ -> mới.
+     */
+    record Page(List<String[]> rows, List<Cursor> cursors, boolean hasMore) {
+        static final Page EMPTY = new Page(List.of(), List.of(), false);
+
+        String oldest() {
+            return cursors.isEmpty() ? "" : cursors.get(0).toString();
+        }
+
+        String newest() {
+            return cursors.isEmpty() ? "" : cursors.get(cursors.size() - 1).toString();
+        }
+    }
+
+    /**
+     * Lấy một trang tin nhắn của hội thoại riêng (type PRIVATE, target là người còn lại) hoặc của nhóm.
+     * Mỗi dòng gồm: sender, content, timestamp.
+     */
+    Page messages(String requester, String type, String target, Direction direction, Cursor cursor, int limit) {
+        boolean isPrivate = "PRIVATE".equals(type);
+        List<Object> params = new ArrayList<>();
+        String branchCols = "SELECT id, sender, content, timestamp FROM messages ";
+        String sql;
+        if (isPrivate) {
+            // Hai nhánh theo từng chiều gửi thay cho OR, mỗi nhánh dùng được chỉ mục (sender, receiver, timestamp, id)
+            String a = branch(branchCols + "WHERE type = 'PRIVATE' AND sender = ? AND receiver = ?",
+                    "timestamp", direction, cursor, limit, params, requester, target);
+            if (requester.equals(target)) {
+                sql = a;
+            } else {
+                String b = branch(branchCols + "WHERE type = 'PRIVATE' AND sender = ? AND receiver = ?",
+                        "timestamp", direction, cursor, limit, params, target, requester);
+                sql = "SELECT * FROM (" + a + " UNION ALL " + b + ") page " + order("timestamp", direction)
+                        + " LIMIT ?";
+                params.add(limit + 1);
+            }
+        } else {
+            sql = branch(branchCols + "WHERE type = 'GROUP' AND receiver = ?",
+                    "timestamp", direction, cursor, limit, params, target);
+        }
+        return query(sql, params, direction, limit, "timestamp",
+                rs -> new String[]{rs.getString("sender"), rs.getString("content"), rs.getString("timestamp")});
+    }
+
+    /**
+     * Lấy một trang file đã chia sẻ; target có dạng PRIVATE_user hoặc GROUP_tên nhóm.
+     * Mỗi dòng gồm: filename, size, sender, sent_at, public_id (id ngẫu nhiên dùng để tải file; 0 với dòng cũ).
+     */
+    Page files(String requester, String target, Direction direction, Cursor cursor, int limit) {
+        List<Object> params = new ArrayList<>();
+        String branchCols = "SELECT id, public_id, filename, size, sender, sent_at FROM files ";
+        String sql;
+        if (target.startsWith("PRIVATE_")) {
+            String other = target.substring(8);
+            String a = branch(branchCols + "WHERE sender = ? AND receiver = ?",
+                    "sent_at", direction, cursor, limit, params, requester, other);
+            if (requester.equals(other)) {
+                sql = a;
+            } else {
+                String b = branch(branchCols + "WHERE sender = ? AND receiver = ?",
+                        "sent_at", direction, cursor, limit, params, other, requester);
+                sql = "SELECT * FROM (" + a + " UNION ALL " + b + ") page " + order("sent_at", direction) + " LIMIT ?";
+                params.add(limit + 1);
+            }
+        } else if (target.startsWith("GROUP_")) {
+            sql = branch(branchCols + "WHERE receiver = ?", "sent_at", direction, cursor, limit, params,
+                    target.substring(6));
+        } else {
+            return Page.EMPTY;
+        }
+        return query(sql, params, direction, limit, "sent_at", rs -> new String[]{
+                rs.getString("filename"), String.valueOf(rs.getLong("size")),
+                rs.getString("sender"), rs.getString("sent_at"), String.valueOf(rs.getLong("public_id"))});
+    }
+
+    /**
+     * Giới hạn kích thước trang do client yêu cầu.
+     */
+    static int clampLimit(String requested, int defaultLimit) {
+        try {
+            int n = Integer.parseInt(requested);
+            return n <= 0 ? defaultLimit : Math.min(n, MAX_PAGE);
+        } catch (NumberFormatException | NullPointerException e) {
+            return defaultLimit;
+        }
+    }
+
+    // Một nhánh truy vấn: điều kiện con trỏ + sắp xếp + LIMIT (lấy dư 1 dòng để biết còn trang sau)
+    private static String branch(String base, String timeCol, Direction direction, Cursor cursor, int limit,
+                                 List<Object> params, Object... baseParams) {
+        Collections.addAll(params, baseParams);
+        StringBuilder sb = new StringBuilder("(").append(base);
+        if (cursor != null && direction != Direction.LATEST) {
+            Timestamp ts = new Timestamp(cursor.millis());
+            // Viết dạng mở rộng thay vì (timestamp, id) < (?, ?) để MySQL dùng được range trên chỉ mục
+            if (direction == Direction.BEFORE) {
+                sb.append(" AND ").append(timeCol).append(" <= ? AND (").append(timeCol).append(" < ? OR id < ?)");
+            } else {
+                sb.append(" AND ").append(timeCol).append(" >= ? AND (").append(timeCol).append(" > ? OR id > ?)");
+            }
+            params.add(ts);
+            params.add(ts);
+            params.add(cursor.id());
+        }
+        sb.append(' ').append(order(timeCol, direction)).append(" LIMIT ?)");
+        params.add(limit + 1);
+        return sb.toString();
+    }
+
+    private static String order(String timeCol, Direction direction) {
+        return direction == Direction.AFTER
+                ? "ORDER BY " + timeCol + " ASC, id ASC"
+                : "ORDER BY " + timeCol + " DESC, id DESC";
+    }
+
+    private interface RowMapper {
+        String[] map(ResultSet rs) throws SQLException;
+    }
+
+    private static Page query(String sql, List<Object> params, Direction direction, int limit, String timeCol,
+                              RowMapper mapper) {
+        List<String[]> rows = new ArrayList<>(limit + 1);
+        List<Cursor> cursors = new ArrayList<>(limit + 1);
+        DBHelper.executeQuery(sql, rs -> {
+            while (rs.next()) {
+                Timestamp ts = rs.getTimestamp(timeCol);
+                cursors.add(new Cursor(ts == null ? 0 : ts.getTime(), rs.getLong("id")));
+                rows.add(mapper.map(rs));
+            }
+        }, params.toArray());
+
+        boolean hasMore = rows.size() > limit;
+        if (hasMore) {
+            rows.remove(rows.size() - 1);
+            cursors.remove(cursors.size() - 1);
+        }
+        if (direction != Direction.AFTER) {
+            // Truy vấn lấy từ mới về cũ, trang trả về theo thứ tự cũ -> mới
+            Collections.reverse(rows);
+            Collections.reverse(cursors);
+        }
+        if (rows.isEmpty()) return Page.EMPTY;
+        return new Page(rows, cursors, hasMore);
+    }
+}
@@ -0,0 +1,202 @@
+package com.chatapp.server;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bộ so khớp nhiều từ khóa cùng lúc (automaton Aho-Corasick): chỉ duyệt nội dung một lần,
+ * chi phí không phụ thuộc số lượng từ khóa. Từ khóa và nội dung đều được chuẩn hóa bằng cùng một bảng
+ * (chữ thường, bỏ dấu tiếng Việt, đ -> d) nên "Chết", "chet" và "CHẾT" là như nhau.
+ * Đối tượng bất biến sau khi dựng, dùng chung an toàn giữa các luồng.
+ */
+final class KeywordMatcher {
+    // Bảng chuẩn hóa dựng sẵn cho vùng ký tự Latin (gồm cả chữ tiếng Việt dựng sẵn U+1E00..U+1EFF); 0 = bỏ qua ký tự
+    private static final char[] FOLD = buildFoldTable(0x2000);
+
+    static final KeywordMatcher EMPTY = build(List.of());
+
+    private final String[] words;
+    // Chuyển trạng thái từ gốc: tra trực tiếp theo ký tự (-1 = ở lại gốc)
+    private final int[] rootNext;
+    // Chuyển trạng thái của các nút còn lại: bảng băm địa chỉ mở theo khóa (nút << 16 | ký tự)
+    private final long[] edgeKeys;
+    private final int[] edgeTargets;
+    private final int edgeMask;
+    private final int[] fail;
+    // Chỉ số từ khóa kết thúc tại nút (kể cả qua liên kết fail), -1 nếu không có
+    private final int[] output;
+
+    private KeywordMatcher(String[] words, int[] rootNext, long[] edgeKeys, int[] edgeTargets, int[] fail,
+                           int[] output) {
+        this.words = words;
+        this.rootNext = rootNext;
+        this.edgeKeys = edgeKeys;
+        this.edgeTargets = edgeTargets;
+        this.edgeMask = edgeKeys.length - 1;
+        this.fail = fail;
+        this.output = output;
+    }
+
+    /**
+     * Chuẩn hóa một ký tự để so khớp; trả về 0 nếu ký tự bị bỏ qua (dấu kết hợp).
+     */
+    static char fold(char c) {
+        return c < FOLD.length ? FOLD[c] : Character.toLowerCase(c);
+    }
+
+    /**
+     * Chuẩn hóa cả chuỗi theo cùng quy tắc với fold(char).
+     */
+    static String fold(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = fold(s.charAt(i));
+            if (c != 0) sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Dựng automaton từ danh sách từ khóa (chưa chuẩn hóa); từ rỗng hoặc trùng sau chuẩn hóa bị bỏ qua.
+     */
+    static KeywordMatcher build(Collection<String> rawWords) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String w : rawWords) {
+            String folded = fold(w.trim());
+            if (!folded.isEmpty()) unique.add(folded);
+        }
+        String[] words = unique.toArray(new String[0]);
+
+        int maxNodes = 1;
+        for (String w : words) maxNodes += w.length();
+
+        int[] rootNext = new int[Character.MAX_VALUE + 1];
+        Arrays.fill(rootNext, -1);
+        int tableSize = Integer.highestOneBit(Math.max(2, maxNodes) * 2 - 1) << 1;
+        long[] edgeKeys = new long[tableSize];
+        int[] edgeTargets = new int[tableSize];
+        int mask = tableSize - 1;
+
+        char[] edgeChar = new char[maxNodes];
+        int[] firstChild = new int[maxNodes];
+        int[] nextSibling = new int[maxNodes];
+        int[] output = new int[maxNodes];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(output, -1);
+        int count = 1;
+
+        // 1. Dựng cây tiền tố
+        for (int w = 0; w < words.length; w++) {
+            String word = words[w];
+            int node = 0;
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                int child = next(node, c, rootNext, edgeKeys, edgeTargets, mask);
+                if (child < 0) {
+                    child = count++;
+                    if (node == 0) {
+                        rootNext[c] = child;
+                    } else {
+                        long key = edgeKey(node, c);
+                        int slot = slot(key, mask);
+                        while (edgeKeys[slot] != 0) slot = (slot + 1) & mask;
+                        edgeKeys[slot] = key;
+                        edgeTargets[slot] = child;
+                    }
+                    edgeChar[child] = c;
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            if (output[node] < 0) output[node] = w;
+        }
+
+        // 2. Liên kết fail theo chiều rộng; nút kế thừa từ khóa của nút fail để chỉ cần kiểm tra một chỗ khi so khớp
+        int[] fail = new int[count];
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        for (int child = firstChild[0]; child >= 0; child = nextSibling[child]) queue[tail++] = child;
+        while (head < tail) {
+            int u = queue[head++];
+            for (int v = firstChild[u]; v >= 0; v = nextSibling[v]) {
+                char c = edgeChar[v];
+                int f = fail[u];
+                int t;
+                while ((t = next(f, c, rootNext, edgeKeys, edgeTargets, mask)) < 0 && f != 0) f = fail[f];
+                fail[v] = Math.max(t, 0);
+                if (output[v] < 0) output[v] = output[fail[v]];
+                queue[tail++] = v;
+            }
+        }
+
+        return new KeywordMatcher(words, rootNext, edgeKeys, edgeTargets, fail, Arrays.copyOf(output, count));
+    }
+
+    /**
+     * Trả về từ khóa (dạng đã chuẩn hóa) xuất hiện đầu tiên trong text, hoặc null nếu không có.
+     */
+    String firstMatch(CharSequence text) {
+        if (words.length == 0) return null;
+        int node = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = fold(text.charAt(i));
+            if (c == 0) continue;
+            int t;
+            while ((t = next(node, c, rootNext, edgeKeys, edgeTargets, edgeMask)) < 0 && node != 0) node = fail[node];
+            node = Math.max(t, 0);
+            if (output[node] >= 0) return words[output[node]];
+        }
+        return null;
+    }
+
+    int size() {
+        return words.length;
+    }
+
+    private static int next(int node, char c, int[] rootNext, long[] edgeKeys, int[] edgeTargets, int mask) {
+        if (node == 0) return rootNext[c];
+        long key = edgeKey(node, c);
+        for (int slot = slot(key, mask); edgeKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (edgeKeys[slot] == key) return edgeTargets[slot];
+        }
+        return -1;
+    }
+
+    private static long edgeKey(int node, char c) {
+        return ((long) node << 16) | c;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static char[] buildFoldTable(int size) {
+        char[] table = new char[size];
+        for (int c = 0; c < size; c++) {
+            char ch = (char) c;
+            if (ch == 'đ' || ch == 'Đ') {
+                table[c] = 'd';
+                continue;
+            }
+            // Tách chữ dựng sẵn thành chữ gốc + dấu kết hợp, giữ lại chữ gốc
+            String decomposed = Normalizer.normalize(String.valueOf(ch), Normalizer.Form.NFD);
+            char base = 0;
+            for (int i = 0; i < decomposed.length(); i++) {
+                char d = decomposed.charAt(i);
+                if (Character.getType(d) != Character.NON_SPACING_MARK) {
+                    base = d;
+                    break;
+                }
+            }
+            table[c] = base == 0 ? 0 : Character.toLowerCase(base);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,109 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.DBHelper;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ghi trạng thái online và last_seen của người dùng xuống DB ở nền: trạng thái thật nằm trong bộ nhớ
+ * (danh sách client đang kết nối), mỗi chu kỳ chỉ trạng thái cuối của từng người được ghi,
+ * gộp thành một câu lệnh nhiều dòng. Đăng nhập và ngắt kết nối vì thế không phải chờ MySQL.
+ */
+final class LastSeenWriter {
+    private static final String UPSERT_PREFIX = "INSERT INTO users (username, online, last_seen) VALUES ";
+    private static final String UPSERT_SUFFIX =
+            " ON DUPLICATE KEY UPDATE online = VALUES(online), last_seen = VALUES(last_seen)";
+
+    private record State(boolean online, long millis) {
+    }
+
+    private final Map<String, State> pending = new ConcurrentHashMap<>();
+    private final int batchSize;
+    private final ScheduledExecutorService writer;
+
+    LastSeenWriter(long flushMillis, int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "last-seen-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(10, flushMillis);
+        writer.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tạo bộ ghi theo các khóa server.lastSeen.* trong server.properties.
+     */
+    static LastSeenWriter fromConfig() {
+        return new LastSeenWriter(
+                ServerConfig.getLong("server.lastSeen.flushMillis", 1000),
+                ServerConfig.getInt("server.lastSeen.batchSize", 500));
+    }
+
+    /**
+     * Đưa mọi người dùng về offline bằng một câu lệnh (sau khi Server tắt đột ngột cột online có thể còn sai).
+     */
+    static void resetOnlineStatus() {
+        int rows = DBHelper.executeUpdate(
+                "UPDATE users SET online = FALSE WHERE online = TRUE AND username <> 'SERVER'");
+        if (rows > 0) AppLogger.info("Reset online status of " + rows + " users left over from the last run");
+    }
+
+    /**
+     * Ghi nhận thay đổi trạng thái; chỉ trạng thái cuối trong chu kỳ được ghi xuống DB.
+     */
+    void record(String username, boolean online) {
+        pending.put(username, new State(online, System.currentTimeMillis()));
+    }
+
+    /**
+     * Dừng luồng nền và ghi nốt các thay đổi còn chờ.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private synchronized void flush() {
+        if (pending.isEmpty()) return;
+        List<Object> params = new ArrayList<>(batchSize * 3);
+        int rows = 0;
+        for (String user : pending.keySet()) {
+            // Lấy ra từng mục: thay đổi mới xảy ra trong lúc đang ghi sẽ nằm lại cho chu kỳ sau
+            State state = pending.remove(user);
+            if (state == null) continue;
+            params.add(user);
+            params.add(state.online());
+            params.add(new Timestamp(state.millis()));
+            if (++rows == batchSize) {
+                write(rows, params);
+                params.clear();
+                rows = 0;
+            }
+        }
+        if (rows > 0) write(rows, params);
+    }
+
+    private static void write(int rows, List<Object> params) {
+        StringBuilder sql = new StringBuilder(UPSERT_PREFIX.length() + rows * 10 + UPSERT_SUFFIX.length());
+        sql.append(UPSERT_PREFIX);
+        for (int i = 0; i < rows; i++) sql.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+        sql.append(UPSERT_SUFFIX);
+        // Lỗi đã được DBHelper ghi log; trạng thái trong bộ nhớ vẫn đúng và lần đổi trạng thái sau sẽ ghi lại
+        DBHelper.executeUpdate(sql.toString(), params.toArray());
+    }
+}
@@ -3,42 +3,75 @@ package com.chatapp.server;
 import com.chatapp.common.AppLogger;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.text.Normalizer;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Pattern;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class LocalFilterService {
 
-    // Dùng Set để tìm kiếm nhanh
-    private static final Set<String> BAD_WORDS = new HashSet<>();
+    private static final String RESOURCE = "/bad_words.txt";
+
+    // Automaton hiện hành; được thay nguyên khối khi danh sách từ cấm thay đổi nên luồng kiểm tra không cần khóa
+    private static volatile KeywordMatcher matcher = KeywordMatcher.EMPTY;
+    // Thời điểm sửa đổi của các file đã nạp, dùng để phát hiện thay đổi trên đĩa
+    private static Map<Path, Long> loadedVersions = Map.of();
 
     // Block khởi tạo tĩnh: Tự động chạy khi Server bật
     static {
-        loadBadWords();
+        reload();
+        startWatcher(ServerConfig.getInt("server.filter.reloadSeconds", 5));
     }
 
-    private static void loadBadWords() {
-        try (InputStream is = LocalFilterService.class.getResourceAsStream("/bad_words.txt")) {
-            if (is == null) {
+    /**
+     * Nạp lại bad_words.txt và các file trong server.filter.wordFiles, dựng automaton mới rồi thay thế bản cũ.
+     */
+    public static synchronized void reload() {
+        List<String> words = new ArrayList<>();
+        Map<Path, Long> versions = new HashMap<>();
+        try {
+            URL url = LocalFilterService.class.getResource(RESOURCE);
+            if (url == null) {
                 AppLogger.warning("⚠️ Không tìm thấy file bad_words.txt!");
-                return;
+            } else {
+                try (InputStream is = url.openStream()) {
+                    readWords(is, words);
+                }
+                // Chỉ theo dõi được khi resource là file thật (chạy từ thư mục classes, không phải trong jar)
+                if ("file".equals(url.getProtocol())) {
+                    Path path = Paths.get(url.toURI());
+                    versions.put(path, lastModified(path));
+                }
             }
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String word = line.trim().toLowerCase();
-                if (!word.isEmpty()) {
-                    BAD_WORDS.add(word);
-                    // Thêm cả phiên bản không dấu để bắt chặt hơn
-                    BAD_WORDS.add(removeAccents(word));
+
+            for (Path path : externalFiles()) {
+                versions.put(path, lastModified(path));
+                if (!Files.isReadable(path)) {
+                    AppLogger.warning("⚠️ Không đọc được danh sách từ cấm: " + path);
+                    continue;
+                }
+                try (InputStream is = Files.newInputStream(path)) {
+                    readWords(is, words);
                 }
             }
-            AppLogger.info("✅ Local Filter Loaded: " + BAD_WORDS.size() + " keywords.");
+
+            KeywordMatcher built = KeywordMatcher.build(words);
+            matcher = built;
+            loadedVersions = versions;
+            AppLogger.info("✅ Local Filter Loaded: " + built.size() + " keywords.");
         } catch (Exception e) {
+            // Giữ automaton cũ nếu nạp lỗi
             AppLogger.severe("Lỗi khi load bộ lọc từ khóa", e);
         }
     }
@@ -49,24 +82,70 @@ public class LocalFilterService {
     public static boolean isContentViolated(String content) {
         if (content == null || content.isEmpty()) return false;
 
-        // 1. Chuyển về chữ thường + Xóa dấu tiếng Việt
-        String normalized = removeAccents(content.toLowerCase());
-
-        // 2. Kiểm tra từng từ cấm
-        for (String badWord : BAD_WORDS) {
-            // Dùng contains để bắt cả "zzzznguzzz"
-            if (normalized.contains(badWord)) {
-                AppLogger.info("🚫 Bắt được từ cấm: " + badWord + " trong tin nhắn: " + content);
-                return true;
-            }
+        // Một lượt duyệt duy nhất, chuẩn hóa (chữ thường + bỏ dấu) từng ký tự ngay khi so khớp
+        // nên vẫn bắt cả "zzzznguzzz"
+        String badWord = matcher.firstMatch(content);
+        if (badWord != null) {
+            AppLogger.info("🚫 Bắt được từ cấm: " + badWord + " trong tin nhắn: " + content);
+            return true;
         }
         return false;
     }
 
-    // Hàm tiện ích: Xóa dấu tiếng Việt (Chết -> Chet)
-    private static String removeAccents(String s) {
-        String temp = Normalizer.normalize(s, Normalizer.Form.NFD);
-        Pattern pattern = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
-        return pattern.matcher(temp).replaceAll("").replace('đ', 'd').replace('Đ', 'D');
+    /**
+     * Số từ khóa đang được áp dụng.
+     */
+    public static int size() {
+        return matcher.size();
+    }
+
+    private static void readWords(InputStream is, List<String> words) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String word = line.trim();
+            if (!word.isEmpty() && !word.startsWith("#")) words.add(word);
+        }
+    }
+
+    private static List<Path> externalFiles() {
+        List<Path> paths = new ArrayList<>();
+        for (String p : ServerConfig.getString("server.filter.wordFiles", "").split(",")) {
+            if (!p.isBlank()) paths.add(Paths.get(p.trim()));
+        }
+        return paths;
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Kiểm tra định kỳ thời điểm sửa đổi của các file từ cấm, thay đổi thì nạp lại
+    private static void startWatcher(int periodSeconds) {
+        if (periodSeconds <= 0) return;
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "filter-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(() -> {
+            Map<Path, Long> versions;
+            synchronized (LocalFilterService.class) {
+                versions = loadedVersions;
+            }
+            boolean changed = !versions.keySet().containsAll(externalFiles());
+            for (Map.Entry<Path, Long> e : versions.entrySet()) {
+                if (changed) break;
+                changed = lastModified(e.getKey()) != e.getValue();
+            }
+            if (changed) {
+                AppLogger.info("Danh sách từ cấm đã thay đổi, nạp lại bộ lọc");
+                reload();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,228 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.DBHelper;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Lưu tin nhắn kiểu write-behind: các làn dispatch chỉ xếp tin vào hàng đợi có giới hạn rồi gửi đi ngay,
+ * một luồng ghi riêng gom tin thành lô (theo số lượng hoặc thời gian chờ) và ghi bằng JDBC batch.
+ * Chế độ bền vững: enqueue (xác nhận ngay khi vào hàng đợi) hoặc persist (chờ lô chứa tin được commit rồi mới gửi).
+ */
+final class MessageStore {
+
+    enum Durability {ENQUEUE, PERSIST}
+
+    private static final String INSERT_SQL =
+            "INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES(?,?,?,?,?)";
+    // Thời gian tối đa một làn chờ lô được commit ở chế độ persist
+    private static final long PERSIST_WAIT_MILLIS = 5_000;
+
+    private static final class Entry {
+        final Object[] row;
+        final CompletableFuture<Void> persisted;
+        final LongConsumer onId;
+
+        Entry(Object[] row, CompletableFuture<Void> persisted, LongConsumer onId) {
+            this.row = row;
+            this.persisted = persisted;
+            this.onId = onId;
+        }
+    }
+
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long flushNanos;
+    private final Durability durability;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Đếm số tin đã vào hàng đợi / đã ghi xong, dùng để flush() chờ đúng các tin đứng trước nó
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progressed = progressLock.newCondition();
+    private long enqueuedCount;
+    private long writtenCount;
+
+    MessageStore(int queueSize, int batchSize, long flushMillis, Durability durability) {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.durability = durability;
+        this.writer = new Thread(this::writeLoop, "message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Tạo MessageStore theo các khóa server.store.* trong server.properties.
+     */
+    static MessageStore fromConfig() {
+        Durability durability = "persist".equalsIgnoreCase(ServerConfig.getString("server.store.durability", "enqueue"))
+                ? Durability.PERSIST : Durability.ENQUEUE;
+        return new MessageStore(
+                ServerConfig.getInt("server.store.queueSize", 10_000),
+                ServerConfig.getInt("server.store.batchSize", 200),
+                ServerConfig.getLong("server.store.flushMillis", 50),
+                durability);
+    }
+
+    /**
+     * Lưu một tin nhắn với thời điểm cho trước. Ở chế độ persist, hàm chỉ trả về khi tin đã được commit
+     * (hoặc hết thời gian chờ). onId (có thể null) nhận id của dòng sau khi được ghi.
+     */
+    void append(String type, String sender, String receiver, String content, Timestamp timestamp, LongConsumer onId) {
+        Object[] row = {type, sender, receiver, content, timestamp};
+        if (!running) {
+            // Luồng ghi đã dừng (đang tắt Server): ghi thẳng
+            insertNow(row, onId);
+            return;
+        }
+
+        CompletableFuture<Void> persisted = durability == Durability.PERSIST ? new CompletableFuture<>() : null;
+        // Đếm trước khi xếp hàng: flush() gọi sau đó trên cùng luồng chắc chắn chờ cả tin này
+        progressLock.lock();
+        try {
+            enqueuedCount++;
+        } finally {
+            progressLock.unlock();
+        }
+        try {
+            // Hàng đợi đầy thì làn gửi phải chờ (áp lực ngược) thay vì làm mất tin
+            queue.put(new Entry(row, persisted, onId));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            insertNow(row, onId);
+            markWritten(1);
+            return;
+        }
+
+        if (persisted != null) {
+            try {
+                persisted.get(PERSIST_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                AppLogger.warning("Message persist still pending after " + PERSIST_WAIT_MILLIS + "ms, delivering anyway");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                AppLogger.severe("Message persist failed", e);
+            }
+        }
+    }
+
+    /**
+     * Chờ tới khi mọi tin đã xếp hàng trước lời gọi này được ghi xuống DB (VD: trước khi đọc lịch sử).
+     */
+    void flush() {
+        progressLock.lock();
+        try {
+            long target = enqueuedCount;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PERSIST_WAIT_MILLIS);
+            while (writtenCount < target && writer.isAlive()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    AppLogger.warning("Message flush timed out with " + (target - writtenCount) + " rows pending");
+                    return;
+                }
+                progressed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    /**
+     * Dừng nhận lô mới, ghi nốt các tin còn trong hàng đợi rồi dừng luồng ghi.
+     */
+    void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            AppLogger.warning("Message writer did not finish, " + queue.size() + " rows left unsaved");
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(flushNanos, TimeUnit.NANOSECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                // Gom thêm tới khi đủ lô hoặc hết thời gian chờ tính từ tin đầu tiên
+                long deadline = System.nanoTime() + flushNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !running) break;
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                if (!batch.isEmpty()) write(batch);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                AppLogger.severe("Unexpected error in message writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        List<Object[]> rows = new ArrayList<>(batch.size());
+        for (Entry e : batch) rows.add(e.row);
+
+        long[] ids = DBHelper.executeBatchAndGetIds(INSERT_SQL, rows);
+        for (int i = 0; i < batch.size(); i++) {
+            Entry e = batch.get(i);
+            if (ids == null) {
+                // Lô lỗi: ghi lại từng dòng để một dòng hỏng không làm mất cả lô
+                insertNow(e.row, e.onId);
+            } else if (e.onId != null && ids[i] > 0) {
+                e.onId.accept(ids[i]);
+            }
+            if (e.persisted != null) e.persisted.complete(null);
+        }
+        markWritten(batch.size());
+    }
+
+    private static void insertNow(Object[] row, LongConsumer onId) {
+        long id = DBHelper.executeInsertAndGetId(INSERT_SQL, row);
+        if (onId != null && id > 0) onId.accept(id);
+    }
+
+    private void markWritten(int count) {
+        progressLock.lock();
+        try {
+            writtenCount += count;
+            progressed.signalAll();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.Opcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Chuỗi kiểm duyệt nội dung gồm các luật cắm thêm được, chạy trên nhóm luồng riêng với thời gian chờ cho từng luật.
+ * Luật chế độ BLOCK chạy trước khi gửi (song song, dừng ở vi phạm đầu tiên theo thứ tự đăng ký);
+ * luật chế độ RETRACT chạy sau khi tin đã được gửi, vi phạm thì tin bị thu hồi, nên không làm chậm việc gửi.
+ * Mỗi luật có thời gian chạy tối đa (tính từ lúc bắt đầu chạy) và thời gian chờ trong hàng đợi tối đa; hàng đợi
+ * có giới hạn. Luật BLOCK quá thời gian, bị từ chối vì hàng đợi đầy hoặc lỗi thì chặn tin (an toàn khi quá tải);
+ * luật RETRACT trong các trường hợp đó thì cho qua.
+ */
+final class ModerationPipeline {
+
+    enum Mode {BLOCK, RETRACT, OFF}
+
+    /**
+     * Nội dung cần kiểm duyệt: loại gói (PRIVATE, GROUP, FILE_PRIVATE...), người gửi, đích, văn bản và kích thước (byte).
+     */
+    record Item(Opcode kind, String sender, String target, String text, long size) {
+    }
+
+    /**
+     * Một luật kiểm duyệt; trả về lý do vi phạm (hiển thị cho người gửi) hoặc null nếu hợp lệ.
+     * Có thể được gọi đồng thời từ nhiều luồng.
+     */
+    interface Rule {
+        String name();
+
+        String check(Item item) throws Exception;
+    }
+
+    private static final class Stage {
+        final Rule rule;
+        final Mode mode;
+        final long timeoutMillis;
+        final LongAdder calls = new LongAdder();
+        final LongAdder hits = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        Stage(Rule rule, Mode mode, long timeoutMillis) {
+            this.rule = rule;
+            this.mode = mode;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * Một lượt chạy luật: kết quả đã xử lý lỗi/quá hạn, cùng future gốc và tác vụ trong pool để hủy khi không
+     * còn cần kết quả (task = null nếu luật không được xếp hàng).
+     */
+    private record Run(CompletableFuture<String> result, CompletableFuture<String> raw, Future<?> task) {
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final long queueWaitMillis;
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+
+    ModerationPipeline(int threads, int queueSize, long queueWaitMillis) {
+        int count = threads > 0 ? threads : Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        this.queueWaitMillis = Math.max(0, queueWaitMillis);
+        AtomicInteger seq = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(count, count, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread t = new Thread(r, "moderation-" + seq.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Tạo pipeline với các luật dựng sẵn theo các khóa server.moderation.* trong server.properties.
+     */
+    static ModerationPipeline fromConfig() {
+        ModerationPipeline pipeline = new ModerationPipeline(ServerConfig.getInt("server.moderation.threads", 0),
+                ServerConfig.getInt("server.moderation.queueSize", 1024),
+                ServerConfig.getLong("server.moderation.queueWaitMillis", 200));
+        pipeline.addConfigured(new ModerationRules.SizeLimit(
+                ServerConfig.getInt("server.moderation.size.maxTextChars", 4000),
+                ServerConfig.getLong("server.moderation.size.maxFileBytes", 0)), Mode.BLOCK);
+        pipeline.addConfigured(new ModerationRules.Flood(
+                ServerConfig.getInt("server.moderation.flood.maxMessages", 10),
+                ServerConfig.getLong("server.moderation.flood.windowMillis", 5000)), Mode.BLOCK);
+        pipeline.addConfigured(new ModerationRules.WordList(), Mode.BLOCK);
+        pipeline.addConfigured(new ModerationRules.Links(
+                ServerConfig.getString("server.moderation.links.allow", "")), Mode.OFF);
+        return pipeline;
+    }
+
+    /**
+     * Đăng ký một luật ở cuối chuỗi.
+     */
+    void addRule(Rule rule, Mode mode, long timeoutMillis) {
+        if (mode == Mode.OFF) return;
+        stages.add(new Stage(rule, mode, timeoutMillis));
+    }
+
+    // Chế độ và thời gian chờ lấy từ server.moderation.<tên luật>.mode / .timeoutMillis
+    private void addConfigured(Rule rule, Mode defaultMode) {
+        String prefix = "server.moderation." + rule.name();
+        Mode mode;
+        try {
+            mode = Mode.valueOf(ServerConfig.getString(prefix + ".mode", defaultMode.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            AppLogger.warning("Giá trị cấu hình không hợp lệ cho " + prefix + ".mode, dùng mặc định " + defaultMode);
+            mode = defaultMode;
+        }
+        addRule(rule, mode, ServerConfig.getLong(prefix + ".timeoutMillis", 50));
+    }
+
+    /**
+     * Chạy các luật BLOCK trước khi gửi; trả về lý do vi phạm đầu tiên, hoặc null nếu được phép gửi.
+     */
+    String screen(Item item) {
+        List<Stage> blocking = new ArrayList<>();
+        for (Stage s : stages) {
+            if (s.mode == Mode.BLOCK) blocking.add(s);
+        }
+        if (blocking.isEmpty()) return null;
+
+        // Chạy song song, đọc kết quả theo thứ tự đăng ký để kết quả ổn định
+        // Mỗi kết quả hoàn thành muộn nhất sau queueWaitMillis + timeoutMillis nên làn dispatch không chờ vô hạn
+        List<Run> runs = new ArrayList<>(blocking.size());
+        for (Stage s : blocking) runs.add(run(s, item));
+        for (int i = 0; i < runs.size(); i++) {
+            String reason = runs.get(i).result().join();
+            if (reason != null) {
+                // Đã có kết luận: bỏ các luật còn chờ trong hàng đợi hoặc đang chạy
+                for (int j = i + 1; j < runs.size(); j++) {
+                    Run run = runs.get(j);
+                    cancelTask(run.task());
+                    run.raw().cancel(false);
+                }
+                return reason;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chạy các luật RETRACT sau khi tin đã được gửi, nối tiếp và dừng ở vi phạm đầu tiên;
+     * onViolation nhận lý do nếu tin cần bị thu hồi.
+     */
+    void audit(Item item, Consumer<String> onViolation) {
+        CompletableFuture<String> chain = null;
+        for (Stage s : stages) {
+            if (s.mode != Mode.RETRACT) continue;
+            chain = chain == null ? run(s, item).result()
+                    : chain.thenCompose(reason -> reason != null ? CompletableFuture.completedFuture(reason)
+                    : run(s, item).result());
+        }
+        if (chain == null) return;
+        chain.thenAccept(reason -> {
+            if (reason != null) onViolation.accept(reason);
+        });
+    }
+
+    /**
+     * Thống kê từng luật: số lần chạy, vi phạm, quá thời gian, lỗi và thời gian trung bình.
+     */
+    List<String> stats() {
+        List<String> lines = new ArrayList<>();
+        for (Stage s : stages) {
+            long calls = s.calls.sum();
+            lines.add(String.format("%s [%s] calls=%d hits=%d timeouts=%d errors=%d rejected=%d avg=%.1fus",
+                    s.rule.name(), s.mode, calls, s.hits.sum(), s.timeouts.sum(), s.errors.sum(), s.rejected.sum(),
+                    calls == 0 ? 0.0 : s.nanos.sum() / 1000.0 / calls));
+        }
+        return lines;
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private Run run(Stage stage, Item item) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            // Hạn chót tính từ lúc xếp hàng: hàng đợi ùn ứ thì luật quá hạn thay vì giữ làn dispatch chờ mãi
+            result.orTimeout(queueWaitMillis + stage.timeoutMillis, TimeUnit.MILLISECONDS);
+            task = pool.submit(() -> {
+                if (result.isDone()) return; // Đã quá hạn hoặc bị hủy khi còn trong hàng đợi
+                // Thời gian chạy của riêng luật, tính từ lúc bắt đầu chạy
+                result.orTimeout(stage.timeoutMillis, TimeUnit.MILLISECONDS);
+                long start = System.nanoTime();
+                try {
+                    result.complete(stage.rule.check(item));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    stage.calls.increment();
+                    stage.nanos.add(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Hàng đợi đầy hoặc pipeline đã dừng (Server đang tắt)
+            stage.rejected.increment();
+            result.cancel(false);
+            return new Run(CompletableFuture.completedFuture(failureResult(stage)), result, null);
+        }
+        CompletableFuture<String> handled = result.handle((reason, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof CancellationException) {
+                    // Bị hủy vì luật khác đã quyết định kết quả
+                    return null;
+                }
+                if (cause instanceof TimeoutException) {
+                    // Ngắt luật chạy quá lâu (hoặc bỏ khỏi hàng đợi) để trả chỗ cho các luật khác
+                    cancelTask(task);
+                    stage.timeouts.increment();
+                } else {
+                    stage.errors.increment();
+                    AppLogger.severe("Moderation rule " + stage.rule.name() + " failed", cause);
+                }
+                return failureResult(stage);
+            }
+            if (reason != null) stage.hits.increment();
+            return reason;
+        });
+        return new Run(handled, result, task);
+    }
+
+    // Tác vụ còn trong hàng đợi được lấy ra ngay để không chiếm chỗ của hàng đợi có giới hạn
+    private void cancelTask(Future<?> task) {
+        if (task == null) return;
+        task.cancel(true);
+        if (task instanceof Runnable queued) pool.remove(queued);
+    }
+
+    // Luật BLOCK không kiểm tra được thì chặn (không để tin vi phạm lọt qua khi quá tải); RETRACT thì cho qua
+    private static String failureResult(Stage stage) {
+        return stage.mode == Mode.BLOCK ? "Server chưa kiểm duyệt được tin nhắn, hãy thử lại" : null;
+    }
+}
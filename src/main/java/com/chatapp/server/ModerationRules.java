@@ -0,0 +1,189 @@
+package com.chatapp.server;
+
+import com.chatapp.common.Opcode;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Các luật kiểm duyệt dựng sẵn cho ModerationPipeline.
+ */
+final class ModerationRules {
+
+    private ModerationRules() {
+    }
+
+    /**
+     * Từ khóa cấm theo danh sách của LocalFilterService (áp dụng cho tin nhắn và tên file).
+     */
+    static final class WordList implements ModerationPipeline.Rule {
+        WordList() {
+            // Nạp danh sách từ cấm ngay khi khởi động thay vì ở tin nhắn đầu tiên
+            LocalFilterService.size();
+        }
+
+        @Override
+        public String name() {
+            return "words";
+        }
+
+        @Override
+        public String check(ModerationPipeline.Item item) {
+            return LocalFilterService.isContentViolated(item.text()) ? "chứa từ khóa cấm" : null;
+        }
+    }
+
+    /**
+     * Giới hạn độ dài văn bản (ký tự) và kích thước file (byte, 0 = không giới hạn).
+     */
+    static final class SizeLimit implements ModerationPipeline.Rule {
+        private final int maxTextChars;
+        private final long maxFileBytes;
+
+        SizeLimit(int maxTextChars, long maxFileBytes) {
+            this.maxTextChars = maxTextChars;
+            this.maxFileBytes = maxFileBytes;
+        }
+
+        @Override
+        public String name() {
+            return "size";
+        }
+
+        @Override
+        public String check(ModerationPipeline.Item item) {
+            if (maxTextChars > 0 && item.text() != null && item.text().length() > maxTextChars) {
+                return "nội dung quá dài (tối đa " + maxTextChars + " ký tự)";
+            }
+            if (maxFileBytes > 0 && isFile(item.kind()) && item.size() > maxFileBytes) {
+                return "file quá lớn (tối đa " + maxFileBytes / (1024 * 1024) + " MB)";
+            }
+            return null;
+        }
+
+        private static boolean isFile(Opcode kind) {
+            return kind == Opcode.FILE_PRIVATE || kind == Opcode.FILE_GROUP
+                    || kind == Opcode.VOICE_PRIVATE || kind == Opcode.VOICE_GROUP;
+        }
+    }
+
+    /**
+     * Chống spam: mỗi người gửi tối đa maxMessages tin trong cửa sổ windowMillis (0 = tắt).
+     */
+    static final class Flood implements ModerationPipeline.Rule {
+        private final int maxMessages;
+        private final long windowMillis;
+        // Thời điểm của maxMessages tin gần nhất của mỗi người, lưu vòng tròn
+        private final Map<String, Window> recent = new ConcurrentHashMap<>();
+        private final AtomicLong lastSweep = new AtomicLong();
+
+        private static final class Window {
+            final long[] times;
+            int next;
+            long last;
+            // Đã bị dọn khỏi recent: người gửi lấy cửa sổ mới
+            boolean evicted;
+
+            Window(int size) {
+                times = new long[size];
+            }
+        }
+
+        Flood(int maxMessages, long windowMillis) {
+            this.maxMessages = maxMessages;
+            this.windowMillis = windowMillis;
+        }
+
+        @Override
+        public String name() {
+            return "flood";
+        }
+
+        @Override
+        public String check(ModerationPipeline.Item item) {
+            if (maxMessages <= 0 || windowMillis <= 0) return null;
+            long now = System.currentTimeMillis();
+            sweep(now);
+            while (true) {
+                Window w = recent.computeIfAbsent(item.sender(), k -> new Window(maxMessages));
+                synchronized (w) {
+                    if (w.evicted) continue;
+                    // Ô sắp ghi đè giữ tin cũ nhất trong maxMessages tin gần nhất
+                    long oldest = w.times[w.next];
+                    if (oldest != 0 && now - oldest < windowMillis) return "gửi tin quá nhanh, hãy thử lại sau";
+                    w.times[w.next] = now;
+                    w.next = (w.next + 1) % maxMessages;
+                    w.last = now;
+                }
+                return null;
+            }
+        }
+
+        // Mỗi cửa sổ thời gian một lần: bỏ người gửi không có tin nào trong cửa sổ (không còn ảnh hưởng kết quả)
+        private void sweep(long now) {
+            long previous = lastSweep.get();
+            if (now - previous < windowMillis || !lastSweep.compareAndSet(previous, now)) return;
+            recent.forEach((sender, w) -> {
+                synchronized (w) {
+                    if (now - w.last >= windowMillis) {
+                        w.evicted = true;
+                        recent.remove(sender, w);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Liên kết trong tin nhắn: chỉ cho phép các tên miền trong danh sách allow (phân cách bằng dấu phẩy,
+     * gồm cả tên miền con); danh sách rỗng nghĩa là cấm mọi liên kết.
+     */
+    static final class Links implements ModerationPipeline.Rule {
+        private static final Pattern URL = Pattern.compile(
+                "(?i)\\b(?:https?://|www\\.)[^\\s<>\"]+");
+        private final Set<String> allowed = new HashSet<>();
+
+        Links(String allowList) {
+            for (String d : allowList.split(",")) {
+                if (!d.isBlank()) allowed.add(d.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+
+        @Override
+        public String name() {
+            return "links";
+        }
+
+        @Override
+        public String check(ModerationPipeline.Item item) {
+            if (item.text() == null) return null;
+            Matcher m = URL.matcher(item.text());
+            while (m.find()) {
+                if (!isAllowed(m.group())) return "chứa liên kết không được phép";
+            }
+            return null;
+        }
+
+        private boolean isAllowed(String url) {
+            String host;
+            try {
+                host = URI.create(url.regionMatches(true, 0, "www.", 0, 4) ? "http://" + url : url).getHost();
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (host == null) return false;
+            host = host.toLowerCase(Locale.ROOT);
+            for (String d : allowed) {
+                if (host.equals(d) || host.endsWith("." + d)) return true;
+            }
+            return false;
+        }
+    }
+}
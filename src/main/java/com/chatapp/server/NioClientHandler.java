@@ -0,0 +1,212 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.FrameCodec;
+import com.chatapp.common.Opcode;
+import com.chatapp.common.Packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Kết nối client chạy trên event-loop của NioTransport.
+ * Dữ liệu đọc từ bộ đệm dùng chung được tách thành từng dòng (hoặc khung nhị phân sau khi thương lượng);
+ * chỉ khi một dòng/khung bị cắt ngang giữa hai lần đọc thì kết nối mới giữ tạm phần còn dở,
+ * nên kết nối rảnh gần như không chiếm bộ nhớ.
+ */
+class NioClientHandler extends ClientHandler {
+    private final SocketChannel channel;
+    private final NioTransport.EventLoop loop;
+    private final String remoteAddress;
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private volatile SelectionKey key;
+    private volatile boolean closed = false;
+
+    // Phần dòng/khung còn dở giữa hai lần đọc (chỉ dùng trên luồng event-loop)
+    private byte[] partial;
+    private int partialLen;
+    private boolean binaryIn = false;
+    // Phần lô gửi chưa ghi hết do bộ đệm gửi của socket đầy (chỉ dùng trên luồng event-loop)
+    private ByteBuffer pendingWrite;
+
+    NioClientHandler(SocketChannel channel, NioTransport.EventLoop loop,
+                     ServerNetworkManager networkManager) throws IOException {
+        super(networkManager);
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Gắn SelectionKey sau khi event-loop đăng ký kênh; bật OP_WRITE nếu đã có dữ liệu chờ gửi.
+     */
+    void attach(SelectionKey key) {
+        this.key = key;
+        if (closed) {
+            key.cancel();
+            return;
+        }
+        if (!outbound.isEmpty()) enableWriteInterest();
+    }
+
+    /**
+     * Đọc dữ liệu có sẵn vào bộ đệm dùng chung của event-loop và tách thành các gói tin.
+     */
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = channel.read(buffer);
+        if (n < 0) {
+            cleanup();
+            return;
+        }
+        if (n == 0) return;
+        buffer.flip();
+
+        if (partial == null) {
+            int consumed = process(buffer, buffer.position(), buffer.limit(), buffer.position());
+            if (!closed && consumed < buffer.limit()) appendPartial(buffer, consumed, buffer.limit());
+            return;
+        }
+
+        // Có phần còn dở: nối dữ liệu mới vào rồi xử lý trên mảng tạm. Phần dở cũ chắc chắn không chứa '\n'
+        // nên chỉ cần tìm từ chỗ nối trở đi (không quét lại cả dòng dài nhỏ giọt từng ít byte)
+        int scanFrom = partialLen;
+        appendPartial(buffer, buffer.position(), buffer.limit());
+        if (closed) return;
+        byte[] held = partial;
+        int heldLen = partialLen;
+        int consumed = process(ByteBuffer.wrap(held), 0, heldLen, scanFrom);
+        if (closed) return;
+        if (consumed == heldLen) {
+            // Trả lại bộ nhớ khi không còn gì dở dang
+            partial = null;
+            partialLen = 0;
+        } else if (consumed > 0) {
+            System.arraycopy(held, consumed, held, 0, heldLen - consumed);
+            partialLen = heldLen - consumed;
+        }
+    }
+
+    /**
+     * Tách các dòng (hoặc khung nhị phân) hoàn chỉnh trong [start, limit); trả về vị trí đầu phần chưa trọn vẹn.
+     * Các byte trước scanFrom đã được biết là không có '\n'.
+     */
+    private int process(ByteBuffer buf, int start, int limit, int scanFrom) throws IOException {
+        int pos = start;
+        while (pos < limit && !closed) {
+            if (binaryIn) {
+                int end = FrameCodec.frameEnd(buf, pos, limit);
+                if (end < 0) break;
+                onPacket(FrameCodec.decode(buf, pos, end));
+                pos = end;
+            } else {
+                int nl = -1;
+                for (int i = Math.max(pos, scanFrom); i < limit; i++) {
+                    if (buf.get(i) == '\n') {
+                        nl = i;
+                        break;
+                    }
+                }
+                if (nl < 0) break;
+                int lineEnd = (nl > pos && buf.get(nl - 1) == '\r') ? nl - 1 : nl;
+                byte[] bytes = new byte[lineEnd - pos];
+                buf.get(pos, bytes, 0, bytes.length);
+                pos = nl + 1;
+
+                Packet packet = Packet.fromText(new String(bytes, StandardCharsets.UTF_8));
+                if (packet.opcode() == Opcode.SWITCH_PROTO) {
+                    // Chuyển ngay trên event-loop: các byte tiếp theo (kể cả trong bộ đệm này) là khung nhị phân
+                    binaryIn = acceptProtocolSwitch(packet);
+                } else {
+                    onPacket(packet);
+                }
+            }
+        }
+        return pos;
+    }
+
+    private void appendPartial(ByteBuffer buffer, int from, int to) {
+        int len = to - from;
+        if (partialLen + len > MAX_LINE_BYTES) {
+            AppLogger.warning("Dropping connection " + remoteAddress + ": line exceeds " + MAX_LINE_BYTES + " bytes");
+            partial = null;
+            partialLen = 0;
+            cleanup();
+            return;
+        }
+        if (partial == null) {
+            partial = new byte[Math.max(len * 2, 256)];
+        } else if (partialLen + len > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLen + len));
+        }
+        buffer.get(from, partial, partialLen, len);
+        partialLen += len;
+    }
+
+    private void onPacket(Packet packet) {
+        // Cả hai nhánh chỉ xếp việc sang làn điều phối hoặc pool xác thực nên có thể gọi ngay trên event-loop
+        handlePacket(packet);
+    }
+
+    @Override
+    protected void onOutboundReady() {
+        if (writeRequested.compareAndSet(false, true)) loop.requestWrite(this);
+    }
+
+    /**
+     * Bật OP_WRITE để event-loop gửi dữ liệu khi socket sẵn sàng (chỉ gọi trên luồng event-loop).
+     */
+    void enableWriteInterest() {
+        SelectionKey k = key;
+        if (k == null || !k.isValid()) return;
+        k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Ghi dữ liệu đang chờ (gộp nhiều gói mỗi lần ghi) cho tới khi hết hàng đợi hoặc bộ đệm gửi của socket đầy.
+     */
+    void onWritable() throws IOException {
+        while (true) {
+            if (pendingWrite == null) {
+                byte[] batch = outbound.pollBatch(WRITE_BATCH_BYTES, this::encode);
+                if (batch == null) break;
+                pendingWrite = ByteBuffer.wrap(batch);
+            }
+            channel.write(pendingWrite);
+            if (pendingWrite.hasRemaining()) return;
+            pendingWrite = null;
+        }
+        SelectionKey k = key;
+        k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
+        writeRequested.set(false);
+        // Có luồng khác vừa thêm dữ liệu trước khi cờ được hạ
+        if (!outbound.isEmpty() && writeRequested.compareAndSet(false, true)) enableWriteInterest();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        outbound.close();
+        SelectionKey k = key;
+        if (k != null) k.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
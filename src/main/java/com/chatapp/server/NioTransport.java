@@ -0,0 +1,180 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tầng truyền tải không chặn cho cổng chat: một luồng nhận kết nối và một số ít luồng event-loop,
+ * mỗi luồng sở hữu một Selector quản lý hàng nghìn SocketChannel.
+ * Kết nối rảnh không tốn luồng hay bộ đệm riêng; bộ đệm đọc được dùng chung trong mỗi event-loop.
+ */
+class NioTransport {
+    private final ServerNetworkManager networkManager;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    /**
+     * Tạo tầng NIO với số event-loop cho trước (0 = theo số nhân CPU).
+     */
+    NioTransport(ServerNetworkManager networkManager, int loopCount) {
+        this.networkManager = networkManager;
+        int count = loopCount > 0 ? loopCount : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.loops = new EventLoop[count];
+    }
+
+    /**
+     * Mở cổng lắng nghe và khởi động các luồng event-loop.
+     */
+    void start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        AppLogger.info("NIO transport listening on port " + port + " with " + loops.length + " event loops");
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                NioClientHandler handler = new NioClientHandler(channel, loop, networkManager);
+                networkManager.handlerOpened(handler);
+                loop.register(handler);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    networkManager.log("Error accepting connection: " + e.getMessage());
+                    AppLogger.severe("Error accepting connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Đóng cổng lắng nghe và dừng các event-loop (các kết nối được đóng qua ServerNetworkManager).
+     */
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            AppLogger.severe("Error closing NIO server channel", e);
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+
+    /**
+     * Một luồng event-loop: chờ sự kiện trên Selector, đọc dữ liệu vào bộ đệm dùng chung
+     * rồi để từng kết nối tự tách dòng; ghi dữ liệu khi socket sẵn sàng.
+     */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioClientHandler> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Bộ đệm đọc dùng chung cho mọi kết nối của event-loop này
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private volatile boolean active = true;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(NioClientHandler handler) {
+            pendingRegistrations.add(handler);
+            selector.wakeup();
+        }
+
+        /**
+         * Yêu cầu event-loop bật OP_WRITE cho một kết nối vừa có dữ liệu chờ gửi.
+         */
+        void requestWrite(NioClientHandler handler) {
+            pendingWrites.add(handler);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            active = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (active) {
+                try {
+                    selector.select();
+                    processRegistrations();
+                    processWrites();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientHandler handler = (NioClientHandler) key.attachment();
+                        if (!key.isValid()) {
+                            handler.cleanup();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) handler.onReadable(readBuffer);
+                            if (key.isValid() && key.isWritable()) handler.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            handler.cleanup();
+                        }
+                    }
+                } catch (IOException e) {
+                    AppLogger.severe("NIO event loop error", e);
+                } catch (Exception e) {
+                    AppLogger.severe("Unexpected error in NIO event loop", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private void processRegistrations() {
+            NioClientHandler handler;
+            while ((handler = pendingRegistrations.poll()) != null) {
+                try {
+                    handler.attach(handler.channel().register(selector, SelectionKey.OP_READ, handler));
+                } catch (IOException e) {
+                    handler.cleanup();
+                }
+            }
+        }
+
+        private void processWrites() {
+            NioClientHandler handler;
+            while ((handler = pendingWrites.poll()) != null) {
+                handler.enableWriteInterest();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.chatapp.server;
+
+import com.chatapp.common.Packet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Hàng đợi gửi có giới hạn của một kết nối. Luồng phát tin chỉ xếp gói vào đây rồi đi tiếp,
+ * còn việc ghi ra socket do writer riêng của kết nối đảm nhận (gộp nhiều gói trong một lần ghi).
+ * Khi đầy: bỏ các gói tạm thời (TYPING) trước, nếu vẫn không đủ chỗ thì báo tràn để ngắt client chậm.
+ * Gói tin chỉ được mã hóa (văn bản hay nhị phân) lúc writer lấy ra, nên việc đổi giao thức diễn ra đúng thứ tự hàng đợi.
+ */
+final class OutboundQueue {
+
+    /**
+     * Kết quả khi xếp một gói tin vào hàng đợi.
+     */
+    enum Result {QUEUED, DROPPED, OVERFLOW}
+
+    private static final class Entry {
+        final Packet packet;
+        final int size;
+
+        Entry(Packet packet) {
+            this.packet = packet;
+            this.size = packet.estimatedSize();
+        }
+    }
+
+    private final int maxPackets;
+    private final long maxBytes;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>(4);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long queuedBytes;
+    private boolean closed;
+
+    OutboundQueue(int maxPackets, long maxBytes) {
+        this.maxPackets = maxPackets;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Xếp một gói tin vào hàng đợi theo chính sách tràn đã cấu hình.
+     */
+    Result offer(Packet packet) {
+        Entry entry = new Entry(packet);
+        lock.lock();
+        try {
+            if (closed) return Result.DROPPED;
+            while (isFull(entry.size)) {
+                if (packet.isEphemeral()) {
+                    ServerMetrics.OUTBOUND_DROPPED.increment();
+                    return Result.DROPPED;
+                }
+                if (!evictEphemeral()) return Result.OVERFLOW;
+            }
+            queue.addLast(entry);
+            queuedBytes += entry.size;
+            ServerMetrics.OUTBOUND_DEPTH.increment();
+            if (queue.size() == 1) notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(int incoming) {
+        return !queue.isEmpty() && (queue.size() >= maxPackets || queuedBytes + incoming > maxBytes);
+    }
+
+    private boolean evictEphemeral() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.packet.isEphemeral()) {
+                it.remove();
+                queuedBytes -= e.size;
+                ServerMetrics.OUTBOUND_DEPTH.decrement();
+                ServerMetrics.OUTBOUND_DROPPED.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lấy ra các gói liên tiếp ở đầu hàng đợi (tổng ước lượng tối đa maxBatch byte), mã hóa bằng encoder
+     * và gộp thành một mảng để ghi trong một lần. Trả về null nếu hàng đợi rỗng.
+     */
+    byte[] pollBatch(int maxBatch, Function<Packet, byte[]> encoder) {
+        Packet[] batch;
+        lock.lock();
+        try {
+            batch = drainLocked(maxBatch);
+        } finally {
+            lock.unlock();
+        }
+        return encode(batch, encoder);
+    }
+
+    /**
+     * Giống pollBatch nhưng chờ tối đa timeoutMillis khi hàng đợi rỗng; trả về null nếu hết giờ hoặc đã đóng.
+     */
+    byte[] takeBatch(int maxBatch, long timeoutMillis, Function<Packet, byte[]> encoder) throws InterruptedException {
+        Packet[] batch;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (queue.isEmpty() && !closed) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            batch = drainLocked(maxBatch);
+        } finally {
+            lock.unlock();
+        }
+        return encode(batch, encoder);
+    }
+
+    private Packet[] drainLocked(int maxBatch) {
+        if (queue.isEmpty()) return null;
+        int total = queue.peekFirst().size;
+        int count = 1;
+        Iterator<Entry> it = queue.iterator();
+        it.next();
+        while (it.hasNext()) {
+            int size = it.next().size;
+            if (total + size > maxBatch) break;
+            total += size;
+            count++;
+        }
+        Packet[] batch = new Packet[count];
+        for (int i = 0; i < count; i++) batch[i] = queue.pollFirst().packet;
+        queuedBytes -= total;
+        ServerMetrics.OUTBOUND_DEPTH.add(-count);
+        return batch;
+    }
+
+    // Mã hóa ngoài khóa để luồng phát tin không phải chờ writer
+    private static byte[] encode(Packet[] batch, Function<Packet, byte[]> encoder) {
+        if (batch == null) return null;
+        if (batch.length == 1) return encoder.apply(batch[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        for (Packet p : batch) out.writeBytes(encoder.apply(p));
+        return out.toByteArray();
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Đóng hàng đợi: bỏ các gói còn lại và đánh thức writer đang chờ.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            ServerMetrics.OUTBOUND_DEPTH.add(-queue.size());
+            queue.clear();
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
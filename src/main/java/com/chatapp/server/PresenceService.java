@@ -0,0 +1,232 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.Packet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lan truyền trạng thái online/offline theo nhịp: các thay đổi trong một nhịp được gom lại
+ * (người đăng nhập rồi thoát ngay chỉ tính trạng thái cuối) và gửi đi dưới dạng PRESENCE|joined|left.
+ * Client chưa thương lượng giao thức 2 vẫn nhận USER_JOINED/USER_LEFT từng người như trước.
+ * Phạm vi "all" gửi một gói chung cho mọi client; phạm vi "contacts" chỉ gửi cho người cùng nhóm
+ * và những người đã nhắn tin riêng/gọi điện với nhau trong phiên chạy này.
+ */
+final class PresenceService {
+    // Số tên tối đa trong một gói PRESENCE, tránh dòng quá dài khi cả nghìn người kết nối lại cùng lúc
+    private static final int MAX_NAMES_PER_PACKET = 1000;
+
+    private final ServerNetworkManager network;
+    private final boolean contactsOnly;
+    private final ScheduledExecutorService ticker;
+    // Trạng thái cuối cùng (true = online) của những người thay đổi trong nhịp hiện tại
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    // Liên hệ riêng hai chiều: người dùng -> những người muốn biết trạng thái của họ
+    private final Map<String, Set<String>> contacts = new ConcurrentHashMap<>();
+
+    PresenceService(ServerNetworkManager network, long tickMillis, boolean contactsOnly) {
+        this.network = network;
+        this.contactsOnly = contactsOnly;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-tick");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(10, tickMillis);
+        ticker.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tạo dịch vụ theo các khóa server.presence.* trong server.properties.
+     */
+    static PresenceService fromConfig(ServerNetworkManager network) {
+        return new PresenceService(network,
+                ServerConfig.getLong("server.presence.tickMillis", 250),
+                "contacts".equalsIgnoreCase(ServerConfig.getString("server.presence.scope", "all")));
+    }
+
+    void online(String username) {
+        pending.put(username, Boolean.TRUE);
+    }
+
+    void offline(String username) {
+        pending.put(username, Boolean.FALSE);
+    }
+
+    /**
+     * Danh sách người đang online mà username được phép thấy (gửi kèm USER_LIST khi đăng nhập).
+     */
+    Collection<String> snapshotFor(String username) {
+        Map<String, ClientHandler> clients = network.getClients();
+        if (!contactsOnly) return clients.keySet();
+        Set<String> visible = new HashSet<>();
+        for (String name : contactsOf(username)) {
+            if (clients.containsKey(name)) visible.add(name);
+        }
+        return visible;
+    }
+
+    /**
+     * Ghi nhận hai người đã liên lạc riêng với nhau (tin nhắn, cuộc gọi): từ đó họ nhận trạng thái của nhau.
+     */
+    void link(String a, String b) {
+        if (!contactsOnly || a.equals(b)) return;
+        if (addContact(a, b) | addContact(b, a)) {
+            // Liên hệ mới: cho hai bên biết ngay trạng thái hiện tại của nhau
+            Map<String, ClientHandler> clients = network.getClients();
+            if (clients.containsKey(b)) sendJoined(clients.get(a), b);
+            if (clients.containsKey(a)) sendJoined(clients.get(b), a);
+        }
+    }
+
+    private static void sendJoined(ClientHandler recipient, String user) {
+        if (recipient == null) return;
+        recipient.send(recipient.isProtocolV2() ? Packet.of("PRESENCE", user, "") : Packet.of("USER_JOINED", user));
+    }
+
+    /**
+     * Người dùng vừa vào nhóm: gửi cho họ danh sách thành viên đang online (các thành viên khác nhận họ ở nhịp sau).
+     */
+    void joinedGroup(String username, Collection<String> members) {
+        if (!contactsOnly) return;
+        Map<String, ClientHandler> clients = network.getClients();
+        List<String> online = new ArrayList<>();
+        for (String m : members) {
+            if (!m.equals(username) && clients.containsKey(m)) online.add(m);
+        }
+        sendChunked(List.of(username), online, List.of());
+        if (clients.containsKey(username)) online(username);
+    }
+
+    void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private boolean addContact(String owner, String watcher) {
+        return contacts.computeIfAbsent(owner, k -> ConcurrentHashMap.newKeySet()).add(watcher);
+    }
+
+    private Set<String> contactsOf(String username) {
+        Set<String> result = new HashSet<>(contacts.getOrDefault(username, Set.of()));
+        for (String group : network.groupsOf(username)) result.addAll(network.groupMembers(group));
+        result.remove(username);
+        return result;
+    }
+
+    private void tick() {
+        if (pending.isEmpty()) return;
+        // Lấy ra từng mục: thay đổi xảy ra trong lúc đang gửi sẽ nằm lại cho nhịp sau
+        Map<String, Boolean> changes = new HashMap<>();
+        for (String user : pending.keySet()) {
+            Boolean online = pending.remove(user);
+            if (online != null) changes.put(user, online);
+        }
+        try {
+            if (contactsOnly) {
+                publishToContacts(changes);
+            } else {
+                List<String> joined = new ArrayList<>();
+                List<String> left = new ArrayList<>();
+                split(changes, joined, left);
+                sendChunked(null, joined, left);
+            }
+        } catch (Exception e) {
+            AppLogger.severe("Error publishing presence", e);
+        }
+    }
+
+    private void publishToContacts(Map<String, Boolean> changes) {
+        // Theo nhóm: một gói chung cho cả nhóm, mã hóa một lần (FanoutEngine)
+        Map<String, List<String>> groupJoined = new HashMap<>();
+        Map<String, List<String>> groupLeft = new HashMap<>();
+        // Liên hệ riêng: gom theo người nhận
+        Map<String, List<String>> directJoined = new HashMap<>();
+        Map<String, List<String>> directLeft = new HashMap<>();
+
+        for (Map.Entry<String, Boolean> e : changes.entrySet()) {
+            String user = e.getKey();
+            boolean online = e.getValue();
+            for (String group : network.groupsOf(user)) {
+                (online ? groupJoined : groupLeft).computeIfAbsent(group, k -> new ArrayList<>()).add(user);
+            }
+            for (String watcher : contacts.getOrDefault(user, Set.of())) {
+                (online ? directJoined : directLeft).computeIfAbsent(watcher, k -> new ArrayList<>()).add(user);
+            }
+        }
+
+        Set<String> groupNames = new HashSet<>(groupJoined.keySet());
+        groupNames.addAll(groupLeft.keySet());
+        for (String group : groupNames) {
+            sendChunked(network.groupMembers(group), groupJoined.getOrDefault(group, List.of()),
+                    groupLeft.getOrDefault(group, List.of()));
+        }
+
+        Set<String> watchers = new HashSet<>(directJoined.keySet());
+        watchers.addAll(directLeft.keySet());
+        for (String watcher : watchers) {
+            sendChunked(List.of(watcher), directJoined.getOrDefault(watcher, List.of()),
+                    directLeft.getOrDefault(watcher, List.of()));
+        }
+    }
+
+    private static void split(Map<String, Boolean> changes, List<String> joined, List<String> left) {
+        for (Map.Entry<String, Boolean> e : changes.entrySet()) {
+            (e.getValue() ? joined : left).add(e.getKey());
+        }
+    }
+
+    // recipients = null nghĩa là mọi client đang online
+    private void sendChunked(Collection<String> recipients, List<String> joined, List<String> left) {
+        Map<String, ClientHandler> clients = network.getClients();
+        Set<String> joinedSet = new HashSet<>(joined);
+        List<String> shared = new ArrayList<>();
+        List<String> self = new ArrayList<>();
+        List<String> legacy = new ArrayList<>();
+        for (String name : recipients != null ? recipients : clients.keySet()) {
+            ClientHandler c = clients.get(name);
+            if (c == null) continue;
+            if (!c.isProtocolV2()) {
+                legacy.add(name);
+            } else {
+                (joinedSet.contains(name) ? self : shared).add(name);
+            }
+        }
+
+        sendDeltas(shared, joined, left);
+        // Người vừa vào đã có USER_LIST khi đăng nhập: gói của họ bỏ tên chính họ
+        for (String name : self) {
+            List<String> others = new ArrayList<>(joined);
+            others.remove(name);
+            sendDeltas(List.of(name), others, left);
+        }
+        if (!legacy.isEmpty()) {
+            for (String name : joined) network.deliverPresence(legacy, name, Packet.of("USER_JOINED", name));
+            for (String name : left) network.deliverPresence(legacy, null, Packet.of("USER_LEFT", name));
+        }
+    }
+
+    private void sendDeltas(Collection<String> recipients, List<String> joined, List<String> left) {
+        if (recipients.isEmpty()) return;
+        int j = 0;
+        int l = 0;
+        while (j < joined.size() || l < left.size()) {
+            int jEnd = Math.min(joined.size(), j + MAX_NAMES_PER_PACKET);
+            int lEnd = Math.min(left.size(), l + MAX_NAMES_PER_PACKET - (jEnd - j));
+            Packet packet = Packet.of("PRESENCE", String.join(",", joined.subList(j, jEnd)),
+                    String.join(",", left.subList(l, lEnd)));
+            network.deliverPresence(recipients, null, packet);
+            j = jEnd;
+            l = lEnd;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tạo ảnh xem trước (JPEG, cạnh dài tối đa maxSize) cho ảnh tải lên, trên một nhóm luồng nền có hàng đợi giới hạn.
+ * Ảnh xem trước nằm cạnh đối tượng trong kho nội dung (&lt;sha256&gt;.preview.jpg) nên mỗi nội dung chỉ tạo một lần.
+ */
+final class PreviewService {
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif", "bmp");
+    private static final String SUFFIX = ".preview.jpg";
+    private static final float JPEG_QUALITY = 0.8f;
+
+    private final Path uploadDir;
+    private final int maxSize;
+    private final long maxPixels;
+    private final ThreadPoolExecutor executor;
+    // Hash đang chờ hoặc đang tạo: cùng một nội dung tải lên nhiều lần chỉ vào hàng đợi một lần
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    PreviewService(Path uploadDir, int threads, int queueSize, int maxSize, long maxPixels) {
+        this.uploadDir = uploadDir;
+        this.maxSize = Math.max(16, maxSize);
+        this.maxPixels = maxPixels;
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread t = new Thread(r, "preview-" + seq.getAndIncrement());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Tạo PreviewService theo các khóa server.preview.* trong server.properties.
+     */
+    static PreviewService fromConfig(Path uploadDir) {
+        return new PreviewService(uploadDir,
+                ServerConfig.getInt("server.preview.threads", 1),
+                ServerConfig.getInt("server.preview.queueSize", 200),
+                ServerConfig.getInt("server.preview.maxSize", 320),
+                ServerConfig.getLong("server.preview.maxPixels", 50_000_000L));
+    }
+
+    static boolean isImage(String fileName) {
+        int dot = fileName == null ? -1 : fileName.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Đường dẫn ảnh xem trước của đối tượng, tương đối với thư mục uploads.
+     */
+    static String relativePath(String hash) {
+        return ContentStore.relativePath(hash) + SUFFIX;
+    }
+
+    /**
+     * Đưa ảnh vừa lưu vào hàng đợi tạo ảnh xem trước; bỏ qua nếu không phải ảnh hoặc đã có ảnh xem trước.
+     * Hàng đợi đầy thì bỏ (lượt tải ảnh xem trước sau sẽ thử lại).
+     */
+    void enqueue(String hash, String fileName) {
+        if (!ContentStore.isHash(hash) || !isImage(fileName) || Files.isRegularFile(previewOf(hash))) return;
+        if (!pending.add(hash)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    render(hash);
+                } finally {
+                    pending.remove(hash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(hash);
+            ServerMetrics.PREVIEW_DROPPED.increment();
+            AppLogger.warning("Preview queue full, skipped " + fileName);
+        }
+    }
+
+    /**
+     * Xóa ảnh xem trước khi đối tượng gốc bị xóa khỏi kho.
+     */
+    void delete(String hash) {
+        try {
+            Files.deleteIfExists(previewOf(hash));
+        } catch (IOException e) {
+            AppLogger.severe("Error removing preview of " + hash, e);
+        }
+    }
+
+    int pending() {
+        return executor.getQueue().size();
+    }
+
+    private void render(String hash) {
+        long start = System.nanoTime();
+        Path source = uploadDir.resolve(ContentStore.relativePath(hash));
+        Path target = previewOf(hash);
+        try {
+            BufferedImage image = read(source);
+            if (image == null) {
+                ServerMetrics.PREVIEW_FAILED.increment();
+                return;
+            }
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            write(scale(image), temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            ServerMetrics.PREVIEWS_GENERATED.increment();
+            ServerMetrics.PREVIEW_MILLIS.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            ServerMetrics.PREVIEW_FAILED.increment();
+            AppLogger.warning("Cannot create preview for " + hash + ": " + e.getMessage());
+        }
+    }
+
+    // Giải mã có lấy mẫu thưa: ảnh lớn không phải giải mã đầy đủ độ phân giải chỉ để thu nhỏ
+    private BufferedImage read(Path source) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Chặn ảnh khai báo kích thước khổng lồ (bom giải nén)
+                if ((long) width * height > maxPixels) throw new IOException("Image too large: " + width + "x" + height);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.max(width, height) / (maxSize * 2));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+        double ratio = Math.min(1.0, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        // JPEG không có kênh trong suốt: vẽ lên nền trắng
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private static void write(BufferedImage image, Path target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        Files.deleteIfExists(target);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(target.toFile())) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private Path previewOf(String hash) {
+        return uploadDir.resolve(relativePath(hash));
+    }
+}
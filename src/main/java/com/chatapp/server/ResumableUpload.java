@@ -0,0 +1,266 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Giao thức tải lên theo khối, nối tiếp được (UPLOAD2) trên cổng 5556.
+ * <pre>
+ * Client: UTF "UPLOAD2", UTF uploadId, UTF sender, UTF fileName, long fileSize, UTF sha256 (hex, có thể rỗng)
+ * Server: long committedOffset (hoặc mã lỗi âm), int chunkSize (kích thước mọi khối trừ khối cuối)
+ * Lặp:    Client gửi int length, byte[length], long crc32 -> Server trả long committedOffset (hoặc mã lỗi âm)
+ * Khi committedOffset = fileSize, server gửi thêm long fileId (id dòng files, dùng trong tin nhắn FILE_* / VOICE_*).
+ * </pre>
+ * Dữ liệu được ghi vào uploads/.partial/&lt;uploadId&gt;.part; mỗi khối chỉ được xác nhận sau khi đã xuống đĩa,
+ * nên khi mất kết nối client chỉ cần mở lại với cùng uploadId để gửi tiếp từ committedOffset.
+ * Khi đủ dữ liệu, file được đưa vào kho nội dung (ContentStore) rồi mới trả về committedOffset = fileSize.
+ * Nếu kho đã có nội dung mang sha256 client gửi, server trả ngay committedOffset = fileSize ở bước bắt tay
+ * và client không phải gửi byte nào.
+ */
+final class ResumableUpload {
+    static final String COMMAND = "UPLOAD2";
+
+    // Mã lỗi trả về thay cho committedOffset
+    static final long CHECKSUM_MISMATCH = -1; // Khối hỏng: gửi lại khối đó
+    static final long FAILED = -2;            // Không thể tiếp tục phiên tải này
+    static final long BUSY = -3;              // Một kết nối khác đang tải cùng uploadId: thử lại sau
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("[A-Za-z0-9-]{8,64}");
+    private static final Set<String> ACTIVE = ConcurrentHashMap.newKeySet();
+    // Phiên đã hoàn tất gần đây: client mất xác nhận cuối cùng mở lại sẽ nhận lại fileId mà không phải gửi lại
+    private static final Map<String, Completed> COMPLETED = new ConcurrentHashMap<>();
+
+    private record Completed(long fileId, long millis) {
+    }
+
+    private final Path partialDir;
+    private final int chunkSize;
+    private final ContentStore store;
+
+    ResumableUpload(Path uploadDir, int chunkSize, ContentStore store) {
+        this.partialDir = uploadDir.resolve(".partial");
+        this.chunkSize = chunkSize;
+        this.store = store;
+    }
+
+    /**
+     * Tạo bộ xử lý theo các khóa server.upload.* trong server.properties.
+     */
+    static ResumableUpload fromConfig(String uploadDir, ContentStore store) {
+        return new ResumableUpload(Paths.get(uploadDir),
+                Math.max(4096, ServerConfig.getInt("server.upload.chunkBytes", 1024 * 1024)), store);
+    }
+
+    /**
+     * Xử lý một phiên tải lên sau khi đã đọc tên lệnh UPLOAD2.
+     */
+    void handle(DataInputStream in, DataOutputStream out) throws IOException {
+        String uploadId = in.readUTF();
+        String sender = in.readUTF();
+        String fileName = safeName(in.readUTF());
+        long fileSize = in.readLong();
+        String expectedHash = in.readUTF();
+
+        if (!UPLOAD_ID.matcher(uploadId).matches() || fileName == null || fileSize < 0
+                || !(expectedHash.isEmpty() || ContentStore.isHash(expectedHash))) {
+            handshake(out, FAILED);
+            return;
+        }
+        if (!ACTIVE.add(uploadId)) {
+            handshake(out, BUSY);
+            return;
+        }
+        try {
+            Completed done = COMPLETED.get(uploadId);
+            if (done != null) {
+                handshake(out, fileSize, done.fileId());
+                return;
+            }
+            Path part = partialDir.resolve(uploadId + ".part");
+            long linked = store.linkExisting(expectedHash, fileSize, sender, fileName);
+            if (linked > 0) {
+                Files.deleteIfExists(part);
+                COMPLETED.put(uploadId, new Completed(linked, System.currentTimeMillis()));
+                handshake(out, fileSize, linked);
+                return;
+            }
+
+            Files.createDirectories(partialDir);
+            boolean handshaken = false;
+            MessageDigest digest = ContentStore.newDigest();
+            try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                long committed = resumeOffset(file, fileSize);
+                // Nối tiếp: băm lại phần đã có một lần, các khối mới được băm ngay khi nhận
+                digestPrefix(file, committed, digest);
+                if (committed < fileSize) {
+                    handshake(out, committed);
+                    handshaken = true;
+                    if (receiveChunks(in, out, file, committed, fileSize, digest) < fileSize) return;
+                }
+                file.force(true);
+            }
+
+            // Kênh phải được đóng trước khi đổi tên (Windows không cho di chuyển file đang mở)
+            long fileId = complete(part, ContentStore.hex(digest), expectedHash, sender, fileName, fileSize);
+            if (fileId > 0) COMPLETED.put(uploadId, new Completed(fileId, System.currentTimeMillis()));
+            long result = fileId > 0 ? fileSize : FAILED;
+            if (handshaken) {
+                ack(out, result, fileId);
+            } else {
+                handshake(out, result, fileId);
+            }
+        } finally {
+            ACTIVE.remove(uploadId);
+        }
+    }
+
+    /**
+     * Xóa các file tải dở không được nối tiếp trong khoảng maxAgeMillis.
+     */
+    void purgeStale(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        COMPLETED.values().removeIf(done -> done.millis() < cutoff);
+        if (!Files.isDirectory(partialDir)) return;
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(partialDir, "*.part")) {
+            for (Path part : parts) {
+                String id = part.getFileName().toString().replace(".part", "");
+                if (!ACTIVE.contains(id) && Files.getLastModifiedTime(part).toMillis() < cutoff) {
+                    Files.deleteIfExists(part);
+                    AppLogger.info("Removed stale partial upload " + part.getFileName());
+                }
+            }
+        } catch (IOException e) {
+            AppLogger.severe("Error cleaning partial uploads", e);
+        }
+    }
+
+    /**
+     * Nhận các khối và xác nhận từng khối, trừ khối cuối: khối cuối chỉ được xác nhận sau khi file đã được đưa vào
+     * kho nội dung. Trả về fileSize nếu đã nhận đủ, số âm nếu phiên bị hủy.
+     */
+    private long receiveChunks(DataInputStream in, DataOutputStream out, FileChannel file, long committed,
+                               long fileSize, MessageDigest digest) throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        CRC32 crc = new CRC32();
+        while (committed < fileSize) {
+            int length = in.readInt();
+            long expected = Math.min(chunkSize, fileSize - committed);
+            if (length != expected) {
+                ack(out, FAILED);
+                return FAILED;
+            }
+            in.readFully(chunk, 0, length);
+            long checksum = in.readLong();
+
+            crc.reset();
+            crc.update(chunk, 0, length);
+            if (crc.getValue() != checksum) {
+                ack(out, CHECKSUM_MISMATCH);
+                continue;
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(chunk, 0, length);
+            long position = committed;
+            while (data.hasRemaining()) position += file.write(data, position);
+            // Chỉ xác nhận khi khối đã nằm trên đĩa
+            file.force(false);
+            digest.update(chunk, 0, length);
+            committed = position;
+            if (committed < fileSize) ack(out, committed);
+        }
+        return committed;
+    }
+
+    // Vị trí nối tiếp: phần đã ghi, bỏ khối cuối nếu khối đó chưa ghi trọn (Server dừng giữa chừng)
+    private long resumeOffset(FileChannel file, long fileSize) throws IOException {
+        long length = file.size();
+        long committed = length >= fileSize ? fileSize : length / chunkSize * chunkSize;
+        if (length != committed) file.truncate(committed);
+        return committed;
+    }
+
+    private static void digestPrefix(FileChannel file, long length, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = file.read(buffer, position);
+            if (read < 0) throw new IOException("Partial upload shrank while resuming");
+            position += read;
+            digest.update(buffer.flip());
+        }
+    }
+
+    // Trả về id dòng files, FAILED nếu không lưu được
+    private long complete(Path part, String hash, String expectedHash, String sender, String fileName, long fileSize) {
+        try {
+            if (!expectedHash.isEmpty() && !expectedHash.equals(hash)) {
+                // Nội dung nhận được khác nội dung client khai báo: không thể dùng cho kho theo nội dung
+                AppLogger.warning("Upload " + fileName + " from " + sender + " does not match its declared hash");
+                Files.deleteIfExists(part);
+                return FAILED;
+            }
+            long fileId = store.store(part, hash, fileSize, sender, fileName);
+            return fileId > 0 ? fileId : FAILED;
+        } catch (IOException e) {
+            AppLogger.severe("Error finishing upload " + fileName + " from " + sender, e);
+            return FAILED;
+        }
+    }
+
+    private void handshake(DataOutputStream out, long committed) throws IOException {
+        out.writeLong(committed);
+        out.writeInt(chunkSize);
+        out.flush();
+    }
+
+    // Bắt tay khi file đã có sẵn trên server: kèm fileId ngay sau
+    private void handshake(DataOutputStream out, long committed, long fileId) throws IOException {
+        out.writeLong(committed);
+        out.writeInt(chunkSize);
+        if (committed >= 0) out.writeLong(fileId);
+        out.flush();
+    }
+
+    private static void ack(DataOutputStream out, long committed) throws IOException {
+        out.writeLong(committed);
+        out.flush();
+    }
+
+    private static void ack(DataOutputStream out, long committed, long fileId) throws IOException {
+        out.writeLong(committed);
+        if (committed >= 0) out.writeLong(fileId);
+        out.flush();
+    }
+
+    // Chỉ giữ tên file, bỏ mọi thành phần đường dẫn do client gửi lên
+    private static String safeName(String fileName) {
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        return name.isBlank() || name.equals("..") || name.indexOf('\0') >= 0 ? null : name;
+    }
+
+    /**
+     * Thời gian giữ file tải dở (server.upload.partialTtlHours).
+     */
+    static long partialTtlMillis() {
+        return TimeUnit.HOURS.toMillis(ServerConfig.getLong("server.upload.partialTtlHours", 24));
+    }
+}
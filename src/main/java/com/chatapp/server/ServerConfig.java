@@ -0,0 +1,69 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Cấu hình vận hành của Server, nạp từ file server.properties trên classpath.
+ * Mọi khóa đều có thể ghi đè bằng tham số JVM (VD: -Dserver.dispatch.threads=8).
+ */
+public final class ServerConfig {
+    private static final Properties PROPS = new Properties();
+
+    static {
+        try (InputStream in = ServerConfig.class.getResourceAsStream("/server.properties")) {
+            if (in != null) {
+                PROPS.load(in);
+            } else {
+                AppLogger.warning("⚠️ Không tìm thấy server.properties, dùng cấu hình mặc định.");
+            }
+        } catch (Exception e) {
+            AppLogger.severe("Lỗi khi đọc server.properties", e);
+        }
+    }
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Lấy giá trị chuỗi của một khóa cấu hình (ưu tiên System property, sau đó tới file properties).
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) value = PROPS.getProperty(key);
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    /**
+     * Lấy giá trị số nguyên của một khóa cấu hình, trả về giá trị mặc định nếu không hợp lệ.
+     */
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            AppLogger.warning("Giá trị cấu hình không hợp lệ cho " + key + ", dùng mặc định " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Lấy giá trị số nguyên dài (long) của một khóa cấu hình.
+     */
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            AppLogger.warning("Giá trị cấu hình không hợp lệ cho " + key + ", dùng mặc định " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Lấy giá trị boolean của một khóa cấu hình.
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,57 @@
+package com.chatapp.server;
+
+/**
+ * Bộ quan sát sự kiện của Server (log, thay đổi danh sách client/nhóm, trạng thái chạy).
+ * Lõi mạng không phụ thuộc giao diện: console JavaFX chỉ là một listener tùy chọn.
+ * Các phương thức được gọi từ luồng mạng/làn dispatch nên phải trả về nhanh và tự chuyển sang luồng giao diện nếu cần.
+ */
+public interface ServerListener {
+
+    /**
+     * Một dòng log vận hành (đăng nhập, tin nhắn, lỗi...).
+     */
+    default void onLog(String message) {
+    }
+
+    /**
+     * Danh sách client trực tuyến đã thay đổi.
+     */
+    default void onClientsChanged() {
+    }
+
+    /**
+     * Danh sách nhóm hoặc thành viên nhóm đã thay đổi.
+     */
+    default void onGroupsChanged() {
+    }
+
+    /**
+     * Server chuyển trạng thái chạy/dừng.
+     */
+    default void onServerStateChanged(boolean running) {
+    }
+
+    /**
+     * Một thông báo toàn hệ thống đã được gửi (message gồm cả tiền tố "[SERVER]: ").
+     */
+    default void onBroadcast(String message) {
+    }
+
+    /**
+     * Một tin đã được gửi tới các thành viên nhóm groupName.
+     */
+    default void onGroupMessage(String groupName, String message) {
+    }
+
+    /**
+     * Một người dùng đã ngắt kết nối.
+     */
+    default void onUserLeft(String username) {
+    }
+
+    /**
+     * Một nhóm đã bị giải tán.
+     */
+    default void onGroupDissolved(String groupName) {
+    }
+}
@@ -0,0 +1,48 @@
+package com.chatapp.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Các bộ đếm vận hành của Server (ghi nhận từ nhiều luồng, đọc bởi giao diện quản trị).
+ */
+final class ServerMetrics {
+    // Tổng số gói đang nằm trong hàng đợi gửi của tất cả kết nối
+    static final LongAdder OUTBOUND_DEPTH = new LongAdder();
+    // Số gói tạm thời (TYPING) bị bỏ vì client nhận chậm
+    static final LongAdder OUTBOUND_DROPPED = new LongAdder();
+    // Số kết nối bị ngắt vì hàng đợi gửi tràn
+    static final LongAdder SLOW_CONSUMER_DISCONNECTS = new LongAdder();
+    // Số trang lịch sử phục vụ từ bộ nhớ đệm / phải đọc DB
+    static final LongAdder HISTORY_CACHE_HITS = new LongAdder();
+    static final LongAdder HISTORY_CACHE_MISSES = new LongAdder();
+    // Số tin bị chặn trước khi gửi / bị thu hồi sau khi gửi bởi ModerationPipeline
+    static final LongAdder MODERATION_BLOCKED = new LongAdder();
+    static final LongAdder MODERATION_RETRACTED = new LongAdder();
+    // Ảnh xem trước đã tạo (và tổng thời gian tạo, ms) / tạo lỗi / bị bỏ vì hàng đợi đầy
+    static final LongAdder PREVIEWS_GENERATED = new LongAdder();
+    static final LongAdder PREVIEW_MILLIS = new LongAdder();
+    static final LongAdder PREVIEW_FAILED = new LongAdder();
+    static final LongAdder PREVIEW_DROPPED = new LongAdder();
+
+    /**
+     * Một dòng tóm tắt các hàng đợi và bộ đếm, dùng chung cho thanh trạng thái giao diện quản trị và log định kỳ.
+     */
+    static String summary(ServerNetworkManager networkManager) {
+        long previews = PREVIEWS_GENERATED.sum();
+        return "Dispatch queue: " + networkManager.getDispatchPending()
+                + " (processed " + networkManager.getDispatchProcessed() + ")"
+                + " | DB write queue: " + networkManager.getStorePending()
+                + " | Auth queue: " + networkManager.getAuthPending()
+                + " | Outbound: " + OUTBOUND_DEPTH.sum()
+                + " (dropped " + OUTBOUND_DROPPED.sum()
+                + ", slow clients cut " + SLOW_CONSUMER_DISCONNECTS.sum() + ")"
+                + " | History cache: " + HISTORY_CACHE_HITS.sum() + " hit / " + HISTORY_CACHE_MISSES.sum() + " miss"
+                + " | Moderation: " + MODERATION_BLOCKED.sum() + " blocked, " + MODERATION_RETRACTED.sum() + " retracted"
+                + " | Previews: " + FileTransferServer.getPreviewPending() + " queued, " + previews + " made"
+                + (previews > 0 ? " (avg " + PREVIEW_MILLIS.sum() / previews + " ms)" : "")
+                + ", " + PREVIEW_FAILED.sum() + " failed, " + PREVIEW_DROPPED.sum() + " dropped";
+    }
+
+    private ServerMetrics() {
+    }
+}
@@ -2,49 +2,109 @@ package com.chatapp.server;
 
 import com.chatapp.common.AppLogger;
 import com.chatapp.common.DBHelper;
-import com.chatapp.model.Message;
+import com.chatapp.common.Opcode;
+import com.chatapp.common.Packet;
 import com.chatapp.model.ChatGroup;
-import javafx.application.Platform;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongConsumer;
 
 public class ServerNetworkManager {
     private ServerSocket serverSocket;
+    private NioTransport nioTransport;
     private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    // Kết nối giữ tên đăng nhập, từ lúc xác thực xong (trên pool xác thực) đến khi hủy đăng ký (trên làn user)
+    private final Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
     private final Map<String, ChatGroup> groups = new ConcurrentHashMap<>();
-    private boolean isRunning = false;
+    // Chỉ mục ngược người dùng -> các nhóm đang tham gia, cập nhật cùng lúc với ChatGroup.members
+    private final Map<String, Set<String>> userGroups = new ConcurrentHashMap<>();
+    private volatile boolean isRunning = false;
     private static final int PORT = 5555;
-    private final ChatServer chatServer;
+    private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile DispatchEngine dispatcher;
+    private volatile MessageStore messageStore;
+    private volatile FanoutEngine fanout;
+    private volatile ModerationPipeline moderation;
+    private volatile AuthService auth;
+    private volatile PresenceService presence;
+    private volatile LastSeenWriter lastSeen;
+    private final HistoryService history = new HistoryService();
+    private final HistoryCache historyCache = HistoryCache.fromConfig(history);
     private final Set<ClientHandler> allHandlers = ConcurrentHashMap.newKeySet();
     private final Map<Long, Long> callStartTimes = new ConcurrentHashMap<>();
 
     private final Map<String, Long> userActiveCalls = new ConcurrentHashMap<>();
 
-    public ServerNetworkManager(ChatServer chatServer) {
-        this.chatServer = chatServer;
+    public ServerNetworkManager() {
+    }
+
+    /**
+     * Đăng ký một bộ quan sát sự kiện (console JavaFX, log headless...).
+     */
+    public void addListener(ServerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ServerListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Ghi một dòng log vận hành tới mọi listener.
+     */
+    void log(String message) {
+        for (ServerListener l : listeners) l.onLog(message);
+    }
+
+    private void fireClientsChanged() {
+        for (ServerListener l : listeners) l.onClientsChanged();
+    }
+
+    private void fireGroupsChanged() {
+        for (ServerListener l : listeners) l.onGroupsChanged();
+    }
+
+    private void fireServerStateChanged(boolean running) {
+        for (ServerListener l : listeners) l.onServerStateChanged(running);
     }
 
     public void startServer() {
         try {
-            serverSocket = new ServerSocket(PORT);
+            boolean useNio = "nio".equalsIgnoreCase(ServerConfig.getString("server.transport", "blocking"));
+            if (useNio) {
+                nioTransport = new NioTransport(this, ServerConfig.getInt("server.nio.loops", 0));
+            } else {
+                serverSocket = new ServerSocket(PORT);
+            }
             initSystemUser();
+            // Lần chạy trước có thể đã tắt đột ngột khi người dùng vẫn đang online
+            LastSeenWriter.resetOnlineStatus();
+            lastSeen = LastSeenWriter.fromConfig();
+            auth = AuthService.fromConfig();
+            presence = PresenceService.fromConfig(this);
+            messageStore = MessageStore.fromConfig();
+            fanout = new FanoutEngine(ServerConfig.getInt("server.fanout.threads", 0),
+                    ServerConfig.getInt("server.fanout.partitionThreshold", 512));
+            moderation = ModerationPipeline.fromConfig();
+            dispatcher = new DispatchEngine(ServerConfig.getInt("server.dispatch.threads", 0));
             isRunning = true;
-            Platform.runLater(() -> {
-                chatServer.getControlPanel().setRunning(true);
-                chatServer.log("Server started on port " + PORT);
-                AppLogger.info("Server started on port " + PORT);
-            });
+            fireServerStateChanged(true);
+            log("Server started on port " + PORT + (useNio ? " (NIO)" : ""));
+            AppLogger.info("Server started on port " + PORT + " using " + (useNio ? "NIO" : "blocking") + " transport");
 
             loadGroupsFromDB();
 
-            new Thread(this::acceptConnections).start();
+            if (useNio) {
+                nioTransport.start(PORT);
+            } else {
+                ServerThreads.start("chat-acceptor", this::acceptConnections);
+            }
         } catch (IOException e) {
-            Platform.runLater(() -> chatServer.log("Error starting server: " + e.getMessage()));
+            log("Error starting server: " + e.getMessage());
             AppLogger.severe("Error starting server", e);
         }
     }
@@ -53,20 +113,32 @@ public class ServerNetworkManager {
         while (isRunning) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket, chatServer, this);
+                SocketClientHandler handler = new SocketClientHandler(clientSocket, this);
                 allHandlers.add(handler);
-                new Thread(handler).start();
+                ServerThreads.start("client-" + clientSocket.getRemoteSocketAddress(), handler);
             } catch (IOException e) {
                 if (isRunning) {
-                    Platform.runLater(() -> {
-                        chatServer.log("Error accepting connection: " + e.getMessage());
-                        AppLogger.severe("Error accepting connection", e);
-                    });
+                    log("Error accepting connection: " + e.getMessage());
+                    AppLogger.severe("Error accepting connection", e);
                 }
             }
         }
     }
 
+    /**
+     * Ghi nhận một kết nối mới (dùng bởi các tầng truyền tải) để có thể đóng khi dừng Server.
+     */
+    void handlerOpened(ClientHandler handler) {
+        allHandlers.add(handler);
+    }
+
+    /**
+     * Bỏ theo dõi một kết nối đã đóng, kể cả khi client chưa từng đăng nhập.
+     */
+    void handlerClosed(ClientHandler handler) {
+        allHandlers.remove(handler);
+    }
+
     private void loadGroupsFromDB() {
         // Load groups
         DBHelper.executeQuery("SELECT name, creator FROM groups", rs -> {
@@ -75,12 +147,11 @@ public class ServerNetworkManager {
                 while (rs.next()) {
                     String name = rs.getString(1);
                     String creator = rs.getString(2);
-                    ChatGroup group = new ChatGroup(name, creator);
-                    groups.put(name, group);
+                    groups.put(name, newGroup(name, creator));
                     count++;
                 }
                 AppLogger.info("Total groups loaded from DB: " + count);
-                Platform.runLater(() -> chatServer.updateGroupTable());
+                fireGroupsChanged();
             } catch (Exception e) {
                 AppLogger.severe("Error loading groups from DB", e);
             }
@@ -95,12 +166,12 @@ public class ServerNetworkManager {
                     String username = rs.getString(2);
                     ChatGroup group = groups.get(groupName);
                     if (group != null) {
-                        group.addMember(username);
+                        addGroupMember(group, username);
                         count++;
                     }
                 }
                 AppLogger.info("Total group members loaded: " + count);
-                Platform.runLater(() -> chatServer.updateGroupTable());
+                fireGroupsChanged();
             } catch (Exception e) {
                 AppLogger.severe("Error loading group members from DB", e);
             }
@@ -110,6 +181,11 @@ public class ServerNetworkManager {
     public void stopServer() {
         isRunning = false;
 
+        if (nioTransport != null) {
+            nioTransport.stop();
+            nioTransport = null;
+        }
+
         // Close all client handlers
         allHandlers.forEach(handler -> {
             try {
@@ -120,8 +196,50 @@ public class ServerNetworkManager {
         });
         allHandlers.clear();
 
+        if (auth != null) {
+            auth.shutdown();
+            auth = null;
+        }
+
+        if (presence != null) {
+            presence.shutdown();
+            presence = null;
+        }
+
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+
+        if (fanout != null) {
+            fanout.shutdown();
+            fanout = null;
+        }
+
+        if (moderation != null) {
+            moderation.stats().forEach(s -> AppLogger.info("Moderation " + s));
+            moderation.shutdown();
+            moderation = null;
+        }
+
+        // Sau khi các làn đã dừng: ghi nốt các tin còn chờ trong hàng đợi lưu trữ
+        if (messageStore != null) {
+            messageStore.close();
+            messageStore = null;
+        }
+
+        if (lastSeen != null) {
+            lastSeen.close();
+            lastSeen = null;
+            // Mọi kết nối đã đóng: những người chưa kịp được ghi offline cũng được đưa về offline
+            LastSeenWriter.resetOnlineStatus();
+        }
+
         clients.clear();
+        sessions.clear();
         groups.clear();
+        userGroups.clear();
+        historyCache.clear();
 
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -131,13 +249,105 @@ public class ServerNetworkManager {
             AppLogger.severe("Error closing server socket", e);
         }
 
-        Platform.runLater(() -> {
-            chatServer.getControlPanel().setRunning(false);
-            chatServer.updateClientTable();
-            chatServer.updateGroupTable();
-            chatServer.log("Server stopped");
-            AppLogger.info("Server stopped");
-        });
+        fireServerStateChanged(false);
+        fireClientsChanged();
+        fireGroupsChanged();
+        log("Server stopped");
+        AppLogger.info("Server stopped");
+    }
+
+    /**
+     * Nhận một gói tin từ client đã đăng nhập và chuyển sang làn xử lý của hội thoại tương ứng,
+     * để luồng đọc socket không bao giờ phải chờ DB hay việc gửi tin cho người khác.
+     */
+    public void dispatchFromClient(String username, Packet packet) {
+        DispatchEngine engine = dispatcher;
+        if (engine == null) return;
+
+        String[] parts = packet.parts();
+        String key = DispatchEngine.conversationKey(username, packet, groups::containsKey);
+        Opcode opcode = packet.opcode();
+
+        if (opcode == Opcode.REQ_HISTORY && parts.length >= 3) {
+            engine.submit(key, () -> handleHistoryRequest(username, parts[1], parts[2]));
+        } else if (opcode == Opcode.REQ_FILES && parts.length >= 2) {
+            engine.submit(key, () -> handleFileRequest(username, parts[1]));
+        } else {
+            engine.submit(key, () -> processMessage(username, packet));
+        }
+    }
+
+    /**
+     * Chạy một tác vụ trên làn riêng của người dùng (đăng nhập/đăng xuất), giữ đúng thứ tự với các lệnh khác của họ.
+     */
+    public void dispatchForUser(String username, Runnable task) {
+        DispatchEngine engine = dispatcher;
+        if (engine != null) engine.submit(DispatchEngine.userKey(username), task);
+    }
+
+    /**
+     * Số tác vụ đang chờ trong bộ điều phối (hiển thị trên giao diện quản trị).
+     */
+    public int getDispatchPending() {
+        DispatchEngine engine = dispatcher;
+        return engine == null ? 0 : engine.getPendingCount();
+    }
+
+    /**
+     * Tổng số tác vụ bộ điều phối đã xử lý xong từ khi khởi động Server.
+     */
+    public long getDispatchProcessed() {
+        DispatchEngine engine = dispatcher;
+        return engine == null ? 0 : engine.getProcessedCount();
+    }
+
+    /**
+     * Số tin nhắn đang chờ ghi xuống DB.
+     */
+    public int getStorePending() {
+        MessageStore store = messageStore;
+        return store == null ? 0 : store.pending();
+    }
+
+    /**
+     * Số lệnh đăng nhập/đăng ký đang chờ trong pool xác thực.
+     */
+    public int getAuthPending() {
+        AuthService service = auth;
+        return service == null ? 0 : service.pending();
+    }
+
+    /**
+     * Dịch vụ xác thực của phiên chạy hiện tại (null khi Server đã dừng).
+     */
+    AuthService getAuth() {
+        return auth;
+    }
+
+    /**
+     * Giữ tên đăng nhập cho handler một cách nguyên tử; false nếu tên đang thuộc về một kết nối khác.
+     */
+    boolean claimSession(String username, ClientHandler handler) {
+        ClientHandler owner = sessions.putIfAbsent(username, handler);
+        return owner == null || owner == handler;
+    }
+
+    /**
+     * Giao tên đăng nhập cho handler (nối lại phiên); trả về kết nối đang giữ tên trước đó, hoặc null.
+     */
+    ClientHandler takeOverSession(String username, ClientHandler handler) {
+        return sessions.put(username, handler);
+    }
+
+    boolean hasSession(String username) {
+        return sessions.containsKey(username);
+    }
+
+    /**
+     * Trả tên đăng nhập nếu handler vẫn đang giữ nó.
+     */
+    void releaseSession(String username, ClientHandler handler) {
+        sessions.remove(username, handler);
     }
 
     public void registerClient(String username, ClientHandler handler) {
@@ -145,32 +355,33 @@ public class ServerNetworkManager {
             clients.put(username, handler);
 
             // Gửi danh sách users online
-            handler.sendMessage("USER_LIST|" + String.join(",", clients.keySet()));
+            PresenceService service = presence;
+            Collection<String> visible = service != null ? service.snapshotFor(username) : clients.keySet();
+            handler.send(Packet.of("USER_LIST", String.join(",", visible)));
 
             // Gửi danh sách groups của user
             sendUserGroups(username, handler);
 
-            // Thông báo user mới cho các client khác
-            clients.values().stream()
-                    .filter(c -> c != handler)
-                    .forEach(c -> c.sendMessage("USER_JOINED|" + username));
-
-            Platform.runLater(() -> {
-                chatServer.getControlPanel().updateClientCount(clients.size());
-                chatServer.updateClientTable();
-                chatServer.log("Client registered: " + username);
-                AppLogger.info("Client registered: " + username);
-            });
+            // Các client khác nhận thông báo ở nhịp presence kế tiếp, gộp chung với những người vào cùng lúc
+            if (service != null) service.online(username);
+            recordLastSeen(username, true);
 
-            sendBroadcast(username + " joined the server!");
+            fireClientsChanged();
+            log("Client registered: " + username);
+            AppLogger.info("Client registered: " + username);
 
         } catch (Exception e) {
             AppLogger.severe("Error registering client: " + username, e);
         }
     }
 
-    public void unregisterClient(String username) {
+    public void unregisterClient(String username, ClientHandler handler) {
         try {
+            releaseSession(username, handler);
+            allHandlers.remove(handler);
+            // Kết nối đã bị phiên mới thay thế (RESUME): không đụng tới phiên đang sống của user
+            if (!clients.remove(username, handler)) return;
+
             // [FIX BUG ONGOING 2/4] Kiểm tra user có đang gọi video không, nếu có thì kết thúc ngay
             Long activeCallId = userActiveCalls.remove(username);
             if (activeCallId != null) {
@@ -178,124 +389,107 @@ public class ServerNetworkManager {
                 handleCallEnd(String.valueOf(activeCallId));
             }
 
-            ClientHandler handler = clients.remove(username);
-            if (handler != null) {
-                allHandlers.remove(handler);
-            }
-
-            groups.values().forEach(g -> g.removeMember(username));
+            // Thành viên nhóm vẫn giữ nguyên khi đăng xuất (giống trong DB) để lần đăng nhập sau nhận lại GROUP_LIST
 
-            clients.values().forEach(c -> c.sendMessage("USER_LEFT|" + username));
+            PresenceService service = presence;
+            if (service != null) service.offline(username);
+            recordLastSeen(username, false);
 
-            Platform.runLater(() -> {
-                chatServer.getControlPanel().updateClientCount(clients.size());
-                chatServer.updateClientTable();
-                chatServer.updateGroupTable();
-                chatServer.log("Client unregistered: " + username);
-                AppLogger.info("Client unregistered: " + username);
-                chatServer.closePrivateChatTab(username);
-            });
-
-            sendBroadcast(username + " left the server.");
+            fireClientsChanged();
+            fireGroupsChanged();
+            log("Client unregistered: " + username);
+            AppLogger.info("Client unregistered: " + username);
+            for (ServerListener l : listeners) l.onUserLeft(username);
 
         } catch (Exception e) {
             AppLogger.severe("Error unregistering client: " + username, e);
         }
     }
 
+    /**
+     * Yêu cầu lịch sử kiểu cũ (REQ_HISTORY): gửi 50 tin mới nhất, mỗi tin một gói HISTORY_DATA.
+     */
     public void handleHistoryRequest(String requester, String type, String target) {
-        String sql;
-        if (type.equals("PRIVATE")) {
-            sql = "SELECT sender, content, timestamp, type FROM messages " +
-                    "WHERE type = 'PRIVATE' AND " +
-                    "((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) " +
-                    "ORDER BY timestamp ASC LIMIT 50";
-        } else {
-            sql = "SELECT sender, content, timestamp, type FROM messages " +
-                    "WHERE type = 'GROUP' AND receiver = ? " +
-                    "ORDER BY timestamp ASC LIMIT 50";
+        HistoryService.Page page = loadMessagePage(requester, type, target, HistoryService.Direction.LATEST, null,
+                HistoryService.DEFAULT_MESSAGE_PAGE);
+        for (String[] row : page.rows()) {
+            sendToUser(requester, Packet.of("HISTORY_DATA", type, target, row[0], row[1], row[2]));
         }
+    }
 
-        Object[] params = type.equals("PRIVATE")
-                ? new Object[]{requester, target, target, requester}
-                : new Object[]{target};
-
-        DBHelper.executeQuery(sql, rs -> {
-            try {
-                while (rs.next()) {
-                    String sender = rs.getString("sender");
-                    String content = rs.getString("content");
-                    String time = rs.getString("timestamp");
-                    String safeContent = content.replace("|", "&#124;");
+    /**
+     * REQ_HISTORY_PAGE|type|target|direction|cursor|limit: trả về cả trang trong một gói
+     * HISTORY_PAGE|type|target|direction|hasMore|oldest|newest|(sender|content|time)*.
+     */
+    private void handleHistoryPage(String requester, String[] parts) {
+        String type = parts[1];
+        String target = parts[2];
+        HistoryService.Direction direction = HistoryService.Direction.parse(parts.length > 3 ? parts[3] : null);
+        HistoryService.Cursor cursor = HistoryService.Cursor.parse(parts.length > 4 ? parts[4] : null);
+        int limit = HistoryService.clampLimit(parts.length > 5 ? parts[5] : null, HistoryService.DEFAULT_MESSAGE_PAGE);
+
+        HistoryService.Page page = loadMessagePage(requester, type, target, direction, cursor, limit);
+        sendToUser(requester, pagePacket("HISTORY_PAGE", page, type, target, direction.name()));
+    }
 
-                    String response = "HISTORY_DATA|" + type + "|" + target + "|" + sender + "|" + safeContent + "|" + time;
-                    sendToUser(requester, response);
-                }
-            } catch (Exception e) {
-                AppLogger.severe("Error sending history to " + requester, e);
-            }
-        }, params);
+    private HistoryService.Page loadMessagePage(String requester, String type, String target,
+                                                HistoryService.Direction direction, HistoryService.Cursor cursor,
+                                                int limit) {
+        // Tin vừa gửi có thể vẫn nằm trong hàng đợi ghi: chỉ chờ ghi khi phải đọc DB
+        return historyCache.messages(requester, type, target, direction, cursor, limit, () -> {
+            MessageStore store = messageStore;
+            if (store != null) store.flush();
+        });
     }
 
+    /**
+     * Yêu cầu danh sách file kiểu cũ (REQ_FILES): gửi 20 file mới nhất, mỗi file một gói FILES_DATA.
+     */
     public void handleFileRequest(String requester, String target) {
-        String sql;
-        boolean isPrivate = target.startsWith("PRIVATE_");
-
-        if (isPrivate) {
-            String otherUser = target.substring(8);
-            sql = "SELECT filename, size, sender, sent_at FROM files " +
-                    "WHERE ((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) " +
-                    "ORDER BY sent_at ASC LIMIT 20";
-
-            DBHelper.executeQuery(sql, rs -> {
-                try {
-                    while (rs.next()) {
-                        String name = rs.getString("filename");
-                        long size = rs.getLong("size");
-                        String sender = rs.getString("sender");
-                        String time = rs.getString("sent_at");
-
-                        String resp = "FILES_DATA|" + target + "|" + name + "|" + size + "|" + sender + "|" + time;
-                        sendToUser(requester, resp);
-                    }
-                } catch (Exception e) {
-                    AppLogger.severe("Error sending files to " + requester, e);
-                }
-            }, requester, otherUser, otherUser, requester);
+        HistoryService.Page page = history.files(requester, target, HistoryService.Direction.LATEST, null,
+                HistoryService.DEFAULT_FILE_PAGE);
+        for (String[] row : page.rows()) {
+            sendToUser(requester, Packet.of("FILES_DATA", target, row[0], row[1], row[2], row[3]));
+        }
+    }
 
-        } else {
-            String groupName = target.substring(6);
-            sql = "SELECT filename, size, sender, sent_at FROM files " +
-                    "WHERE receiver = ? ORDER BY sent_at ASC LIMIT 20";
+    /**
+     * REQ_FILES_PAGE|target|direction|cursor|limit: trả về
+     * FILES_PAGE|target|direction|hasMore|oldest|newest|(filename|size|sender|time|fileId)*.
+     */
+    private void handleFilesPage(String requester, String[] parts) {
+        String target = parts[1];
+        HistoryService.Direction direction = HistoryService.Direction.parse(parts.length > 2 ? parts[2] : null);
+        HistoryService.Cursor cursor = HistoryService.Cursor.parse(parts.length > 3 ? parts[3] : null);
+        int limit = HistoryService.clampLimit(parts.length > 4 ? parts[4] : null, HistoryService.DEFAULT_FILE_PAGE);
+
+        HistoryService.Page page = history.files(requester, target, direction, cursor, limit);
+        sendToUser(requester, pagePacket("FILES_PAGE", page, target, direction.name()));
+    }
 
-            DBHelper.executeQuery(sql, rs -> {
-                try {
-                    while (rs.next()) {
-                        String name = rs.getString("filename");
-                        long size = rs.getLong("size");
-                        String sender = rs.getString("sender");
-                        String time = rs.getString("sent_at");
-
-                        String resp = "FILES_DATA|" + target + "|" + name + "|" + size + "|" + sender + "|" + time;
-                        sendToUser(requester, resp);
-                    }
-                } catch (Exception e) {
-                    AppLogger.severe("Error sending group files to " + requester, e);
-                }
-            }, groupName);
-        }
+    // Gói một trang: các trường đầu (header), rồi hasMore, con trỏ cũ nhất/mới nhất và các dòng nối tiếp nhau
+    private static Packet pagePacket(String command, HistoryService.Page page, String... header) {
+        List<Object> fields = new ArrayList<>(header.length + 3 + page.rows().size() * 4);
+        Collections.addAll(fields, (Object[]) header);
+        fields.add(page.hasMore() ? "1" : "0");
+        fields.add(page.oldest());
+        fields.add(page.newest());
+        for (String[] row : page.rows()) Collections.addAll(fields, (Object[]) row);
+        return Packet.of(command, fields.toArray());
     }
 
     public void handlePrivateMessage(String sender, String to, String msg) {
         try {
+            ModerationPipeline.Item item = new ModerationPipeline.Item(Opcode.PRIVATE, sender, to, msg, msg.length());
+            if (rejectedByModeration(item)) return;
+
             String content = sender + ": " + msg;
-            DBHelper.executeUpdate(
-                    "INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES('PRIVATE',?,?,?,NOW())",
-                    sender, to, content
-            );
-            sendToUser(to, "PRIVATE|" + sender + "|" + content);
-            Platform.runLater(() -> chatServer.log("[PRIVATE] " + sender + " -> " + to + ": " + msg));
+            linkContacts(sender, to);
+            saveMessage("PRIVATE", sender, to, content);
+            sendToUser(to, Packet.of("PRIVATE", sender, content));
+            log("[PRIVATE] " + sender + " -> " + to + ": " + msg);
             AppLogger.info("[PRIVATE] " + sender + " -> " + to + ": " + msg);
+            auditDelivered(item, content);
         } catch (Exception e) {
             AppLogger.severe("Error handling private message", e);
         }
@@ -303,19 +497,14 @@ public class ServerNetworkManager {
 
     public void handleBroadcast(String sender, String msg) {
         try {
+            if (rejectedByModeration(new ModerationPipeline.Item(Opcode.BROADCAST, sender, "ALL", msg, msg.length()))) {
+                return;
+            }
             String fullMsg = "[SERVER]: " + msg;
-            DBHelper.executeUpdate(
-                    "INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES('BROADCAST','SERVER','ALL',?,NOW())",
-                    fullMsg
-            );
-            broadcast("BROADCAST|" + fullMsg);
-            Platform.runLater(() -> {
-                Message sysMsg = Message.createSystemMessage(fullMsg);
-                if (chatServer.getChatPanels().containsKey("BROADCAST")) {
-                    chatServer.getChatPanels().get("BROADCAST").appendMessage(sysMsg);
-                }
-                chatServer.log("[BROADCAST] " + msg);
-            });
+            saveMessage("BROADCAST", "SERVER", "ALL", fullMsg);
+            broadcast(Packet.of("BROADCAST", fullMsg));
+            for (ServerListener l : listeners) l.onBroadcast(fullMsg);
+            log("[BROADCAST] " + msg);
         } catch (Exception e) {
             AppLogger.severe("Error handling broadcast", e);
         }
@@ -323,35 +512,84 @@ public class ServerNetworkManager {
 
     public void handleGroupMessage(String sender, String group, String msg) {
         try {
-            // --- BƯỚC 1: KIỂM TRA NGAY LẬP TỨC (Pre-Moderation) ---
-            // Vì dùng Local Filter nên tốc độ cực nhanh, không lo lag server
-            if (LocalFilterService.isContentViolated(msg)) {
-
-                AppLogger.info("🚫 Blocked bad content from " + sender + ": " + msg);
-
-                // Chỉ gửi cảnh báo riêng cho người gửi (các user khác trong nhóm sẽ KHÔNG biết gì cả)
-                sendToUser(sender, "SYSTEM|🚫 Tin nhắn của bạn không được gửi đi do chứa từ khóa cấm!");
-
-                // Dừng xử lý luôn (return), không lưu DB, không Broadcast
-                return;
-            }
+            // --- BƯỚC 1: KIỂM TRA TRƯỚC KHI GỬI (Pre-Moderation) ---
+            // Bị chặn thì dừng luôn: không lưu DB, không gửi cho nhóm
+            ModerationPipeline.Item item = new ModerationPipeline.Item(Opcode.GROUP, sender, group, msg, msg.length());
+            if (rejectedByModeration(item)) return;
 
             // --- BƯỚC 2: NẾU SẠCH SẼ THÌ XỬ LÝ BÌNH THƯỜNG ---
             String full = sender + ": " + msg;
 
             // Lưu tin nhắn vào DB
-            String sql = "INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES('GROUP',?,?,?,NOW())";
-            DBHelper.executeUpdate(sql, sender, group, full);
+            saveMessage("GROUP", sender, group, full);
 
             // Gửi cho mọi người
             sendToGroup(group, full);
-            Platform.runLater(() -> chatServer.log("[GROUP] " + full));
+            log("[GROUP] " + full);
+
+            // --- BƯỚC 3: HẬU KIỂM (các luật chạy sau khi gửi, vi phạm thì thu hồi) ---
+            auditDelivered(item, full);
 
         } catch (Exception e) {
             AppLogger.severe("Error handling group message", e);
         }
     }
 
+    /**
+     * Chạy các luật chặn trước khi gửi; nếu vi phạm thì báo riêng cho người gửi và trả về true.
+     */
+    private boolean rejectedByModeration(ModerationPipeline.Item item) {
+        ModerationPipeline pipeline = moderation;
+        if (pipeline == null) return false;
+        String reason = pipeline.screen(item);
+        if (reason == null) return false;
+
+        ServerMetrics.MODERATION_BLOCKED.increment();
+        AppLogger.info("🚫 Blocked " + item.kind() + " from " + item.sender() + " (" + reason + "): " + item.text());
+        // Chỉ gửi cảnh báo riêng cho người gửi (người nhận sẽ KHÔNG biết gì cả)
+        sendToUser(item.sender(), Packet.of("SYSTEM", "🚫 Tin nhắn của bạn không được gửi đi do " + reason + "!"));
+        return true;
+    }
+
+    /**
+     * Chạy các luật hậu kiểm cho tin văn bản đã gửi; vi phạm thì thu hồi tin trên làn của hội thoại.
+     */
+    private void auditDelivered(ModerationPipeline.Item item, String content) {
+        ModerationPipeline pipeline = moderation;
+        if (pipeline == null) return;
+        boolean isGroup = item.kind() == Opcode.GROUP;
+        String key = isGroup ? DispatchEngine.groupKey(item.target()) : DispatchEngine.pairKey(item.sender(), item.target());
+        pipeline.audit(item, reason -> {
+            DispatchEngine engine = dispatcher;
+            if (engine != null) engine.submit(key, () -> retractMessage(item, content, reason));
+        });
+    }
+
+    /**
+     * Thu hồi một tin đã gửi: xóa khỏi DB và bộ nhớ đệm lịch sử, báo RETRACT|type|sender|target|text cho các bên.
+     */
+    private void retractMessage(ModerationPipeline.Item item, String content, String reason) {
+        String type = item.kind() == Opcode.GROUP ? "GROUP" : "PRIVATE";
+        MessageStore store = messageStore;
+        if (store != null) store.flush();
+        DBHelper.executeUpdate("DELETE FROM messages WHERE type=? AND sender=? AND receiver=? AND content=? "
+                + "ORDER BY id DESC LIMIT 1", type, item.sender(), item.target(), content);
+        historyCache.invalidate(type, item.sender(), item.target());
+
+        Packet retract = Packet.of("RETRACT", type, item.sender(), item.target(), item.text());
+        if ("GROUP".equals(type)) {
+            ChatGroup group = groups.get(item.target());
+            if (group != null) deliver(group.getMembers(), null, retract);
+        } else {
+            sendToUser(item.target(), retract);
+            sendToUser(item.sender(), retract);
+        }
+        sendToUser(item.sender(), Packet.of("SYSTEM", "⚠️ Tin nhắn của bạn đã bị thu hồi do " + reason + "."));
+
+        ServerMetrics.MODERATION_RETRACTED.increment();
+        log("[MODERATION] Retracted " + type + " message from " + item.sender() + " -> " + item.target() + ": " + reason);
+    }
+
     public void handleCreateGroup(String groupName, String creator, Set<String> members) {
         try {
             DBHelper.executeUpdate(
@@ -359,12 +597,12 @@ public class ServerNetworkManager {
                     groupName, creator
             );
 
-            ChatGroup group = groups.computeIfAbsent(groupName, k -> new ChatGroup(groupName, creator));
+            ChatGroup group = groups.computeIfAbsent(groupName, k -> newGroup(groupName, creator));
             Set<String> allMembers = new HashSet<>(members);
             allMembers.add(creator);
 
             for (String member : allMembers) {
-                if (group.addMember(member)) {
+                if (addGroupMember(group, member)) {
                     DBHelper.executeUpdate(
                             "INSERT INTO group_members(group_name,username) VALUES(?,?) ON DUPLICATE KEY UPDATE username=username",
                             groupName, member
@@ -372,19 +610,19 @@ public class ServerNetworkManager {
                 }
             }
 
-            String joinedMsg = "GROUP_JOINED|" + groupName;
+            Packet joinedMsg = Packet.of("GROUP_JOINED", groupName);
+            PresenceService service = presence;
             for (String member : allMembers) {
                 ClientHandler memberHandler = clients.get(member);
                 if (memberHandler != null) {
-                    memberHandler.sendMessage(joinedMsg);
+                    memberHandler.send(joinedMsg);
                     sendUserGroups(member, memberHandler);
+                    if (service != null) service.joinedGroup(member, group.getMembers());
                 }
             }
 
-            Platform.runLater(() -> {
-                chatServer.updateGroupTable();
-                chatServer.log("Group created: " + groupName);
-            });
+            fireGroupsChanged();
+            log("Group created: " + groupName);
 
         } catch (Exception e) {
             AppLogger.severe("Error creating group", e);
@@ -395,15 +633,17 @@ public class ServerNetworkManager {
         try {
             ChatGroup group = groups.computeIfAbsent(groupName, k -> {
                 DBHelper.executeUpdate("INSERT INTO groups(name,creator) VALUES(?,?) ON DUPLICATE KEY UPDATE creator=creator", groupName, "unknown");
-                return new ChatGroup(groupName, "unknown");
+                return newGroup(groupName, "unknown");
             });
 
-            if (group.addMember(username)) {
+            if (addGroupMember(group, username)) {
                 DBHelper.executeUpdate("INSERT INTO group_members(group_name,username) VALUES(?,?) ON DUPLICATE KEY UPDATE username=username", groupName, username);
                 ClientHandler handler = clients.get(username);
-                if (handler != null) handler.sendMessage("GROUP_JOINED|" + groupName);
+                if (handler != null) handler.send(Packet.of("GROUP_JOINED", groupName));
+                PresenceService service = presence;
+                if (service != null && handler != null) service.joinedGroup(username, group.getMembers());
                 sendToGroup(groupName, username + " joined the group.");
-                Platform.runLater(() -> chatServer.updateGroupTable());
+                fireGroupsChanged();
             }
         } catch (Exception e) {
             AppLogger.severe("Error joining group", e);
@@ -413,12 +653,12 @@ public class ServerNetworkManager {
     public void handleLeaveGroup(String username, String groupName) {
         try {
             ChatGroup group = groups.get(groupName);
-            if (group != null && group.removeMember(username)) {
+            if (group != null && removeGroupMember(group, username)) {
                 DBHelper.executeUpdate("DELETE FROM group_members WHERE group_name=? AND username=?", groupName, username);
                 ClientHandler handler = clients.get(username);
-                if (handler != null) handler.sendMessage("GROUP_LEFT|" + groupName);
+                if (handler != null) handler.send(Packet.of("GROUP_LEFT", groupName));
                 sendToGroup(groupName, username + " left the group.");
-                Platform.runLater(() -> chatServer.updateGroupTable());
+                fireGroupsChanged();
             }
         } catch (Exception e) {
             AppLogger.severe("Error leaving group", e);
@@ -429,41 +669,55 @@ public class ServerNetworkManager {
         try {
             ChatGroup group = groups.remove(groupName);
             if (group != null) {
+                group.getMembers().forEach(m -> unindexMember(m, groupName));
                 DBHelper.executeUpdate("DELETE FROM group_members WHERE group_name=?", groupName);
                 DBHelper.executeUpdate("DELETE FROM messages WHERE type='GROUP' AND receiver=?", groupName);
+                FileTransferServer.store().deleteGroupFiles(groupName);
                 DBHelper.executeUpdate("DELETE FROM groups WHERE name=?", groupName);
+                historyCache.invalidateGroup(groupName);
 
-                group.getMembers().forEach(m -> {
-                    ClientHandler c = clients.get(m);
-                    if (c != null) c.sendMessage("GROUP_DISSOLVED|" + groupName);
-                });
+                Packet dissolved = Packet.of("GROUP_DISSOLVED", groupName);
+                group.getMembers().forEach(m -> sendToUser(m, dissolved));
 
-                Platform.runLater(() -> {
-                    chatServer.updateGroupTable();
-                    chatServer.log("Group dissolved: " + groupName);
-                    chatServer.closeGroupChatTab(groupName);
-                });
+                fireGroupsChanged();
+                log("Group dissolved: " + groupName);
+                for (ServerListener l : listeners) l.onGroupDissolved(groupName);
             }
         } catch (Exception e) {
             AppLogger.severe("Error dissolving group", e);
         }
     }
 
+    /**
+     * Lưu một tin nhắn qua hàng đợi ghi (write-behind); nếu Server chưa khởi động thì ghi thẳng.
+     */
+    private void saveMessage(String type, String sender, String receiver, String content) {
+        saveMessage(type, sender, receiver, content, new java.sql.Timestamp(System.currentTimeMillis()));
+    }
+
+    private void saveMessage(String type, String sender, String receiver, String content, java.sql.Timestamp time) {
+        // Cột timestamp chỉ lưu tới giây: làm tròn trước để bản trong cache trùng với bản trong DB
+        long millis = time.getTime() / 1000 * 1000;
+        time = new java.sql.Timestamp(millis);
+        LongConsumer onId = historyCache.onWrite(type, sender, receiver, content, millis);
+        MessageStore store = messageStore;
+        if (store != null) {
+            store.append(type, sender, receiver, content, time, onId);
+        } else {
+            long id = DBHelper.executeInsertAndGetId(
+                    "INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES(?,?,?,?,?)",
+                    type, sender, receiver, content, time);
+            if (onId != null && id > 0) onId.accept(id);
+        }
+    }
+
     public void sendBroadcast(String message) {
         try {
             String fullMsg = "[SERVER]: " + message;
-            DBHelper.executeUpdate(
-                    "INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES('BROADCAST','SERVER','ALL',?,NOW())",
-                    fullMsg
-            );
-            broadcast("BROADCAST|" + fullMsg);
-            Platform.runLater(() -> {
-                Message sysMsg = Message.createSystemMessage(fullMsg);
-                if (chatServer.getChatPanels().containsKey("BROADCAST")) {
-                    chatServer.getChatPanels().get("BROADCAST").appendMessage(sysMsg);
-                }
-                chatServer.log("Broadcast: " + message);
-            });
+            saveMessage("BROADCAST", "SERVER", "ALL", fullMsg);
+            broadcast(Packet.of("BROADCAST", fullMsg));
+            for (ServerListener l : listeners) l.onBroadcast(fullMsg);
+            log("Broadcast: " + message);
         } catch (Exception e) {
             AppLogger.severe("Error sending broadcast", e);
         }
@@ -472,24 +726,76 @@ public class ServerNetworkManager {
     public void sendToGroup(String groupName, String message) {
         ChatGroup group = groups.get(groupName);
         if (group != null) {
-            group.getMembers().forEach(m -> {
-                ClientHandler c = clients.get(m);
-                if (c != null) c.sendMessage("GROUP|" + groupName + "|" + message);
-            });
-            Platform.runLater(() -> {
-                chatServer.appendToGroupChat(groupName, message);
-                chatServer.log("[GROUP] " + message);
-            });
+            deliver(group.getMembers(), null, Packet.of("GROUP", groupName, message));
+            for (ServerListener l : listeners) l.onGroupMessage(groupName, message);
+            log("[GROUP] " + message);
         }
     }
 
-    private void broadcast(String message) {
-        clients.values().forEach(c -> c.sendMessage(message));
+    /**
+     * Gửi một gói tin tới mọi thành viên của nhóm, trừ người gửi.
+     */
+    private void sendToGroupExcept(String groupName, String sender, Packet packet) {
+        ChatGroup group = groups.get(groupName);
+        if (group != null) deliver(group.getMembers(), sender, packet);
+    }
+
+    private void broadcast(Packet packet) {
+        deliver(clients.keySet(), null, packet);
     }
 
-    public void sendToUser(String username, String message) {
+    // Gói được mã hóa một lần và dùng chung cho mọi người nhận (xem FanoutEngine)
+    private void deliver(Collection<String> recipients, String except, Packet packet) {
+        FanoutEngine engine = fanout;
+        if (engine != null) {
+            engine.deliver(recipients, except, packet, clients);
+        } else {
+            for (String name : recipients) {
+                if (!name.equals(except)) sendToUser(name, packet);
+            }
+        }
+    }
+
+    public void sendToUser(String username, Packet packet) {
         ClientHandler c = clients.get(username);
-        if (c != null) c.sendMessage(message);
+        if (c != null) c.send(packet);
+    }
+
+    /**
+     * Gửi gói trạng thái online tới danh sách người nhận trừ except (có thể null), mã hóa một lần qua FanoutEngine.
+     */
+    void deliverPresence(Collection<String> recipients, String except, Packet packet) {
+        deliver(recipients, except, packet);
+    }
+
+    /**
+     * Các nhóm mà người dùng đang tham gia (tập rỗng nếu không có).
+     */
+    Set<String> groupsOf(String username) {
+        return userGroups.getOrDefault(username, Set.of());
+    }
+
+    /**
+     * Thành viên của nhóm (tập rỗng nếu nhóm không tồn tại).
+     */
+    Set<String> groupMembers(String groupName) {
+        ChatGroup group = groups.get(groupName);
+        return group != null ? group.getMembers() : Set.of();
+    }
+
+    // Cột online/last_seen được ghi ở nền theo chu kỳ (LastSeenWriter); không có Server thì ghi thẳng
+    private void recordLastSeen(String username, boolean online) {
+        LastSeenWriter writer = lastSeen;
+        if (writer != null) {
+            writer.record(username, online);
+        } else {
+            DBHelper.updateUserOnlineStatus(username, online);
+        }
+    }
+
+    private void linkContacts(String a, String b) {
+        PresenceService service = presence;
+        if (service != null) service.link(a, b);
     }
 
     public Map<String, ClientHandler> getClients() {
@@ -500,23 +806,21 @@ public class ServerNetworkManager {
         return groups;
     }
 
-    public void processMessage(String username, String message) {
+    public void processMessage(String username, Packet packet) {
         try {
-            String[] parts = message.split("\\|", -1);
-            if (parts.length == 0) return;
-            String command = parts[0];
+            String[] parts = packet.parts();
 
-            switch (command) {
-                case "BROADCAST" -> {
+            switch (packet.opcode()) {
+                case BROADCAST -> {
                     if (parts.length > 1) handleBroadcast(username, parts[1]);
                 }
-                case "PRIVATE" -> {
+                case PRIVATE -> {
                     if (parts.length >= 3) handlePrivateMessage(username, parts[1], parts[2]);
                 }
-                case "GROUP" -> {
+                case GROUP -> {
                     if (parts.length >= 3) handleGroupMessage(username, parts[1], parts[2]);
                 }
-                case "CREATE_GROUP" -> {
+                case CREATE_GROUP -> {
                     if (parts.length >= 2) {
                         String groupName = parts[1];
                         Set<String> members = new HashSet<>();
@@ -528,57 +832,56 @@ public class ServerNetworkManager {
                         handleCreateGroup(groupName, username, members);
                     }
                 }
-                case "JOIN_GROUP" -> {
+                case JOIN_GROUP -> {
                     if (parts.length >= 2) handleJoinGroup(username, parts[1]);
                 }
-                case "LEAVE_GROUP" -> {
+                case LEAVE_GROUP -> {
                     if (parts.length >= 2) handleLeaveGroup(username, parts[1]);
                 }
-                case "DISSOLVE_GROUP" -> {
+                case DISSOLVE_GROUP -> {
                     if (parts.length >= 2) handleDissolveGroup(parts[1]);
                 }
-                case "FILE_PRIVATE" -> {
+                case FILE_PRIVATE -> {
+                    // Packet: FILE_PRIVATE | Receiver | Sender | FileName | Size | Type [| FileId]
                     if (parts.length >= 6) {
-                        handleFilePrivate(username, parts[1], parts[3], Long.parseLong(parts[4]), parts[5]);
+                        handleFilePrivate(username, parts[1], parts[3], Long.parseLong(parts[4]), parts[5],
+                                fileIdAt(parts, 6));
                     }
                 }
-                case "FILE_GROUP" -> {
+                case FILE_GROUP -> {
                     if (parts.length >= 6) {
-                        handleFileGroup(username, parts[1], parts[3], Long.parseLong(parts[4]), parts[5]);
+                        handleFileGroup(username, parts[1], parts[3], Long.parseLong(parts[4]), parts[5],
+                                fileIdAt(parts, 6));
                     }
                 }
-                case "EMOJI_PRIVATE" -> {
+                case EMOJI_PRIVATE -> {
                     if (parts.length >= 3) handleEmojiPrivate(username, parts[1], parts[2]);
                 }
-                case "EMOJI_GROUP" -> {
+                case EMOJI_GROUP -> {
                     if (parts.length >= 3) handleEmojiGroup(username, parts[1], parts[2]);
                 }
-                case "WEBRTC" -> {
-                    String[] webrtcParts = message.split("\\|", 3);
-                    if (webrtcParts.length >= 3) {
-                        String targetUser = webrtcParts[1];
-                        String jsonPayload = webrtcParts[2];
-                        handleWebRTC(username, targetUser, jsonPayload);
-                    }
+                case WEBRTC -> {
+                    // Trường cuối (JSON) được giữ nguyên văn khi tách, xem Packet.fromText
+                    if (parts.length >= 3) handleWebRTC(username, parts[1], parts[2]);
                 }
-                case "CALL_REQ" -> {
+                case CALL_REQ -> {
                     if (parts.length >= 3) {
                         handleCallRequest(username, parts[1], parts[2]);
                     }
                 }
-                case "CALL_RES" -> {
+                case CALL_RES -> {
                     if (parts.length >= 4) {
                         handleCallResponse(username, parts[1], parts[2], Long.parseLong(parts[3]));
                     }
                 }
-                case "CALL_END" -> {
+                case CALL_END -> {
                     if (parts.length >= 3) {
                         handleCallEnd(parts[2]);
                         ClientHandler target = getClients().get(parts[1]);
-                        if (target != null) target.sendMessage("CALL_END|" + username);
+                        if (target != null) target.send(Packet.of("CALL_END", username));
                     }
                 }
-                case "TYPING" -> {
+                case TYPING -> {
                     // Cấu trúc: TYPING | Target | STATE
                     if (parts.length >= 3) {
                         String target = parts[1];
@@ -586,102 +889,180 @@ public class ServerNetworkManager {
                         handleTyping(username, target, state);
                     }
                 }
-                case "VOICE_PRIVATE" -> {
-                    // Packet: VOICE_PRIVATE | Receiver | FileName | Size | Type
+                case VOICE_PRIVATE -> {
+                    // Packet: VOICE_PRIVATE | Receiver | FileName | Size | Type [| FileId]
                     if (parts.length >= 5) {
                         String receiver = parts[1];
                         String fileName = parts[2];
                         long size = Long.parseLong(parts[3]);
                         String fileType = parts[4];
-                        handleVoiceMessage(username, receiver, fileName, size, fileType, true);
+                        handleVoiceMessage(username, receiver, fileName, size, fileType, fileIdAt(parts, 5), true);
                     }
                 }
-                case "VOICE_GROUP" -> {
-                    // Packet: VOICE_GROUP | GroupName | FileName | Size | Type
+                case VOICE_GROUP -> {
+                    // Packet: VOICE_GROUP | GroupName | FileName | Size | Type [| FileId]
                     if (parts.length >= 5) {
                         String group = parts[1];
                         String fileName = parts[2];
                         long size = Long.parseLong(parts[3]);
                         String fileType = parts[4];
-                        handleVoiceMessage(username, group, fileName, size, fileType, false);
+                        handleVoiceMessage(username, group, fileName, size, fileType, fileIdAt(parts, 5), false);
                     }
                 }
+                case REQ_HISTORY_PAGE -> {
+                    if (parts.length >= 3) handleHistoryPage(username, parts);
+                }
+                case REQ_FILES_PAGE -> {
+                    if (parts.length >= 2) handleFilesPage(username, parts);
+                }
             }
         } catch (Exception e) {
-            AppLogger.severe("Error processing message from " + username, e);
+            AppLogger.severe("Error processing message from " + username + ": " + packet, e);
         }
     }
 
     private void handleTyping(String sender, String target, String state) {
-        String packet = "TYPING|" + sender + "|" + target + "|" + state;
+        Packet packet = Packet.of("TYPING", sender, target, state);
 
-        // Kiểm tra xem target là User hay Group
-        if (groups.containsKey(target)) {
+        // Kiểm tra xem target là User hay Group (tra chỉ mục của người gửi, không duyệt danh sách nhóm)
+        if (isGroupMember(sender, target)) {
             // Là Group -> Gửi cho cả nhóm (trừ người gửi)
-            ChatGroup g = groups.get(target);
-            g.getMembers().stream()
-                    .filter(m -> !m.equals(sender))
-                    .forEach(m -> sendToUser(m, packet));
-        } else {
+            sendToGroupExcept(target, sender, packet);
+        } else if (!groups.containsKey(target)) {
             // Là Private -> Gửi cho người đó
             sendToUser(target, packet);
         }
     }
 
     private void sendUserGroups(String username, ClientHandler handler) {
-        Set<String> userGroups = new HashSet<>();
-        for (ChatGroup group : groups.values()) {
-            if (group.getMembers().contains(username)) {
-                userGroups.add(group.name);
-            }
-        }
-        if (!userGroups.isEmpty()) {
-            handler.sendMessage("GROUP_LIST|" + String.join(",", userGroups));
+        Set<String> names = userGroups.get(username);
+        if (names != null && !names.isEmpty()) {
+            handler.send(Packet.of("GROUP_LIST", String.join(",", names)));
         }
     }
 
+    /**
+     * Người dùng có đang là thành viên của nhóm hay không (O(1) qua chỉ mục ngược).
+     */
+    boolean isGroupMember(String username, String groupName) {
+        Set<String> names = userGroups.get(username);
+        return names != null && names.contains(groupName);
+    }
+
+    // ChatGroup tự thêm người tạo vào members: đưa các thành viên ban đầu đó vào chỉ mục ngay khi tạo nhóm
+    private ChatGroup newGroup(String name, String creator) {
+        ChatGroup group = new ChatGroup(name, creator);
+        group.getMembers().forEach(m -> indexMember(m, name));
+        return group;
+    }
+
+    // Mọi thay đổi thành viên đi qua hai hàm này để ChatGroup.members và chỉ mục ngược luôn khớp nhau
+    private boolean addGroupMember(ChatGroup group, String username) {
+        boolean added = group.addMember(username);
+        indexMember(username, group.name);
+        return added;
+    }
+
+    private boolean removeGroupMember(ChatGroup group, String username) {
+        boolean removed = group.removeMember(username);
+        if (removed) unindexMember(username, group.name);
+        return removed;
+    }
+
+    private void indexMember(String username, String groupName) {
+        userGroups.compute(username, (k, names) -> {
+            if (names == null) names = ConcurrentHashMap.newKeySet();
+            names.add(groupName);
+            return names;
+        });
+    }
+
+    private void unindexMember(String username, String groupName) {
+        // Bỏ luôn tập rỗng trong cùng thao tác nguyên tử để không xóa nhầm nhóm vừa được thêm song song
+        userGroups.computeIfPresent(username, (k, names) -> {
+            names.remove(groupName);
+            return names.isEmpty() ? null : names;
+        });
+    }
+
     public void handleEmojiPrivate(String sender, String to, String emojiCode) {
-        DBHelper.executeUpdate("INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES('EMOJI',?,?,?,NOW())", sender, to, emojiCode);
-        sendToUser(to, "EMOJI_PRIVATE|" + sender + "|" + to + "|" + emojiCode);
-        Platform.runLater(() -> chatServer.log("[EMOJI] " + sender + " -> " + to));
+        if (rejectedByModeration(new ModerationPipeline.Item(Opcode.EMOJI_PRIVATE, sender, to, emojiCode,
+                emojiCode.length()))) return;
+        saveMessage("EMOJI", sender, to, emojiCode);
+        sendToUser(to, Packet.of("EMOJI_PRIVATE", sender, to, emojiCode));
+        log("[EMOJI] " + sender + " -> " + to);
     }
 
     public void handleEmojiGroup(String sender, String groupName, String emojiCode) {
-        DBHelper.executeUpdate("INSERT INTO messages(type,sender,receiver,content,timestamp) VALUES('EMOJI',?,?,?,NOW())", sender, groupName, emojiCode);
-        sendToGroup(groupName, "EMOJI_GROUP|" + sender + "|" + groupName + "|" + emojiCode);
-        Platform.runLater(() -> chatServer.log("[EMOJI_GROUP] " + sender + " -> " + groupName));
+        if (rejectedByModeration(new ModerationPipeline.Item(Opcode.EMOJI_GROUP, sender, groupName, emojiCode,
+                emojiCode.length()))) return;
+        saveMessage("EMOJI", sender, groupName, emojiCode);
+        sendToGroupExcept(groupName, sender, Packet.of("EMOJI_GROUP", sender, groupName, emojiCode));
+        log("[EMOJI_GROUP] " + sender + " -> " + groupName);
     }
 
-    public void handleFilePrivate(String sender, String to, String fileName, long fileSize, String fileType) {
-        DBHelper.executeUpdate("INSERT INTO files(filename, sender, receiver, size, file_type, sent_at) VALUES(?,?,?,?,?,NOW())", fileName, sender, to, fileSize, fileType);
+    public void handleFilePrivate(String sender, String to, String fileName, long fileSize, String fileType, long fileId) {
+        if (rejectedByModeration(new ModerationPipeline.Item(Opcode.FILE_PRIVATE, sender, to, fileName, fileSize))) {
+            return;
+        }
+        long id = recordFile(sender, to, fileName, fileSize, fileType, fileId);
+        if (id < 0) return;
         if (!sender.equals(to)) {
-            sendToUser(to, "FILE_PRIVATE|" + sender + "|" + to + "|" + fileName + "|" + fileSize + "|" + fileType);
+            sendToUser(to, Packet.of("FILE_PRIVATE", sender, to, fileName, fileSize, fileType, id));
         }
-        Platform.runLater(() -> chatServer.log("[FILE] " + sender + " -> " + to + ": " + fileName));
+        log("[FILE] " + sender + " -> " + to + ": " + fileName);
     }
 
-    public void handleFileGroup(String sender, String groupName, String fileName, long fileSize, String fileType) {
-        DBHelper.executeUpdate("INSERT INTO files(filename, sender, receiver, size, file_type, sent_at) VALUES(?,?,?,?,?,NOW())", fileName, sender, groupName, fileSize, fileType);
-        ChatGroup group = groups.get(groupName);
-        if (group != null) {
-            group.getMembers().stream().filter(m -> !m.equals(sender)).forEach(m -> {
-                ClientHandler c = clients.get(m);
-                if (c != null)
-                    c.sendMessage("FILE_GROUP|" + sender + "|" + groupName + "|" + fileName + "|" + fileSize + "|" + fileType);
-            });
+    public void handleFileGroup(String sender, String groupName, String fileName, long fileSize, String fileType,
+                                long fileId) {
+        if (rejectedByModeration(new ModerationPipeline.Item(Opcode.FILE_GROUP, sender, groupName, fileName, fileSize))) {
+            return;
+        }
+        long id = recordFile(sender, groupName, fileName, fileSize, fileType, fileId);
+        if (id < 0) return;
+        sendToGroupExcept(groupName, sender, Packet.of("FILE_GROUP", sender, groupName, fileName, fileSize, fileType, id));
+        log("[FILE_GROUP] " + sender + " -> " + groupName + ": " + fileName);
+    }
+
+    /**
+     * Gắn file client đã tải lên (fileId do server cấp khi tải lên xong) vào tin nhắn; client cũ không gửi id thì
+     * tạo dòng files như trước. Trả về id file (0 nếu không biết), -1 nếu fileId không hợp lệ.
+     */
+    private long recordFile(String sender, String receiver, String fileName, long size, String fileType, long fileId) {
+        if (fileId > 0) {
+            if (FileTransferServer.store().claim(fileId, sender, receiver, fileName, size, fileType)) return fileId;
+            AppLogger.warning("Rejected file message from " + sender + ": #" + fileId + " is not their unsent upload of "
+                    + fileName);
+            return -1;
+        }
+        long publicId = ContentStore.newPublicId();
+        long id = DBHelper.executeInsertAndGetId("INSERT INTO files(filename, sender, receiver, size, file_type, "
+                + "public_id, sent_at) VALUES(?,?,?,?,?,?,NOW())", fileName, sender, receiver, size, fileType, publicId);
+        if (id <= 0) return 0;
+        // Nội dung có thể đã tải lên xong trước tin nhắn này
+        FileTransferServer.store().claimPending(sender, fileName);
+        return publicId;
+    }
+
+    // Trường fileId ở cuối các gói FILE_* / VOICE_* (không có ở client cũ)
+    private static long fileIdAt(String[] parts, int index) {
+        if (parts.length <= index) return 0;
+        try {
+            return Long.parseLong(parts[index]);
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        Platform.runLater(() -> chatServer.log("[FILE_GROUP] " + sender + " -> " + groupName + ": " + fileName));
     }
 
     public void handleWebRTC(String sender, String target, String jsonPayload) {
         ClientHandler targetClient = clients.get(target);
         if (targetClient != null) {
-            targetClient.sendMessage("WEBRTC|" + sender + "|" + jsonPayload);
+            targetClient.send(Packet.of("WEBRTC", sender, jsonPayload));
         } else {
             ClientHandler senderClient = clients.get(sender);
             if (senderClient != null) {
                 String errorJson = "{\"type\":\"ERROR\",\"message\":\"User is offline\"}";
-                senderClient.sendMessage("WEBRTC|SERVER|" + errorJson);
+                senderClient.send(Packet.of("WEBRTC", "SERVER", errorJson));
             }
         }
     }
@@ -693,8 +1074,9 @@ public class ServerNetworkManager {
         callStartTimes.put(callId, System.currentTimeMillis());
 
         ClientHandler targetClient = clients.get(callee);
+        linkContacts(caller, callee);
         if (targetClient != null) {
-            targetClient.sendMessage("CALL_REQ|" + caller + "|" + callId + "|" + type);
+            targetClient.send(Packet.of("CALL_REQ", caller, callId, type));
         } else {
             DBHelper.executeUpdate("UPDATE calls SET status = 'MISSED', end_time = NOW() WHERE id = ?", callId);
             sendCallReport(caller, callee, "MISSED", 0);
@@ -714,7 +1096,7 @@ public class ServerNetworkManager {
 
         ClientHandler callerClient = clients.get(caller);
         if (callerClient != null) {
-            callerClient.sendMessage("CALL_RES|" + responder + "|" + status + "|" + callId);
+            callerClient.send(Packet.of("CALL_RES", responder, status, callId));
         }
     }
 
@@ -748,10 +1130,9 @@ public class ServerNetworkManager {
 
                         // Gửi tín hiệu ngắt cưỡng chế (Server Force End) cho cả 2 bên
                         // Đề phòng trường hợp một bên tắt máy, bên kia vẫn đợi
-                        ClientHandler c1 = clients.get(caller);
-                        ClientHandler c2 = clients.get(callee);
-                        if (c1 != null) c1.sendMessage("CALL_END|SERVER");
-                        if (c2 != null) c2.sendMessage("CALL_END|SERVER");
+                        Packet forceEnd = Packet.of("CALL_END", "SERVER");
+                        sendToUser(caller, forceEnd);
+                        sendToUser(callee, forceEnd);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -775,52 +1156,59 @@ public class ServerNetworkManager {
         String content = status + "|" + durationSec;
 
         try {
-            String sql = "INSERT INTO messages(type, sender, receiver, content, timestamp) VALUES ('PRIVATE', ?, ?, ?, ?)";
-            DBHelper.executeUpdate(sql, caller, callee, content, sqlTimestamp);
+            saveMessage("PRIVATE", caller, callee, content, new java.sql.Timestamp(msgTimeMillis));
         } catch (Exception e) {
             AppLogger.severe("Error saving call log", e);
         }
 
-        String packet = "CALL_LOG|" + caller + "|" + callee + "|" + content + "|" + sqlTimestamp;
-
-        ClientHandler c1 = clients.get(caller);
-        ClientHandler c2 = clients.get(callee);
-
-        if (c1 != null) c1.sendMessage(packet);
-        if (c2 != null) c2.sendMessage(packet);
+        // Nội dung "STATUS|duration" là một trường (được escape khi gửi dạng văn bản)
+        Packet packet = Packet.of("CALL_LOG", caller, callee, content, sqlTimestamp);
+        sendToUser(caller, packet);
+        sendToUser(callee, packet);
     }
 
     public void sendServerBroadcast(String message) {
-        String safeMessage = message.replace("|", "&#124;");
+        Packet packet = Packet.of("BROADCAST", "[SERVER]: " + message);
 
-        String fullMsg = "[SERVER]: " + safeMessage;
+        // Gọi từ giao diện quản trị -> gửi trên làn BROADCAST để không chặn luồng JavaFX
+        DispatchEngine engine = dispatcher;
+        if (engine != null) engine.submit("BROADCAST", () -> broadcast(packet));
+    }
 
-        broadcast("BROADCAST|" + fullMsg);
+    /**
+     * Giải tán nhóm theo yêu cầu từ giao diện quản trị, chạy trên làn của nhóm đó.
+     */
+    public void requestDissolveGroup(String groupName) {
+        DispatchEngine engine = dispatcher;
+        if (engine != null) engine.submit(DispatchEngine.groupKey(groupName), () -> handleDissolveGroup(groupName));
     }
 
-    public void handleVoiceMessage(String sender, String target, String fileName, long size, String fileType, boolean isPrivate) {
-        // 1. Lưu metadata file vào bảng files (để sau này tải)
-        String sqlFile = "INSERT INTO files(filename, sender, receiver, size, file_type, sent_at) VALUES(?,?,?,?,?,NOW())";
-        DBHelper.executeUpdate(sqlFile, fileName, sender, target, size, fileType);
+    public void handleVoiceMessage(String sender, String target, String fileName, long size, String fileType, long fileId,
+                                   boolean isPrivate) {
+        if (rejectedByModeration(new ModerationPipeline.Item(isPrivate ? Opcode.VOICE_PRIVATE : Opcode.VOICE_GROUP,
+                sender, target, fileName, size))) return;
+
+        // 1. Gắn file vào tin nhắn trong bảng files (để sau này tải)
+        long id = recordFile(sender, target, fileName, size, fileType, fileId);
+        if (id < 0) return;
 
         // 2. Lưu tin nhắn vào bảng messages với type = 'VOICE'
         String content = fileName; // Nội dung tin nhắn Voice chính là tên file
         String sqlType = isPrivate ? "PRIVATE" : "GROUP";
 
-        String sqlMsg = "INSERT INTO messages(type, sender, receiver, content, timestamp) VALUES('VOICE', ?, ?, ?, NOW())";
-        DBHelper.executeUpdate(sqlMsg, sender, target, content);
+        saveMessage("VOICE", sender, target, content);
 
         // 3. Gửi cho người nhận
-        String packet = (isPrivate ? "VOICE_PRIVATE" : "VOICE_GROUP") + "|" + sender + "|" + target + "|" + fileName + "|" + size + "|" + fileType;
+        Packet packet = Packet.of(isPrivate ? "VOICE_PRIVATE" : "VOICE_GROUP", sender, target, fileName, size, fileType, id);
 
         if (isPrivate) {
             sendToUser(target, packet);
         } else {
-            sendToGroup(target, packet);
+            sendToGroupExcept(target, sender, packet);
         }
 
         // Log
-        Platform.runLater(() -> chatServer.log("[VOICE] " + sender + " -> " + target));
+        log("[VOICE] " + sender + " -> " + target);
     }
 
     private void initSystemUser() {
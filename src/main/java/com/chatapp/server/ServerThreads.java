@@ -0,0 +1,28 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+
+/**
+ * Nơi tạo luồng cho các vòng lặp nhận kết nối và các handler socket chặn của Server.
+ * Chế độ được chọn lúc khởi động qua khóa server.threads: platform (luồng hệ điều hành) hoặc virtual (virtual thread Java 21).
+ */
+final class ServerThreads {
+    private static final boolean VIRTUAL =
+            "virtual".equalsIgnoreCase(ServerConfig.getString("server.threads", "platform"));
+
+    static {
+        AppLogger.info("Socket handlers run on " + (VIRTUAL ? "virtual" : "platform") + " threads");
+    }
+
+    private ServerThreads() {
+    }
+
+    /**
+     * Khởi chạy một tác vụ trên luồng mới theo chế độ đã cấu hình.
+     */
+    static Thread start(String name, Runnable task) {
+        return VIRTUAL
+                ? Thread.ofVirtual().name(name).start(task)
+                : Thread.ofPlatform().name(name).start(task);
+    }
+}
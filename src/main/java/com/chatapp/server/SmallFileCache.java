@@ -0,0 +1,62 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Giữ nội dung các file nhỏ được tải nhiều trong bộ nhớ (LRU theo tổng dung lượng), để những lượt tải đó
+ * chỉ cần một lần ghi socket thay vì mở file và gọi sendfile.
+ * Mục trong cache gắn với thời điểm sửa đổi và kích thước của file nên file bị thay đổi sẽ được đọc lại.
+ */
+final class SmallFileCache {
+    private record Entry(byte[] data, long modified) {
+    }
+
+    private final long maxFileBytes;
+    private final long maxTotalBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    SmallFileCache(long maxFileBytes, long maxTotalBytes) {
+        this.maxFileBytes = maxFileBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Tạo cache theo các khóa server.download.* trong server.properties.
+     */
+    static SmallFileCache fromConfig() {
+        return new SmallFileCache(
+                ServerConfig.getLong("server.download.memoryMaxFileBytes", 256 * 1024),
+                ServerConfig.getLong("server.download.memoryCacheBytes", 32L * 1024 * 1024));
+    }
+
+    /**
+     * Nội dung file nếu file đủ nhỏ để phục vụ từ bộ nhớ (đọc và đưa vào cache ở lần đầu), ngược lại null.
+     */
+    byte[] get(Path path, long size, long modified) throws IOException {
+        if (size > maxFileBytes || maxTotalBytes <= 0) return null;
+        synchronized (this) {
+            Entry e = entries.get(path);
+            if (e != null && e.modified() == modified && e.data().length == size) return e.data();
+        }
+
+        byte[] data = Files.readAllBytes(path);
+        if (data.length != size) return data; // File đang bị ghi: phục vụ lần này, không đưa vào cache
+        synchronized (this) {
+            Entry old = entries.put(path, new Entry(data, modified));
+            if (old != null) totalBytes -= old.data().length;
+            totalBytes += data.length;
+            Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+            while (totalBytes > maxTotalBytes && it.hasNext()) {
+                totalBytes -= it.next().getValue().data().length;
+                it.remove();
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,140 @@
+package com.chatapp.server;
+
+import com.chatapp.common.AppLogger;
+import com.chatapp.common.FrameCodec;
+import com.chatapp.common.Opcode;
+import com.chatapp.common.Packet;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Kết nối client kiểu truyền thống: một luồng riêng (platform hoặc virtual, xem ServerThreads)
+ * chặn trên việc đọc socket cho mỗi client.
+ * Luồng vào được đọc theo byte (không dùng BufferedReader) để có thể chuyển từ dòng văn bản sang khung nhị phân
+ * ngay giữa luồng mà không mất dữ liệu đã đọc trước.
+ */
+class SocketClientHandler extends ClientHandler implements Runnable {
+    private final Socket socket;
+    private volatile OutputStream out;
+
+    public SocketClientHandler(Socket socket, ServerNetworkManager networkManager) {
+        super(networkManager);
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputStream in = new PlainBufferedInput(socket.getInputStream());
+            out = socket.getOutputStream();
+            ServerThreads.start("writer-" + socket.getRemoteSocketAddress(), this::writeLoop);
+
+            // Luồng đọc chỉ chuyển tiếp, việc xử lý (DB, gửi tin) chạy trên các làn của DispatchEngine
+            ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+            boolean binaryIn = false;
+            while (true) {
+                if (binaryIn) {
+                    Packet packet = FrameCodec.read(in);
+                    if (packet == null) break;
+                    handlePacket(packet);
+                } else {
+                    String line = FrameCodec.readLine(in, lineBuffer, MAX_LINE_BYTES);
+                    if (line == null) break;
+                    Packet packet = Packet.fromText(line);
+                    if (packet.opcode() == Opcode.SWITCH_PROTO) {
+                        binaryIn = acceptProtocolSwitch(packet);
+                    } else {
+                        handlePacket(packet);
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            AppLogger.warning("Connection error with " + username + ": " + e.getMessage());
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * Writer riêng của kết nối: lấy các gói đang chờ, gộp thành một mảng và ghi trong một lần gọi.
+     */
+    private void writeLoop() {
+        OutputStream stream = out;
+        try {
+            while (!outbound.isClosed()) {
+                byte[] batch = outbound.takeBatch(WRITE_BATCH_BYTES, 60_000, this::encode);
+                if (batch != null) stream.write(batch);
+            }
+        } catch (IOException e) {
+            AppLogger.warning("Send failed to " + username + ": " + e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    protected void onOutboundReady() {
+        // Writer đang chờ trên hàng đợi sẽ tự được đánh thức
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void close() {
+        outbound.close();
+        // Đóng socket (kéo theo cả hai luồng vào/ra) thay vì đóng luồng đọc, vì luồng đọc có thể đang bị
+        // chặn trong read() và lời gọi sẽ chặn luồng ngắt kết nối (VD: làn dispatch)
+        try {
+            socket.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * Bộ đệm đọc đơn giản chỉ dùng bởi một luồng, tránh khóa trên mỗi byte như BufferedInputStream.
+     */
+    private static final class PlainBufferedInput extends InputStream {
+        private final InputStream source;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+        private int limit;
+
+        PlainBufferedInput(InputStream source) {
+            this.source = source;
+        }
+
+        private boolean fill() throws IOException {
+            int n = source.read(buf, 0, buf.length);
+            if (n <= 0) return false;
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= limit && !fill()) return -1;
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos >= limit) {
+                // Đọc thẳng vào mảng đích khi yêu cầu lớn hơn bộ đệm
+                if (len >= buf.length) return source.read(dst, off, len);
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, dst, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
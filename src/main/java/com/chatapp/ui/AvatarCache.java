@@ -0,0 +1,97 @@
+package com.chatapp.ui;
+
+import javafx.geometry.VPos;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.ImagePattern;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.TextAlignment;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Avatar chữ cái đầu vẽ ngay trên máy (không gọi dịch vụ ảnh qua mạng), dùng chung cho mọi khung chat và danh sách.
+ * Ảnh được giữ trong một LRU theo (tên, kích thước), giới hạn theo tổng dung lượng điểm ảnh.
+ * Chỉ gọi trên luồng giao diện JavaFX (vẽ bằng Canvas.snapshot).
+ */
+public final class AvatarCache {
+    // Tổng dung lượng điểm ảnh tối đa (4 byte mỗi điểm ảnh), ~5000 avatar 28px
+    private static final long MAX_BYTES = 16L * 1024 * 1024;
+    private static final Color[] BACKGROUNDS = {
+            Color.web("#e57373"), Color.web("#f06292"), Color.web("#ba68c8"), Color.web("#7986cb"),
+            Color.web("#4fc3f7"), Color.web("#4db6ac"), Color.web("#81c784"), Color.web("#ffb74d"),
+            Color.web("#a1887f"), Color.web("#90a4ae")
+    };
+
+    private static final LinkedHashMap<String, ImagePattern> CACHE = new LinkedHashMap<>(256, 0.75f, true);
+    private static long bytes;
+
+    private AvatarCache() {
+    }
+
+    /**
+     * Avatar tròn đường kính size (px) của name, dùng làm fill cho Circle.
+     */
+    public static ImagePattern pattern(String name, int size) {
+        String key = size + ":" + name;
+        ImagePattern cached = CACHE.get(key);
+        if (cached != null) return cached;
+
+        ImagePattern created = new ImagePattern(render(name == null ? "" : name, size));
+        CACHE.put(key, created);
+        bytes += footprint(size);
+        Iterator<Map.Entry<String, ImagePattern>> eldest = CACHE.entrySet().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+            Map.Entry<String, ImagePattern> entry = eldest.next();
+            if (entry.getValue() == created) break;
+            bytes -= footprint((int) entry.getValue().getImage().getWidth());
+            eldest.remove();
+        }
+        return created;
+    }
+
+    private static WritableImage render(String name, int size) {
+        Canvas canvas = new Canvas(size, size);
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        // Màu nền cố định theo tên: cùng một người luôn cùng một màu
+        g.setFill(BACKGROUNDS[Math.floorMod(name.hashCode(), BACKGROUNDS.length)]);
+        g.fillRect(0, 0, size, size);
+        g.setFill(Color.WHITE);
+        g.setFont(Font.font("System", FontWeight.BOLD, size * 0.42));
+        g.setTextAlign(TextAlignment.CENTER);
+        g.setTextBaseline(VPos.CENTER);
+        g.fillText(initials(name), size / 2.0, size / 2.0);
+
+        SnapshotParameters params = new SnapshotParameters();
+        params.setFill(Color.TRANSPARENT);
+        return canvas.snapshot(params, null);
+    }
+
+    // "Nguyen Van A" -> "NV", "alice" -> "AL"; bỏ emoji và ký hiệu
+    static String initials(String name) {
+        StringBuilder first = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        boolean atWordStart = true;
+        for (int cp : name.codePoints().toArray()) {
+            if (!Character.isLetterOrDigit(cp)) {
+                atWordStart = true;
+                continue;
+            }
+            if (atWordStart && first.codePointCount(0, first.length()) < 2) first.appendCodePoint(cp);
+            if (word.codePointCount(0, word.length()) < 2) word.appendCodePoint(cp);
+            atWordStart = false;
+        }
+        String letters = first.codePointCount(0, first.length()) >= 2 ? first.toString() : word.toString();
+        return letters.isEmpty() ? "?" : letters.toUpperCase();
+    }
+
+    private static long footprint(int size) {
+        return 4L * size * size;
+    }
+}
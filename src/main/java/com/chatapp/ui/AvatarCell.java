@@ -0,0 +1,30 @@
+package com.chatapp.ui;
+
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.TableCell;
+import javafx.scene.shape.Circle;
+
+/**
+ * Ô bảng hiển thị avatar (từ AvatarCache) bên cạnh tên người dùng / tên nhóm.
+ */
+class AvatarCell<S> extends TableCell<S, String> {
+    private final Circle avatar = new Circle(11);
+
+    AvatarCell() {
+        setContentDisplay(ContentDisplay.LEFT);
+        setGraphicTextGap(8);
+    }
+
+    @Override
+    protected void updateItem(String name, boolean empty) {
+        super.updateItem(name, empty);
+        if (empty || name == null) {
+            setText(null);
+            setGraphic(null);
+            return;
+        }
+        avatar.setFill(AvatarCache.pattern(name, 22));
+        setText(name);
+        setGraphic(avatar);
+    }
+}
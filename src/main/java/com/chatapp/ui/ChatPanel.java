@@ -1,21 +1,27 @@
 package com.chatapp.ui;
 
 import com.chatapp.client.AESUtil;
+import com.chatapp.client.DownloadManager;
+import com.chatapp.client.FileDownloader;
+import com.chatapp.client.FileUploader;
 import com.chatapp.client.NetworkManager;
 import com.chatapp.common.MessageUtils;
+import com.chatapp.common.Packet;
 import com.chatapp.model.Message;
 import com.chatapp.model.MessageType;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
+import javafx.scene.Node;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
-import javafx.scene.paint.ImagePattern;
 import javafx.scene.shape.Circle;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
@@ -23,16 +29,18 @@ import javafx.stage.FileChooser;
 import javafx.animation.PauseTransition;
 import javafx.util.Duration;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
 
 import com.chatapp.client.AudioRecorder;
 
@@ -53,7 +61,7 @@ public class ChatPanel extends StackPane {
 
     // Logic Callback & Network
     private Consumer<String> sendAction;
-    private TriConsumer<String, Long, String> sendFileAction;
+    private Consumer<Message> sendFileAction;
     private final NetworkManager networkManager;
     private final String currentTargetName;
 
@@ -70,7 +78,11 @@ public class ChatPanel extends StackPane {
     // Layout Components
     private final BorderPane chatLayout;
     private final HBox inputBox;
-    private Consumer<String> downloadAction;
+    private BiFunction<Message, DownloadManager.Priority, DownloadManager.Download> downloadAction;
+    private BiFunction<Message, DownloadManager.Priority, DownloadManager.Download> previewAction;
+
+    // Tải trang lịch sử cũ hơn khi cuộn lên đầu danh sách
+    private Runnable loadOlderAction;
 
     // Logic Typing
     private PauseTransition typingTimer;
@@ -98,6 +110,11 @@ public class ChatPanel extends StackPane {
         // CSS để ẩn viền và làm trong suốt nền cho List
         messageList.setStyle("-fx-background-color: transparent; -fx-border-width: 0;");
 
+        // Lăn chuột lên khi đã ở đầu danh sách -> yêu cầu trang tin nhắn cũ hơn
+        messageList.addEventFilter(ScrollEvent.SCROLL, e -> {
+            if (e.getDeltaY() > 0 && loadOlderAction != null && isScrolledToTop()) loadOlderAction.run();
+        });
+
         // Label hiển thị "User đang nhập..."
         typingLabel = new Label();
         typingLabel.setStyle("-fx-text-fill: #888; -fx-font-style: italic; -fx-font-size: 11px; -fx-padding: 2 0 5 15;");
@@ -180,13 +197,7 @@ public class ChatPanel extends StackPane {
         Circle avatar = new Circle(20);
         avatar.setStroke(Color.WHITESMOKE);
         avatar.setStrokeWidth(1);
-        try {
-            String avatarUrl = "https://ui-avatars.com/api/?background=random&name=" + title.replace(" ", "+");
-            Image img = new Image(avatarUrl, true);
-            avatar.setFill(new ImagePattern(img));
-        } catch (Exception e) {
-            avatar.setFill(Color.LIGHTBLUE);
-        }
+        avatar.setFill(AvatarCache.pattern(title, 40));
 
         VBox info = new VBox(3);
         Label nameLbl = new Label(title);
@@ -220,7 +231,7 @@ public class ChatPanel extends StackPane {
     private void handleVideoBtnClick() {
         if (isInCall) triggerEndCall();
         else if (networkManager != null) {
-            networkManager.getOut().println("CALL_REQ|" + currentTargetName + "|VIDEO");
+            networkManager.send(Packet.of("CALL_REQ", currentTargetName, "VIDEO"));
             setStatusText("Đang gọi...", "#f39c12");
         }
     }
@@ -310,7 +321,7 @@ public class ChatPanel extends StackPane {
      */
     public void triggerEndCall() {
         if (currentCallId != -1) {
-            networkManager.getOut().println("CALL_END|" + currentTargetName + "|" + currentCallId);
+            networkManager.send(Packet.of("CALL_END", currentTargetName, currentCallId));
         }
         setCallEnded();
     }
@@ -425,8 +436,7 @@ public class ChatPanel extends StackPane {
                         File encryptedFile = AESUtil.encryptFile(f, password);
 
                         // 2. Gửi file .enc đi
-                        sendFileAction.accept(encryptedFile.getName(), encryptedFile.length(), "enc"); // fileType là 'enc'
-                        sendActualFile(encryptedFile, encryptedFile.getName());
+                        sendFile(encryptedFile, "enc"); // fileType là 'enc'
 
                         encryptedFile.deleteOnExit();
 
@@ -438,31 +448,31 @@ public class ChatPanel extends StackPane {
 
             } else if (result.isPresent() && result.get() == btnNo) {
                 // --- GỬI THƯỜNG (Logic cũ) ---
-                sendFileAction.accept(f.getName(), f.length(), getFileExtension(f.getName()));
-                sendActualFile(f, f.getName());
+                sendFile(f, getFileExtension(f.getName()));
             }
         }
     }
 
     /**
-     * Gửi dữ liệu file thực tế qua Socket phụ (cổng 5556).
+     * Hiện tin nhắn file ngay trong khung chat, tải file lên rồi mới gửi tin nhắn kèm id file server cấp.
      */
-    private void sendActualFile(File file, String fileName) {
-        new Thread(() -> {
-            try (Socket s = new Socket("localhost", 5556);
-                 DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-                 FileInputStream fis = new FileInputStream(file)) {
-
-                dos.writeUTF(networkManager.getMyUsername());
-                dos.writeUTF(fileName);
-                dos.writeLong(file.length());
-                byte[] buf = new byte[4096];
-                int read;
-                while ((read = fis.read(buf)) != -1) dos.write(buf, 0, read);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }).start();
+    private void sendFile(File file, String fileType) {
+        Message message = Message.createFileMessage(file.getName(), file.length(), fileType,
+                networkManager.getMyUsername());
+        addMessageAndSort(message);
+        sendActualFile(file, file.getName(), fileId -> {
+            message.setFileId(fileId);
+            sendFileAction.accept(message);
+        });
+    }
+
+    /**
+     * Gửi dữ liệu file thực tế tới Server đang kết nối (cổng 5556), theo từng khối và tự gửi tiếp khi mất kết nối.
+     * onUploaded nhận id file sau khi server đã lưu xong.
+     */
+    private void sendActualFile(File file, String fileName, LongConsumer onUploaded) {
+        FileUploader.upload(networkManager.getServerIp(), networkManager.getMyUsername(), file, fileName, onUploaded,
+                error -> Platform.runLater(() -> showAlert("Gửi file " + fileName + " thất bại: " + error)));
     }
 
     /**
@@ -483,6 +493,39 @@ public class ChatPanel extends StackPane {
         });
     }
 
+    /**
+     * Thêm cả một trang tin nhắn (lịch sử) trong một lần cập nhật giao diện rồi sắp xếp một lần.
+     * scrollToEnd = false khi đây là trang cũ hơn, để giữ vị trí đang xem.
+     */
+    public void addMessagesAndSort(List<Message> batch, boolean scrollToEnd) {
+        if (batch.isEmpty()) return;
+        Platform.runLater(() -> {
+            messages.addAll(batch);
+            FXCollections.sort(messages, Comparator.comparing(Message::getTimestamp));
+            if (scrollToEnd) {
+                scrollToBottom();
+            } else {
+                messageList.scrollTo(batch.size());
+            }
+        });
+    }
+
+    /**
+     * Đăng ký hành động tải trang lịch sử cũ hơn (gọi khi người dùng cuộn lên đầu danh sách).
+     */
+    public void setLoadOlderAction(Runnable action) {
+        this.loadOlderAction = action;
+    }
+
+    private boolean isScrolledToTop() {
+        for (Node node : messageList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                return bar.getValue() <= bar.getMin();
+            }
+        }
+        return true;
+    }
+
     /**
      * Thêm tin nhắn vào cuối danh sách.
      */
@@ -493,6 +536,24 @@ public class ChatPanel extends StackPane {
         });
     }
 
+    /**
+     * Xóa tin gần nhất của sender có nội dung khớp một trong các dạng cho trước (VD: tin bị Server thu hồi).
+     */
+    public void removeLastMessage(String sender, String... contents) {
+        Platform.runLater(() -> {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                Message m = messages.get(i);
+                if (!sender.equals(m.getSender())) continue;
+                for (String c : contents) {
+                    if (c.equals(m.getContent())) {
+                        messages.remove(i);
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Xóa toàn bộ tin nhắn trên giao diện.
      */
@@ -544,9 +605,9 @@ public class ChatPanel extends StackPane {
     }
 
     /**
-     * Đăng ký callback xử lý khi gửi file.
+     * Đăng ký callback gửi tin nhắn file (gọi sau khi file đã tải lên xong, tin nhắn đã có id file).
      */
-    public void setSendFileAction(TriConsumer<String, Long, String> a) {
+    public void setSendFileAction(Consumer<Message> a) {
         this.sendFileAction = a;
     }
 
@@ -575,20 +636,34 @@ public class ChatPanel extends StackPane {
     }
 
     /**
-     * Đăng ký callback xử lý khi tải file.
+     * Đăng ký callback xử lý khi tải file (trả về yêu cầu tải đã gửi cho DownloadManager).
      */
-    public void setDownloadAction(Consumer<String> action) {
+    public void setDownloadAction(BiFunction<Message, DownloadManager.Priority, DownloadManager.Download> action) {
         this.downloadAction = action;
     }
 
     /**
-     * Kích hoạt hành động tải file.
+     * Đăng ký callback tải ảnh xem trước của tin nhắn ảnh.
+     */
+    public void setPreviewAction(BiFunction<Message, DownloadManager.Priority, DownloadManager.Download> action) {
+        this.previewAction = action;
+    }
+
+    /**
+     * Kích hoạt hành động tải file, trả về null nếu chưa đăng ký hành động tải. onPercent (nếu có) nhận phần trăm
+     * đã tải trên luồng giao diện, mỗi khi phần trăm đổi.
      */
-    public void downloadFile(String fileName, File saveDest) {
-        if (downloadAction != null) {
-            downloadAction.accept(fileName);
-            System.out.println("DEBUG: ChatPanel requesting download for: " + fileName);
+    public DownloadManager.Download downloadFile(Message msg, DownloadManager.Priority priority, IntConsumer onPercent) {
+        if (downloadAction == null) return null;
+        DownloadManager.Download download = downloadAction.apply(msg, priority);
+        if (onPercent != null) {
+            AtomicInteger lastPercent = new AtomicInteger(-1);
+            download.onProgress((done, total) -> {
+                int percent = total > 0 ? (int) (done * 100 / total) : 100;
+                if (lastPercent.getAndSet(percent) != percent) Platform.runLater(() -> onPercent.accept(percent));
+            });
         }
+        return download;
     }
 
     /**
@@ -636,13 +711,12 @@ public class ChatPanel extends StackPane {
             messageField.setDisable(false);
 
             if (voiceFile != null && voiceFile.exists()) {
-                sendActualFile(voiceFile, voiceFile.getName());
-
                 String cmdType = currentTargetName.startsWith("GROUP") ? "VOICE_GROUP" : "VOICE_PRIVATE";
                 String target = currentTargetName.startsWith("GROUP") ? currentTargetName : currentTargetName;
 
-                String packet = cmdType + "|" + target + "|" + voiceFile.getName() + "|" + voiceFile.length() + "|wav";
-                networkManager.sendMessage(packet);
+                // Tin nhắn thoại được gửi sau khi file đã lên server, kèm id file
+                sendActualFile(voiceFile, voiceFile.getName(), fileId -> networkManager.send(
+                        Packet.of(cmdType, target, voiceFile.getName(), voiceFile.length(), "wav", fileId)));
             }
         }
     }
@@ -658,6 +732,10 @@ public class ChatPanel extends StackPane {
 
         private final Circle miniAvatar = new Circle(14);
 
+        // Lượt tải (file gốc / ảnh xem trước) mà cell đang theo dõi; bỏ theo dõi khi cell được dùng lại cho tin nhắn khác
+        private DownloadManager.Download download;
+        private DownloadManager.Download preview;
+
         /**
          * Khởi tạo Cell hiển thị tin nhắn tùy chỉnh.
          */
@@ -679,6 +757,15 @@ public class ChatPanel extends StackPane {
          */
         protected void updateItem(Message msg, boolean empty) {
             super.updateItem(msg, empty);
+            if (download != null) {
+                // Tin nhắn cũ đã cuộn khỏi màn hình: lượt tải vẫn tiếp tục nhưng nhường cho tin nhắn đang hiển thị
+                download.release();
+                download = null;
+            }
+            if (preview != null) {
+                preview.release();
+                preview = null;
+            }
             if (empty || msg == null) {
                 setGraphic(null);
                 return;
@@ -710,12 +797,8 @@ public class ChatPanel extends StackPane {
             if (msg.getSender() != null && msg.getSender().equals(myName)) isMe = true;
 
             if (!isMe) {
-                String avatarUrl = "https://ui-avatars.com/api/?background=random&name=" + msg.getSender();
-                try {
-                    miniAvatar.setFill(new ImagePattern(new Image(avatarUrl, true)));
-                } catch (Exception e) {
-                    miniAvatar.setFill(Color.LIGHTGRAY);
-                }
+                // Avatar vẽ sẵn trong bộ nhớ đệm dùng chung: không tải qua mạng mỗi lần cell được dùng lại
+                miniAvatar.setFill(AvatarCache.pattern(msg.getSender(), 28));
                 HBox.setMargin(miniAvatar, new Insets(0, 8, 0, 0));
             }
 
@@ -780,8 +863,7 @@ public class ChatPanel extends StackPane {
 
                         // Xử lý khi bấm vào file mã hóa
                         lockPane.setOnMouseClicked(ev -> {
-                            File downloadDir = new File("client_downloads");
-                            File encFile = new File(downloadDir, fileName);
+                            File encFile = FileDownloader.localFile(fileName, msg.getFileId());
 
                             if (encFile.exists()) {
                                 // Đã tải về -> Hỏi mật khẩu để giải mã
@@ -806,11 +888,16 @@ public class ChatPanel extends StackPane {
                                         ex.printStackTrace();
                                     }
                                 });
+                            } else if (download != null) {
+                                // Đang tải -> Bấm lần nữa để hủy
+                                cancelDownload();
+                                lblInfo.setText("File bảo mật\n" + fileName);
                             } else {
-                                // Chưa tải -> Tải về trước
+                                // Chưa tải -> Tải về trước, xong thì bấm lần nữa để mở
                                 lblInfo.setText("Đang tải xuống...");
-                                parent.downloadFile(fileName, null);
-                                // (Logic tự động refresh icon bạn đã làm ở bước trước có thể áp dụng lại ở đây nếu muốn)
+                                startDownload(msg, p -> lblInfo.setText("Đang tải xuống... " + p + "%"),
+                                        file -> lblInfo.setText("File bảo mật\n" + fileName + "\n(Nhấn để mở)"),
+                                        () -> lblInfo.setText("File bảo mật\n" + fileName));
                             }
                         });
 
@@ -822,22 +909,21 @@ public class ChatPanel extends StackPane {
                                 lowerName.endsWith(".jpeg") || lowerName.endsWith(".gif");
 
                         if (isImage) {
-                            File downloadDir = new File("client_downloads");
-                            File downloadedFile = new File(downloadDir, fileName);
+                            File downloadedFile = FileDownloader.localFile(fileName, msg.getFileId());
+                            // Ảnh xem trước do server tạo (chỉ có với tin nhắn có id file)
+                            File previewFile = msg.getFileId() > 0 ? FileDownloader.previewFile(msg.getFileId()) : null;
 
                             ImageView imageView = new ImageView();
                             imageView.setFitWidth(200);
                             imageView.setPreserveRatio(true);
                             imageView.setSmooth(true);
 
-                            if (downloadedFile.exists()) {
-                                try {
-                                    Image img = new Image(downloadedFile.toURI().toString(), 250, 0, true, true);
-                                    imageView.setImage(img);
-                                    fileBox.getChildren().add(imageView);
-                                } catch (Exception exLoad) {
-                                    fileBox.getChildren().add(new Label("Lỗi ảnh"));
-                                }
+                            if (previewFile != null && previewFile.exists()) {
+                                // Giải mã ảnh xem trước vài KB thay vì ảnh gốc; bấm vào để mở ảnh gốc
+                                showImage(fileBox, imageView, previewFile);
+                                imageView.setOnMouseClicked(ev -> openOriginal(msg, downloadedFile));
+                            } else if (downloadedFile.exists()) {
+                                showImage(fileBox, imageView, downloadedFile);
                             } else {
                                 StackPane placeholder = new StackPane();
                                 placeholder.setPrefSize(200, 150);
@@ -847,32 +933,28 @@ public class ChatPanel extends StackPane {
                                 placeholder.getChildren().add(lbl);
 
                                 placeholder.setOnMouseClicked(ev -> {
+                                    if (download != null) {
+                                        // Đang tải -> Bấm lần nữa để hủy
+                                        cancelDownload();
+                                        lbl.setText("🖼️ " + fileName + "\n(Nhấn để xem)");
+                                        return;
+                                    }
                                     lbl.setText("Đang tải...");
-                                    parent.downloadFile(fileName, null);
-
-                                    // Logic tự động reload ảnh
-                                    new Thread(() -> {
-                                        try {
-                                            for (int i = 0; i < 10; i++) {
-                                                Thread.sleep(500);
-                                                if (downloadedFile.exists() && downloadedFile.length() > 0) {
-                                                    Platform.runLater(() -> {
-                                                        try {
-                                                            fileBox.getChildren().clear();
-                                                            Image img = new Image(downloadedFile.toURI().toString(), 250, 0, true, true);
-                                                            imageView.setImage(img);
-                                                            fileBox.getChildren().add(imageView);
-                                                        } catch (Exception exUI) {
-                                                        }
-                                                    });
-                                                    break;
-                                                }
-                                            }
-                                        } catch (Exception ie) {
-                                        }
-                                    }).start();
+                                    // Tải xong thì hiện ảnh ngay trong cell
+                                    startDownload(msg, p -> lbl.setText("Đang tải... " + p + "%\n(Nhấn để hủy)"),
+                                            file -> showImage(fileBox, imageView, file),
+                                            () -> lbl.setText("🖼️ " + fileName + "\n(Nhấn để xem)"));
                                 });
                                 fileBox.getChildren().add(placeholder);
+
+                                if (previewFile != null) {
+                                    // Tin nhắn đang hiển thị: tự tải ảnh xem trước; chưa có thì giữ ô "Nhấn để xem"
+                                    startPreview(msg, file -> {
+                                        if (download != null) return; // Ảnh gốc đang được tải theo yêu cầu
+                                        showImage(fileBox, imageView, file);
+                                        imageView.setOnMouseClicked(ev -> openOriginal(msg, downloadedFile));
+                                    });
+                                }
                             }
                         } else {
                             // File thường khác
@@ -881,7 +963,19 @@ public class ChatPanel extends StackPane {
                             Label fn = new Label(msg.getFileName());
                             fn.setStyle("-fx-font-weight: bold;");
                             Button db = new Button("⬇ Tải");
-                            db.setOnAction(ev -> parent.downloadFile(msg.getFileName(), null));
+                            db.setOnAction(ev -> {
+                                if (download != null) {
+                                    // Đang tải -> Bấm lần nữa để hủy
+                                    cancelDownload();
+                                    db.setText("⬇ Tải");
+                                    return;
+                                }
+                                startDownload(msg, p -> db.setText("⬇ " + p + "% (Hủy)"), file -> {
+                                    db.setText("✔ Đã tải");
+                                    new Alert(Alert.AlertType.INFORMATION,
+                                            "Tải xong!\nFile lưu tại: " + file.getAbsolutePath(), ButtonType.OK).show();
+                                }, () -> db.setText("⬇ Tải"));
+                            });
                             fb.getChildren().addAll(fn, db);
                             fileBox.getChildren().add(fb);
                         }
@@ -943,48 +1037,15 @@ public class ChatPanel extends StackPane {
                     // Logic Play:
                     btnPlay.setOnAction(ev -> {
                         // 1. Kiểm tra file đã có chưa
-                        File vDir = new File("client_downloads");
-                        File vFile = new File(vDir, vFileName);
+                        File vFile = FileDownloader.localFile(vFileName, msg.getFileId());
 
                         if (vFile.exists()) {
                             // Có rồi -> Play luôn
-                            btnPlay.setText("🔊"); // Đổi icon đang phát
-                            AudioRecorder.playAudio(vFile);
-                            // Reset icon sau 3s (Demo đơn giản)
-                            new Thread(() -> {
-                                try {
-                                    Thread.sleep(3000);
-                                } catch (Exception ex) {
-                                }
-                                Platform.runLater(() -> btnPlay.setText("▶"));
-                            }).start();
-                        } else {
+                            playVoice(btnPlay, vFile);
+                        } else if (download == null) {
                             // Chưa có -> Tải về rồi Play
                             btnPlay.setText("⏳"); // Icon loading
-                            parent.downloadFile(vFileName, null);
-
-                            // Thread đợi tải xong
-                            new Thread(() -> {
-                                try {
-                                    for (int i = 0; i < 20; i++) { // Đợi tối đa 10s
-                                        Thread.sleep(500);
-                                        if (vFile.exists()) {
-                                            Platform.runLater(() -> {
-                                                btnPlay.setText("🔊");
-                                                AudioRecorder.playAudio(vFile);
-                                            });
-                                            // Reset icon
-                                            try {
-                                                Thread.sleep(3000);
-                                            } catch (Exception ex) {
-                                            }
-                                            Platform.runLater(() -> btnPlay.setText("▶"));
-                                            break;
-                                        }
-                                    }
-                                } catch (Exception ex) {
-                                }
-                            }).start();
+                            startDownload(msg, null, file -> playVoice(btnPlay, file), () -> btnPlay.setText("▶"));
                         }
                     });
 
@@ -1009,5 +1070,77 @@ public class ChatPanel extends StackPane {
             rootBox.getChildren().add(bubbleContainer);
             setGraphic(rootBox);
         }
+
+        /**
+         * Tải file của tin nhắn (ưu tiên vì tin nhắn đang hiển thị). onDone/onFailed chạy trên luồng giao diện,
+         * và chỉ khi cell vẫn đang hiển thị tin nhắn này.
+         */
+        private void startDownload(Message msg, IntConsumer onPercent, Consumer<File> onDone, Runnable onFailed) {
+            DownloadManager.Download d = parent.downloadFile(msg, DownloadManager.Priority.VISIBLE, onPercent);
+            if (d == null) return;
+            download = d;
+            d.future().whenComplete((file, error) -> Platform.runLater(() -> {
+                if (download != d) return;
+                download = null;
+                if (error == null) {
+                    onDone.accept(file);
+                } else {
+                    onFailed.run();
+                }
+            }));
+        }
+
+        private void startPreview(Message msg, Consumer<File> onDone) {
+            if (parent.previewAction == null) return;
+            DownloadManager.Download d = parent.previewAction.apply(msg, DownloadManager.Priority.VISIBLE);
+            preview = d;
+            d.future().whenComplete((file, error) -> Platform.runLater(() -> {
+                if (preview != d) return;
+                preview = null;
+                if (error == null) onDone.accept(file);
+            }));
+        }
+
+        private static void showImage(VBox fileBox, ImageView imageView, File file) {
+            try {
+                imageView.setImage(new Image(file.toURI().toString(), 250, 0, true, true));
+                fileBox.getChildren().setAll(imageView);
+            } catch (Exception exLoad) {
+                fileBox.getChildren().setAll(new Label("Lỗi ảnh"));
+            }
+        }
+
+        // Mở ảnh gốc bằng ứng dụng mặc định, tải về trước nếu chưa có
+        private void openOriginal(Message msg, File original) {
+            if (original.exists()) {
+                openFile(original);
+            } else if (download == null) {
+                startDownload(msg, null, this::openFile, () -> {
+                });
+            }
+        }
+
+        private void openFile(File file) {
+            try {
+                if (java.awt.Desktop.isDesktopSupported()) {
+                    java.awt.Desktop.getDesktop().open(file);
+                } else {
+                    parent.showAlert("Ảnh đã lưu tại: " + file.getAbsolutePath());
+                }
+            } catch (Exception ex) {
+                parent.showAlert("Không mở được ảnh: " + ex.getMessage());
+            }
+        }
+
+        private void cancelDownload() {
+            if (download == null) return;
+            download.cancel();
+            download = null;
+        }
+
+        private static void playVoice(Button btnPlay, File file) {
+            btnPlay.setText("🔊"); // Đổi icon đang phát
+            AudioRecorder.playAudio(file, () -> Platform.runLater(() -> btnPlay.setText("▶")));
+        }
     }
 }
\ No newline at end of file
@@ -53,6 +53,7 @@ public class GroupsPanel extends BorderPane {
         TableColumn<GroupRow, String> col = new TableColumn<>("Group Name");
         col.setCellValueFactory(data -> new javafx.beans.property.SimpleStringProperty(
                 data.getValue().getGroupName()));
+        col.setCellFactory(c -> new AvatarCell<>());
 
         groupTable.getColumns().add(col);
 
@@ -52,6 +52,7 @@ public class UsersPanel extends BorderPane {
         TableColumn<ClientRow, String> col = new TableColumn<>("Username");
         col.setCellValueFactory(data -> new javafx.beans.property.SimpleStringProperty(
                 data.getValue().getUsername()));
+        col.setCellFactory(c -> new AvatarCell<>());
 
         // Không cần setPrefWidth cứng nữa vì đã có CONSTRAINED_RESIZE_POLICY
         clientTable.getColumns().add(col);
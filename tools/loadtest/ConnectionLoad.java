@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bộ tạo tải kết nối: mở N kết nối tới cổng chat (một luồng, selector), rồi chạy R vòng, mỗi vòng mọi kết nối
+ * gửi một dòng và chờ dòng trả lời. In thời gian mở kết nối và độ trễ khứ hồi (p50/p99/max) của từng vòng.
+ * Cách dùng: java tools/loadtest/ConnectionLoad.java host port connections rounds
+ */
+public final class ConnectionLoad {
+    // Số lượt connect đang dở tối đa, tránh tràn hàng đợi SYN của server
+    private static final int MAX_PENDING_CONNECTS = 256;
+    private static final byte[] REQUEST = "PING\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final class Conn {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(512);
+        long sentAt;
+        long rtt = -1;
+
+        Conn(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int total = Integer.parseInt(args[2]);
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        Selector selector = Selector.open();
+        List<Conn> conns = new ArrayList<>(total);
+        long start = System.nanoTime();
+        int opened = 0;
+        int pending = 0;
+        while (conns.size() < total) {
+            while (opened < total && pending < MAX_PENDING_CONNECTS) {
+                SocketChannel ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                ch.connect(address);
+                ch.register(selector, SelectionKey.OP_CONNECT, new Conn(ch));
+                opened++;
+                pending++;
+            }
+            selector.select(1000);
+            for (SelectionKey key : selector.selectedKeys()) {
+                Conn c = (Conn) key.attachment();
+                if (key.isConnectable() && c.channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    conns.add(c);
+                    pending--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        System.out.printf("connected=%d in %d ms%n", conns.size(), (System.nanoTime() - start) / 1_000_000);
+
+        for (int r = 1; r <= rounds; r++) {
+            long roundStart = System.nanoTime();
+            for (Conn c : conns) {
+                c.rtt = -1;
+                c.sentAt = System.nanoTime();
+                c.channel.write(ByteBuffer.wrap(REQUEST));
+            }
+            int done = 0;
+            long deadline = System.nanoTime() + 60_000_000_000L;
+            while (done < conns.size() && System.nanoTime() < deadline) {
+                selector.select(1000);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Conn c = (Conn) key.attachment();
+                    if (key.isReadable() && readLine(c)) {
+                        c.rtt = System.nanoTime() - c.sentAt;
+                        done++;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            report(r, conns, done, System.nanoTime() - roundStart);
+        }
+        for (Conn c : conns) c.channel.close();
+    }
+
+    // true khi đã nhận trọn một dòng trả lời
+    private static boolean readLine(Conn c) throws IOException {
+        if (c.channel.read(c.in) < 0) throw new IOException("server closed connection");
+        for (int i = 0; i < c.in.position(); i++) {
+            if (c.in.get(i) == '\n') {
+                c.in.clear();
+                return c.rtt < 0;
+            }
+        }
+        if (!c.in.hasRemaining()) c.in.clear();
+        return false;
+    }
+
+    private static void report(int round, List<Conn> conns, int done, long roundNanos) {
+        long[] rtts = conns.stream().mapToLong(c -> c.rtt).filter(v -> v >= 0).sorted().toArray();
+        if (rtts.length == 0) {
+            System.out.printf("round %d: no replies%n", round);
+            return;
+        }
+        System.out.printf("round %d: replies=%d/%d total=%d ms p50=%.2f ms p99=%.2f ms max=%.2f ms%n", round, done,
+                conns.size(), roundNanos / 1_000_000, ms(rtts, 0.50), ms(rtts, 0.99), rtts[rtts.length - 1] / 1e6);
+    }
+
+    private static double ms(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * q))] / 1e6;
+    }
+
+    private ConnectionLoad() {
+    }
+}
@@ -0,0 +1,57 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server thử tải cho so sánh server.threads=platform và virtual: nhận kết nối trên cổng chat kiểu blocking
+ * và chạy đúng SocketClientHandler của Server (một luồng đọc + một luồng writer mỗi kết nối, qua ServerThreads)
+ * nhưng không cần DB. Client chưa đăng nhập gửi một dòng bất kỳ thì nhận lại ERROR, đủ để đo một vòng đọc/ghi.
+ * Không thuộc bản build Maven; xem tools/loadtest/README.md.
+ */
+public final class ThreadModeServer {
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5555;
+        ServerNetworkManager network = new ServerNetworkManager();
+        AtomicInteger accepted = new AtomicInteger();
+
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(port), 4096);
+        ServerThreads.start("load-acceptor", () -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    accepted.incrementAndGet();
+                    ServerThreads.start("client-" + socket.getRemoteSocketAddress(),
+                            new SocketClientHandler(socket, network));
+                } catch (IOException e) {
+                    System.err.println("accept failed: " + e.getMessage());
+                }
+            }
+        });
+
+        System.out.println("mode=" + ServerConfig.getString("server.threads", "platform") + " port=" + port);
+        while (true) {
+            Thread.sleep(2000);
+            Runtime rt = Runtime.getRuntime();
+            System.gc();
+            System.out.printf("connections=%d platformThreads=%d heapUsedMB=%d rssMB=%d%n", accepted.get(),
+                    ManagementFactory.getThreadMXBean().getThreadCount(),
+                    (rt.totalMemory() - rt.freeMemory()) >> 20, rssKb() >> 10);
+        }
+    }
+
+    private static long rssKb() throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+            if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("\\D", ""));
+        }
+        return -1;
+    }
+}